@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the cooperative cancellation checks which a CPU-bound task can put in its inner loop.
+ * <p>The context check only reads the flag raised by the time keeper, it should be as cheap as Thread.interrupted,
+ * while the remaining time needs a clock read.
+ * @author tzielins
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CancellationCheckBenchmark {
+
+    TimeoutContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TimeoutFutureTask<Integer> task = new TimeoutFutureTask<>(() -> 1, new DeadlineHeap(), 1, TimeUnit.HOURS);
+        //the benchmark thread acts as the worker running the task
+        TimeoutFutureTask.CURRENT.set(task);
+        context = TimeoutContext.current();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        TimeoutFutureTask.CURRENT.remove();
+    }
+
+    @Benchmark
+    public void contextCheck() {
+        context.check();
+    }
+
+    @Benchmark
+    public boolean contextIsExpired() {
+        return context.isExpired();
+    }
+
+    @Benchmark
+    public boolean threadInterrupted() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    @Benchmark
+    public long remainingNanos() {
+        return context.remainingNanos();
+    }
+}
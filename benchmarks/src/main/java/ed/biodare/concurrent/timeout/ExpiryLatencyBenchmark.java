@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from the expiry of the task timeout till the worker thread observes the interrupt sent by the TimeKeeper.
+ * <p>Each invocation submits a task which spins until it is interrupted and waits for it to notice the interrupt.
+ * The benchmark returns the lag in nanoseconds between the moment the task should have been timed out and the moment
+ * it was interrupted, while the score (sample time) is the whole round trip, which is the timeout plus that lag,
+ * so the percentiles of the score minus the timeout give the distribution of the expiry latency.
+ * With the timeout 0 the task is already expired when armed, which measures the hand over from the worker through the
+ * timedOut queue and TimeKeeper back to the worker without the timer precision.
+ * @author tzielins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpiryLatencyBenchmark {
+
+    @Param({"heap", "wheel", "slots"})
+    String queue;
+
+    @Param({"0", "200", "1000"})
+    long timeoutMicros;
+
+    TimeoutFixPoolExecutor pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BlockingQueue<TimeoutFuture<?>> timedOut;
+        switch (queue) {
+            case "heap": timedOut = new DeadlineHeap(); break;
+            case "wheel": timedOut = new TimingWheel(); break;
+            case "slots": timedOut = new WorkerDeadlineSlots(1); break;
+            default: throw new IllegalArgumentException("Unknown queue: "+queue);
+        }
+        pool = new TimeoutFixPoolExecutor(1, timeoutMicros, TimeUnit.MICROSECONDS, new LinkedBlockingQueue<>(), null, timedOut);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pool.shutdownNow();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public long expiryToInterrupt() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        long[] lag = new long[1];
+        long timeout = TimeUnit.MICROSECONDS.toNanos(timeoutMicros);
+
+        pool.submit(() -> {
+            //the timeout is armed just before the task starts
+            long start = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.onSpinWait();
+            }
+            lag[0] = System.nanoTime() - start - timeout;
+            interrupted.countDown();
+            return null;
+        });
+
+        if (!interrupted.await(1, TimeUnit.SECONDS)) throw new IllegalStateException("Task was not timed out");
+        return lag[0];
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of submitting short tasks with a timeout to TimeoutFixPoolExecutor compared to the plain ThreadPoolExecutor
+ * (which does not time out anything) with the same number of threads.
+ * <p>Each invocation submits a batch of tasks and waits for all of them, so the score is the number of tasks per second
+ * that went through the pool, including the cost of arming and disarming their timeouts.
+ * Run with -prof gc to see the allocation per task (gc.alloc.rate.norm divided by the batch size).
+ * @author tzielins
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubmitThroughputBenchmark {
+
+    static final int BATCH = 1000;
+
+    /**
+     * Executor under test: plain ThreadPoolExecutor or TimeoutFixPoolExecutor with the given timedOut queue.
+     */
+    @Param({"plain", "heap", "wheel", "slots"})
+    String executor;
+
+    @Param({"4"})
+    int threads;
+
+    /**
+     * Amount of work (Blackhole tokens) done by each task.
+     */
+    @Param({"100"})
+    int work;
+
+    ExecutorService pool;
+    Callable<Integer> task;
+    Future<?>[] futures = new Future<?>[BATCH];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (executor) {
+            case "plain": pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()); break;
+            case "heap": pool = timeoutPool(new DeadlineHeap()); break;
+            case "wheel": pool = timeoutPool(new TimingWheel()); break;
+            case "slots": pool = timeoutPool(new WorkerDeadlineSlots(threads)); break;
+            default: throw new IllegalArgumentException("Unknown executor: "+executor);
+        }
+        int tokens = work;
+        task = () -> {
+            Blackhole.consumeCPU(tokens);
+            return tokens;
+        };
+    }
+
+    TimeoutFixPoolExecutor timeoutPool(BlockingQueue<TimeoutFuture<?>> timedOut) {
+        return new TimeoutFixPoolExecutor(threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), null, timedOut);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pool.shutdownNow();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void submit(Blackhole bh) throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            futures[i] = (pool instanceof TimeoutExecutor)
+                    ? ((TimeoutExecutor)pool).submit(task, 1, TimeUnit.SECONDS)
+                    : pool.submit(task);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            bh.consume(futures[i].get());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extra cost of TimeoutFutureTask.run() and done() on the worker thread compared to the plain FutureTask.
+ * <p>The tasks are created and run on the benchmark thread (no executor), so the difference between the scores of
+ * futureTask and timeoutTask is the price of reading the clock, arming the timeout in the timedOut queue on start and removing
+ * it from the queue in done. The timedOut queue is not served by a TimeKeeper, the tasks finish long before their timeout.
+ * <p>Run with -prof gc to compare the allocation per task (gc.alloc.rate.norm). The target for the timeout tasks is a single
+ * object per task, the TimeoutFutureTask itself (128 bytes with compressed oops), also for the FutureStorable tasks.
+ * The fire-and-forget TimeoutRunnable is compared with the futures in timeoutRunnable.
+ * @author tzielins
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskOverheadBenchmark {
+
+    /**
+     * The timedOut queue in which the started tasks are armed.
+     * <p>The TimingWheel is not measured here: it purges the completed entries only when its consumer advances the ticks,
+     * so without a TimeKeeper the armed entries would pile up until the heap is exhausted. ExpiryLatencyBenchmark and
+     * SubmitThroughputBenchmark cover the wheel with a keeper draining it.
+     */
+    @Param({"heap", "slots"})
+    String queue;
+
+    BlockingQueue<TimeoutFuture<?>> timedOut;
+    Callable<Integer> callable = () -> 1;
+    Runnable runnable = () -> {};
+    FutureStorable<Integer> storable = () -> 1;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (queue) {
+            case "heap": timedOut = new DeadlineHeap(); break;
+            case "slots": timedOut = new WorkerDeadlineSlots(1); break;
+            default: throw new IllegalArgumentException("Unknown queue: "+queue);
+        }
+    }
+
+    @Benchmark
+    public Object futureTask() {
+        FutureTask<Integer> task = new FutureTask<>(callable);
+        task.run();
+        return task;
+    }
+
+    @Benchmark
+    public Object timeoutTask() {
+        TimeoutFutureTask<Integer> task = new TimeoutFutureTask<>(callable, timedOut, null, 1, TimeUnit.SECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE);
+        task.run();
+        return task;
+    }
+
+    @Benchmark
+    public Object timeoutTaskStorable() {
+        TimeoutFutureTask<Integer> task = new TimeoutFutureTask<>(storable, timedOut, null, 1, TimeUnit.SECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE);
+        task.run();
+        return task;
+    }
+
+    @Benchmark
+    public Object timeoutRunnable() {
+        TimeoutRunnable task = new TimeoutRunnable(runnable, null, timedOut, 1, TimeUnit.SECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE, -1, null);
+        task.run();
+        return task;
+    }
+
+    @Benchmark
+    public Object timeoutTaskWithoutTimeout() {
+        TimeoutFutureTask<Integer> task = new TimeoutFutureTask<>(callable, timedOut, null, Long.MAX_VALUE, TimeUnit.MILLISECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE);
+        task.run();
+        return task;
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.Future;
+
+/**
+ * Schedules the short actions of the hedged and retried tasks (starting the next attempt) on the timer of the executor,
+ * so no worker sleeps waiting for them.
+ * @author tzielins
+ */
+interface ActionScheduler {
+
+    /**
+     * Schedules the action to be run after the delay.
+     * @param action code to run, it must be short and must not block
+     * @param delayNanos delay in nanoseconds
+     * @return the scheduled action which can be cancelled, or null if it could not be scheduled
+     */
+    Future<?> schedule(Runnable action, long delayNanos);
+}
@@ -0,0 +1,60 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer of the executor housekeeping (stuck worker checks, pool sizing), which runs DelayedActions on its own TimeKeeper.
+ * <p>The time keeper thread and its DeadlineHeap are created with the first scheduled action, so the executors which do not
+ * use any of the housekeeping features do not pay for an extra thread. The actions run on the time keeper thread, so they
+ * must be short.
+ * @author tzielins
+ */
+class ActionTimer {
+
+    private DeadlineHeap actions;
+    private TimeKeeper keeper;
+    private boolean stopped;
+
+    /**
+     * Schedules the action to be run after the delay.
+     * @param action code to run
+     * @param delay delay of the action
+     * @param unit unit of the delay
+     * @return the scheduled action which can be cancelled, or null if the timer has been stopped
+     */
+    DelayedAction schedule(Runnable action, long delay, TimeUnit unit) {
+        DelayedAction delayed = new DelayedAction(action, delay, unit, Ticker.SYSTEM);
+        synchronized (this) {
+            if (stopped) return null;
+            if (keeper == null) {
+                actions = new DeadlineHeap();
+                keeper = new TimeKeeper(actions);
+                keeper.start();
+            }
+            actions.offer(delayed);
+        }
+        return delayed;
+    }
+
+    synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Stops the timer, the pending actions are cancelled.
+     */
+    synchronized void stop() {
+        if (stopped) return;
+        stopped = true;
+        if (keeper != null) {
+            //time keeper runs all the remaining entries when it stops
+            actions.forEach(action -> action.cancel(false));
+            keeper.stop();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates (without executing) the timeout future of one attempt of a hedged or retried task, usually the newTaskFor
+ * method of the executor.
+ * @author tzielins
+ * @param <T> type of the result
+ */
+interface AttemptFactory<T> {
+
+    TimeoutFuture<T> newAttempt(Callable<T> task, long timeout, TimeUnit unit);
+}
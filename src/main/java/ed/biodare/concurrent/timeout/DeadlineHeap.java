@@ -0,0 +1,348 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Indexed binary heap of futures ordered by their deadlines, which can be used instead of the DelayQueue as the timedOut queue.
+ * <p>It has the same semantics as DelayQueue (the futures can be taken only after their delay passes), but:
+ * <ul>
+ * <li>the deadlines are stored in a primitive long array, so sifting compares longs instead of calling Delayed.compareTo</li>
+ * <li>each TimeoutFutureTask (and the fire-and-forget task) keeps its position in the heap, so removing it once it is done costs O(log n)
+ * instead of the linear scan of DelayQueue.remove. Other TimeoutFuture implementations are still located by the scan.</li>
+ * </ul>
+ * <p>The deadline of the future is read once, when it is inserted, from its getDelay method.
+ * The futures which delay is practically infinite (like the tasks without timeout) are not inserted at all.
+ * <p>The heap is guarded by a single lock, the consumers wait for the head deadline following the same leader pattern
+ * as DelayQueue.
+ * @author tzielins
+ */
+public class DeadlineHeap extends AbstractQueue<TimeoutFuture<?>> implements BlockingQueue<TimeoutFuture<?>> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * System nano time of the heap creation, deadlines are stored relative to it so they never overflow.
+     */
+    private final long origin = System.nanoTime();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a new head is available or the current leader should wake up.
+     */
+    private final Condition available = lock.newCondition();
+
+    /**
+     * Thread designated to wait for the head deadline (see DelayQueue)
+     */
+    private Thread leader;
+
+    private long[] deadlines = new long[INITIAL_CAPACITY];
+
+    private TimeoutFuture<?>[] tasks = new TimeoutFuture<?>[INITIAL_CAPACITY];
+
+    private int size;
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    private static void setIndex(TimeoutFuture<?> task, int index) {
+        if (task instanceof TimeoutFutureTask) ((TimeoutFutureTask<?>)task).queueIndex = index;
+        else if (task instanceof TimeoutRunnable) ((TimeoutRunnable)task).queueIndex = index;
+    }
+
+    private int indexOf(Object o) {
+        if (o instanceof TimeoutFutureTask || o instanceof TimeoutRunnable) {
+            int i = (o instanceof TimeoutFutureTask) ? ((TimeoutFutureTask<?>)o).queueIndex : ((TimeoutRunnable)o).queueIndex;
+            //it can be positioned in another queue
+            return (i >= 0 && i < size && tasks[i] == o) ? i : -1;
+        }
+        if (o != null) {
+            for (int i = 0; i < size; i++) {
+                if (o.equals(tasks[i])) return i;
+            }
+        }
+        return -1;
+    }
+
+    private void siftUp(int k, long deadline, TimeoutFuture<?> task) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (deadline >= deadlines[parent]) break;
+            deadlines[k] = deadlines[parent];
+            tasks[k] = tasks[parent];
+            setIndex(tasks[k], k);
+            k = parent;
+        }
+        deadlines[k] = deadline;
+        tasks[k] = task;
+        setIndex(task, k);
+    }
+
+    private void siftDown(int k, long deadline, TimeoutFuture<?> task) {
+        int half = size >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            int right = child + 1;
+            if (right < size && deadlines[right] < deadlines[child]) child = right;
+            if (deadline <= deadlines[child]) break;
+            deadlines[k] = deadlines[child];
+            tasks[k] = tasks[child];
+            setIndex(tasks[k], k);
+            k = child;
+        }
+        deadlines[k] = deadline;
+        tasks[k] = task;
+        setIndex(task, k);
+    }
+
+    private void grow() {
+        int capacity = tasks.length + (tasks.length >> 1);
+        if (capacity < 0) capacity = Integer.MAX_VALUE;
+        deadlines = Arrays.copyOf(deadlines, capacity);
+        tasks = Arrays.copyOf(tasks, capacity);
+    }
+
+    private TimeoutFuture<?> removeAt(int i) {
+        TimeoutFuture<?> removed = tasks[i];
+        setIndex(removed, -1);
+        int s = --size;
+        long deadline = deadlines[s];
+        TimeoutFuture<?> moved = tasks[s];
+        tasks[s] = null;
+        if (s != i) {
+            siftDown(i, deadline, moved);
+            if (tasks[i] == moved) siftUp(i, deadline, moved);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean offer(TimeoutFuture<?> task) {
+        if (task == null) throw new NullPointerException();
+
+        long delay = task.getDelay(TimeUnit.NANOSECONDS);
+        if (delay >= TimingWheel.INFINITE_DELAY) return true;
+
+        lock.lock();
+        try {
+            long deadline = now() + delay;
+            if (size >= tasks.length) grow();
+            siftUp(size++, deadline, task);
+            if (tasks[0] == task) {
+                leader = null;
+                available.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(TimeoutFuture<?> task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(TimeoutFuture<?> task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    /**
+     * Removes the future from the heap, in O(log n) for TimeoutFutureTask.
+     * @param o future to be removed
+     * @return true if the future was in the heap
+     */
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            int i = indexOf(o);
+            if (i < 0) return false;
+            removeAt(i);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        lock.lock();
+        try {
+            return indexOf(o) >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public TimeoutFuture<?> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                if (size == 0) {
+                    available.await();
+                } else {
+                    long delay = deadlines[0] - now();
+                    if (delay <= 0) return removeAt(0);
+                    if (leader != null) {
+                        available.await();
+                    } else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            available.awaitNanos(delay);
+                        } finally {
+                            if (leader == thisThread) leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && size > 0) available.signal();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public TimeoutFuture<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                if (size == 0) {
+                    if (nanos <= 0) return null;
+                    nanos = available.awaitNanos(nanos);
+                } else {
+                    long delay = deadlines[0] - now();
+                    if (delay <= 0) return removeAt(0);
+                    if (nanos <= 0) return null;
+                    if (nanos < delay || leader != null) {
+                        nanos = available.awaitNanos(nanos);
+                    } else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            long timeLeft = available.awaitNanos(delay);
+                            nanos -= delay - timeLeft;
+                        } finally {
+                            if (leader == thisThread) leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && size > 0) available.signal();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public TimeoutFuture<?> poll() {
+        lock.lock();
+        try {
+            return (size == 0 || deadlines[0] > now()) ? null : removeAt(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the future with the earliest deadline, similarly to DelayQueue it can be one which has not expired yet.
+     */
+    @Override
+    public TimeoutFuture<?> peek() {
+        lock.lock();
+        try {
+            return tasks[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the expired futures to the collection. Similarly to DelayQueue, the futures which deadline has not passed are left in the heap.
+     */
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+
+        lock.lock();
+        try {
+            int n = 0;
+            long now = now();
+            while (n < maxElements && size > 0 && deadlines[0] <= now) {
+                c.add(removeAt(0));
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                setIndex(tasks[i], -1);
+                tasks[i] = null;
+            }
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives iterator over the snapshot of the heap content (in no particular order).
+     */
+    @Override
+    public Iterator<TimeoutFuture<?>> iterator() {
+        TimeoutFuture<?>[] snapshot;
+        lock.lock();
+        try {
+            snapshot = Arrays.copyOf(tasks, size);
+        } finally {
+            lock.unlock();
+        }
+        return Arrays.<TimeoutFuture<?>>asList(snapshot).iterator();
+    }
+}
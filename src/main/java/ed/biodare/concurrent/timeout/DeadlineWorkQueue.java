@@ -0,0 +1,419 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue which gives the tasks in the earliest-deadline-first order, to be used as the workQueue of TimeoutFixPoolExecutor
+ * instead of the FIFO LinkedBlockingQueue, so the task which has only few milliseconds left does not wait behind the tasks
+ * with minutes of budget.
+ * <p>The deadline of a queued TimeoutFutureTask is the latest moment it can start: its own or global deadline, or in
+ * the TimeoutMode.FROM_SUBMIT mode the moment its remaining budget drops below the expected run time. It is read once, when
+ * the task is inserted. The tasks without deadline (and other runnables) are aged: their deadline is the insertion time plus
+ * the aging horizon, and the deadlines of the other tasks are capped at the same horizon, so no task waits longer than the
+ * horizon behind the tasks which came after it.
+ * <p>To scale better than a single lock PriorityBlockingQueue the queue is a relaxed priority queue: it is split into
+ * stripes, each a small binary heap with its own lock. The producers insert into a random stripe and the consumers take
+ * the head of the better of two random stripes, so the order is only approximately EDF (the returned task is among
+ * the most urgent ones, with one stripe it is exactly EDF). The count of the queued tasks is kept in an atomic counter,
+ * the separate lock is used only to park the consumers when the queue is empty.
+ * @author tzielins
+ */
+public class DeadlineWorkQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    static final long DEFAULT_AGING_HORIZON_MILLIS = 1000;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Single heap with its own lock.
+     */
+    static final class Stripe {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        long[] keys = new long[INITIAL_CAPACITY];
+        Runnable[] tasks = new Runnable[INITIAL_CAPACITY];
+        int size;
+
+        /**
+         * Key of the head, read without the lock by the consumers to choose the stripe, Long.MAX_VALUE if empty.
+         */
+        volatile long headKey = Long.MAX_VALUE;
+
+        void push(long key, Runnable task) {
+            if (size == tasks.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                tasks = Arrays.copyOf(tasks, size * 2);
+            }
+            siftUp(size++, key, task);
+            headKey = keys[0];
+        }
+
+        Runnable removeAt(int i) {
+            Runnable removed = tasks[i];
+            int s = --size;
+            long key = keys[s];
+            Runnable moved = tasks[s];
+            tasks[s] = null;
+            if (s != i) {
+                siftDown(i, key, moved);
+                if (tasks[i] == moved) siftUp(i, key, moved);
+            }
+            headKey = size == 0 ? Long.MAX_VALUE : keys[0];
+            return removed;
+        }
+
+        private void siftUp(int k, long key, Runnable task) {
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (key >= keys[parent]) break;
+                keys[k] = keys[parent];
+                tasks[k] = tasks[parent];
+                k = parent;
+            }
+            keys[k] = key;
+            tasks[k] = task;
+        }
+
+        private void siftDown(int k, long key, Runnable task) {
+            int half = size >>> 1;
+            while (k < half) {
+                int child = (k << 1) + 1;
+                int right = child + 1;
+                if (right < size && keys[right] < keys[child]) child = right;
+                if (key <= keys[child]) break;
+                keys[k] = keys[child];
+                tasks[k] = tasks[child];
+                k = child;
+            }
+            keys[k] = key;
+            tasks[k] = task;
+        }
+
+        int indexOf(Object o) {
+            for (int i = 0; i < size; i++) {
+                if (o.equals(tasks[i])) return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * System nano time of the queue creation, the keys are stored relative to it so they never overflow.
+     */
+    private final long origin = System.nanoTime();
+
+    private final long agingHorizon;
+
+    private final Stripe[] stripes;
+
+    /**
+     * Number of queued tasks, incremented after the insertion so it can be transiently lower (even negative) than the real size.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Guards parking of the consumers on the empty queue.
+     */
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition notEmpty = waitLock.newCondition();
+    /**
+     * Number of parked consumers (modified under the waitLock).
+     */
+    private volatile int waiters;
+
+    /**
+     * Creates queue with stripes matching the number of processors and the default aging horizon of 1 second.
+     */
+    public DeadlineWorkQueue() {
+        this(2 * Runtime.getRuntime().availableProcessors(), DEFAULT_AGING_HORIZON_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates queue with the given number of stripes and aging horizon.
+     * @param stripes number of independent heaps, 1 gives the strict EDF order
+     * @param agingHorizon the longest time a task waits behind the tasks which came after it, also the deadline given to
+     * the tasks without deadline
+     * @param unit unit of the horizon
+     */
+    public DeadlineWorkQueue(int stripes, long agingHorizon, TimeUnit unit) {
+        if (stripes < 1) throw new IllegalArgumentException("Number of stripes must be positive not: "+stripes);
+        if (agingHorizon < 0) throw new IllegalArgumentException("Aging horizon cannot be negative: "+agingHorizon);
+        this.agingHorizon = unit.toNanos(agingHorizon);
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) this.stripes[i] = new Stripe();
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    private long keyOf(Runnable task) {
+        long slack = agingHorizon;
+        if (task instanceof TimeoutFutureTask) {
+            slack = Math.min(slack, ((TimeoutFutureTask<?>)task).startSlack());
+        }
+        return now() + slack;
+    }
+
+    private Stripe randomStripe() {
+        return stripes.length == 1 ? stripes[0] : stripes[ThreadLocalRandom.current().nextInt(stripes.length)];
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) throw new NullPointerException();
+        long key = keyOf(task);
+
+        Stripe stripe = randomStripe();
+        //another stripe if this one is busy, so the producers do not queue on one lock
+        if (!stripe.lock.tryLock()) {
+            stripe = randomStripe();
+            stripe.lock.lock();
+        }
+        try {
+            stripe.push(key, task);
+        } finally {
+            stripe.lock.unlock();
+        }
+
+        count.incrementAndGet();
+        if (waiters > 0) signalNotEmpty();
+        return true;
+    }
+
+    private void signalNotEmpty() {
+        waitLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    /**
+     * Takes the head of the better of two random stripes, or of any non empty stripe if both were empty.
+     * @return the task or null if the queue is empty
+     */
+    @Override
+    public Runnable poll() {
+        while (count.get() > 0) {
+            Stripe stripe = betterOfTwo();
+
+            Runnable task = pollFrom(stripe);
+            if (task == null) task = pollAny();
+            if (task != null) {
+                count.decrementAndGet();
+                return task;
+            }
+            //the task counted in count has not been inserted yet
+            Thread.onSpinWait();
+        }
+        return null;
+    }
+
+    private Stripe betterOfTwo() {
+        int n = stripes.length;
+        if (n == 1) return stripes[0];
+        
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(n);
+        //two different stripes
+        int j = (i + 1 + random.nextInt(n - 1)) % n;
+        return stripes[j].headKey < stripes[i].headKey ? stripes[j] : stripes[i];
+    }
+
+    private Runnable pollFrom(Stripe stripe) {
+        if (stripe.headKey == Long.MAX_VALUE) return null;
+        stripe.lock.lock();
+        try {
+            return stripe.size == 0 ? null : stripe.removeAt(0);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Runnable pollAny() {
+        int start = stripes.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Runnable task = pollFrom(stripes[(start + i) % stripes.length]);
+            if (task != null) return task;
+        }
+        return null;
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        for (;;) {
+            Runnable task = poll();
+            if (task != null) return task;
+
+            waitLock.lockInterruptibly();
+            try {
+                waiters++;
+                try {
+                    while (count.get() <= 0) notEmpty.await();
+                } finally {
+                    waiters--;
+                }
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        for (;;) {
+            Runnable task = poll();
+            if (task != null) return task;
+            if (nanos <= 0) return null;
+
+            waitLock.lockInterruptibly();
+            try {
+                waiters++;
+                try {
+                    while (count.get() <= 0 && nanos > 0) nanos = notEmpty.awaitNanos(nanos);
+                } finally {
+                    waiters--;
+                }
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Gives the most urgent task without removing it (exact across the stripes).
+     * @return the head or null if empty
+     */
+    @Override
+    public Runnable peek() {
+        Stripe best = null;
+        for (Stripe stripe : stripes) {
+            if (best == null || stripe.headKey < best.headKey) best = stripe;
+        }
+        if (best == null || best.headKey == Long.MAX_VALUE) return null;
+        best.lock.lock();
+        try {
+            return best.size == 0 ? null : best.tasks[0];
+        } finally {
+            best.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                int i = stripe.indexOf(o);
+                if (i >= 0) {
+                    stripe.removeAt(i);
+                    count.decrementAndGet();
+                    return true;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, count.get());
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+        int n = 0;
+        while (n < maxElements) {
+            Runnable task = poll();
+            if (task == null) break;
+            c.add(task);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Iterator over the snapshot of the queued tasks (in no particular order), its remove removes the task from the queue.
+     * @return iterator of the copy of the queue
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> copy = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                copy.addAll(Arrays.asList(stripe.tasks).subList(0, stripe.size));
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        Iterator<Runnable> it = copy.iterator();
+        return new Iterator<Runnable>() {
+            Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                last = it.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                DeadlineWorkQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+}
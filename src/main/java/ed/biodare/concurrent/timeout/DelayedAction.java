@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.Optional;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Action which is run by a TimeKeeper once its delay passes, so the time keeper threads can be used as a timer for
+ * the internal housekeeping (like the grace checks of the stuck workers) without a separate scheduler.
+ * <p>The action is inserted into a timedOut queue like any TimeoutFuture, and its timeOut method, called by the TimeKeeper,
+ * runs the action on the time keeper thread, so the action must be short and must not block. Cancelling the action
+ * before its delay passes prevents it from running.
+ * @author tzielins
+ */
+class DelayedAction extends FutureTask<Void> implements TimeoutFuture<Void> {
+
+    private final Ticker ticker;
+
+    /**
+     * Ticker time at which the action should run.
+     */
+    private final long runAt;
+
+    /**
+     * Creates the action which should run after the given delay.
+     * @param action code to run
+     * @param delay delay of the action
+     * @param unit unit of the delay
+     * @param ticker source of time for the delay
+     */
+    DelayedAction(Runnable action, long delay, TimeUnit unit, Ticker ticker) {
+        super(action, null);
+        if (ticker == null) throw new IllegalArgumentException("Ticker cannot be null");
+        this.ticker = ticker;
+        this.runAt = ticker.read() + unit.toNanos(delay);
+    }
+
+    /**
+     * Runs the action, called by the TimeKeeper once the delay has passed.
+     * @return true if the action has run, false if it had been cancelled or run before
+     */
+    @Override
+    public boolean timeOut() {
+        if (isDone()) return false;
+        run();
+        return !isCancelled();
+    }
+
+    @Override
+    public boolean isTimedOut() {
+        return false;
+    }
+
+    @Override
+    public Optional<FutureStorable> task() {
+        return Optional.empty();
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(runAt - ticker.read(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o == this) return 0;
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Future of the hedged task, which runs a backup copy of the task if the first attempt has not finished within
+ * the hedge delay, and completes with the result of whichever attempt succeeds first.
+ * <p>Both attempts are ordinary timeout futures of the executor. The backup gets the remaining budget of the first attempt,
+ * so hedging does not extend the timeout of the call. Once an attempt succeeds the other one is timed out at once
+ * (with its timeOut method, as by the time keeper), so the loser frees its worker. The failed attempt does not end
+ * the call while the other one may still succeed, the future fails with the exception of the last failed attempt.
+ * <p>The hedge is a DelayedAction on the timer of the executor, it is cancelled if the first attempt finishes before it.
+ * <p>The attempts are created without the completion queue of the executor (the timed out loser would look like a failed call),
+ * it is the hedged future which is inserted into the queue once it completes.
+ * @author tzielins
+ * @param <T> type of the result
+ */
+class HedgedFuture<T> extends CompletableFuture<T> implements TimeoutFuture<T> {
+
+    private final Callable<T> task;
+    private final long timeoutNanos;
+    private final AttemptFactory<T> factory;
+    private final Executor executor;
+
+    private TimeoutFuture<T> primary;
+    private TimeoutFuture<T> backup;
+    private Future<?> hedgeTimer;
+
+    /**
+     * Number of the launched attempts which have not finished yet.
+     */
+    private int pending;
+
+    private volatile boolean timedOut;
+
+    /**
+     * Creates the hedged future, the attempts are started by start.
+     * @param task code to run in each attempt
+     * @param timeoutNanos timeout of the call
+     * @param factory creates the attempts
+     * @param executor runs the attempts
+     * @param completionQueue if not null the future inserts itself into it once it completes
+     */
+    HedgedFuture(Callable<T> task, long timeoutNanos, AttemptFactory<T> factory, Executor executor, Queue<TimeoutFuture<?>> completionQueue) {
+        if (task == null) throw new NullPointerException();
+        this.task = task;
+        this.timeoutNanos = timeoutNanos;
+        this.factory = factory;
+        this.executor = executor;
+        if (completionQueue != null) whenComplete((v, e) -> completionQueue.offer(this));
+    }
+
+    /**
+     * Launches the first attempt and schedules the hedge.
+     * @param hedgeDelayNanos delay after which the backup is launched, if not positive both attempts start at once
+     * @param timer timer on which the hedge is scheduled
+     * @return this future
+     */
+    HedgedFuture<T> start(long hedgeDelayNanos, ActionScheduler timer) {
+        TimeoutFuture<T> first;
+        synchronized (this) {
+            first = launch(timeoutNanos);
+            primary = first;
+        }
+        if (hedgeDelayNanos <= 0) {
+            hedge();
+        } else if (hedgeDelayNanos < timeoutNanos) {
+            Future<?> action = timer.schedule(this::hedge, hedgeDelayNanos);
+            boolean finished;
+            synchronized (this) {
+                hedgeTimer = action;
+                finished = isDone();
+            }
+            if (finished && action != null) action.cancel(false);
+        }
+        return this;
+    }
+
+    /**
+     * Launches the backup attempt if the call is still running, it gets the remaining budget of the first attempt.
+     */
+    void hedge() {
+        synchronized (this) {
+            if (isDone() || backup != null) return;
+            long remaining = primary.getDelay(TimeUnit.NANOSECONDS);
+            //not started first attempt still has the full budget
+            if (remaining == Long.MAX_VALUE) remaining = timeoutNanos;
+            if (remaining <= 0) return;
+            //the backup joins the scope of the caller as the first attempt (the hedge usually runs on the timer thread)
+            TimeoutFuture<?> scope = primary instanceof TimeoutFutureTask ? ((TimeoutFutureTask<?>) primary).parent() : null;
+            long budget = remaining;
+            try {
+                backup = TimeoutFutureTask.inScope(scope, () -> launch(budget));
+            } catch (RejectedExecutionException e) {
+                //executor is shutting down, the first attempt decides
+            }
+        }
+    }
+
+    /**
+     * Creates and executes an attempt, it must be called holding the lock.
+     */
+    private TimeoutFuture<T> launch(long timeout) {
+        TimeoutFuture<T> attempt = factory.newAttempt(task, timeout, TimeUnit.NANOSECONDS);
+        try {
+            executor.execute(attempt);
+        } catch (RejectedExecutionException e) {
+            //the attempt is not tracked yet, so cancelling it does not end the call
+            attempt.cancel(false);
+            throw e;
+        }
+        pending++;
+        TimeoutFutureTask.stageOf(attempt).whenComplete((v, e) -> attemptDone(attempt, v, e));
+        return attempt;
+    }
+
+    private void attemptDone(TimeoutFuture<T> attempt, T value, Throwable error) {
+        boolean finish;
+        TimeoutFuture<T> loser;
+        Future<?> action;
+        synchronized (this) {
+            pending--;
+            //the call can still be won by the other attempt
+            finish = !isDone() && (error == null || pending == 0);
+            if (!finish) return;
+            loser = attempt == primary ? backup : primary;
+            action = hedgeTimer;
+        }
+        if (action != null) action.cancel(false);
+        if (error == null) {
+            complete(value);
+            if (loser != null) loser.timeOut();
+        } else if (error instanceof TimeoutCancellationException) {
+            timedOut = true;
+            completeExceptionally(error);
+        } else {
+            completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Does nothing, the attempts are run by the executor.
+     */
+    @Override
+    public void run() {
+    }
+
+    /**
+     * Times out all the attempts of the call.
+     * @return true if the call has been timed out by this invocation
+     */
+    @Override
+    public boolean timeOut() {
+        if (isDone()) return false;
+        timedOut = true;
+        boolean done = completeExceptionally(new TimeoutCancellationException("Hedged future was timed out"));
+        if (!done) timedOut = false;
+        stopAttempts(true);
+        return done;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) stopAttempts(false);
+        return cancelled;
+    }
+
+    private void stopAttempts(boolean asTimeout) {
+        TimeoutFuture<T> first, second;
+        Future<?> action;
+        synchronized (this) {
+            first = primary;
+            second = backup;
+            action = hedgeTimer;
+        }
+        if (action != null) action.cancel(false);
+        for (TimeoutFuture<T> attempt : Arrays.asList(first, second)) {
+            if (attempt == null) continue;
+            if (asTimeout) attempt.timeOut();
+            else attempt.cancel(true);
+        }
+    }
+
+    /**
+     * Checks if the call has been timed out, ie none of its attempts completed within the budget.
+     * @return true if timed out
+     */
+    @Override
+    public boolean isTimedOut() {
+        return timedOut && isCompletedExceptionally();
+    }
+
+    /**
+     * Gives the backup attempt, for tests.
+     */
+    synchronized TimeoutFuture<T> backup() {
+        return backup;
+    }
+
+    @Override
+    public Optional<FutureStorable> task() {
+        return task instanceof FutureStorable ? Optional.of((FutureStorable) task) : Optional.empty();
+    }
+
+    /**
+     * Gives the remaining budget of the call, which is the budget of the first attempt.
+     * @param unit unit of the returned delay
+     * @return remaining delay
+     */
+    @Override
+    public long getDelay(TimeUnit unit) {
+        TimeoutFuture<T> first;
+        synchronized (this) {
+            first = primary;
+        }
+        return first == null ? Long.MAX_VALUE : first.getDelay(unit);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o == this) return 0;
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with logarithmic (power of 2) buckets.
+ * <p>Recording a value increments one striped counter (LongAdder) of its bucket, so it can be called from many threads
+ * without contention. The bucket i counts the values in range [2^(i-1), 2^i), so the percentiles are given with the
+ * precision of factor of 2, which is enough to see how close the tasks run to their limits.
+ * @author tzielins
+ */
+public class LatencyHistogram {
+
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records the duration, negative values are recorded as 0.
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        //0 goes to bucket 0, Long.MAX_VALUE to 63
+        buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Gives the current state of the histogram. As the values may be recorded in the meantime the snapshot
+     * is not atomic, but each of its counters is accurate.
+     * @return copy of the counters
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Immutable copy of the histogram counters.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Gives the histogram of the values recorded between the earlier snapshot and this one, for example to see
+         * the latencies in the last period. The max cannot be separated so it is the max of this snapshot.
+         * @param earlier snapshot of the same histogram taken before this one
+         * @return histogram of the interval
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] diff = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                diff[i] = Math.max(0, counts[i] - earlier.counts[i]);
+                total += diff[i];
+            }
+            return new Snapshot(diff, total, Math.max(0, sum - earlier.sum), max);
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param unit unit of the returned value
+         * @return the longest recorded duration
+         */
+        public long getMax(TimeUnit unit) {
+            return unit.convert(max, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param unit unit of the returned value
+         * @return the average duration, 0 if nothing was recorded
+         */
+        public double getMean(TimeUnit unit) {
+            if (count == 0) return 0;
+            return (double)sum / count / unit.toNanos(1);
+        }
+
+        /**
+         * Gives the upper bound of the bucket which contains the given percentile of the recorded durations
+         * (but not more than the max recorded value).
+         * @param percentile value between 0 and 100
+         * @param unit unit of the returned value
+         * @return the duration for the percentile, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be in range 0-100 not: "+percentile);
+            if (count == 0) return 0;
+
+            long rank = (long)Math.ceil(percentile / 100 * count);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long upper = i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return unit.convert(Math.min(upper, max), TimeUnit.NANOSECONDS);
+                }
+            }
+            return unit.convert(max, TimeUnit.NANOSECONDS);
+        }
+    }
+}
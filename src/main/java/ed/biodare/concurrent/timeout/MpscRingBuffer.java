@@ -0,0 +1,121 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer, with the slots preallocated in a ring.
+ * <p>The producers claim the next slot by CAS on the tail counter and publish the element into it, the consumer takes
+ * the element from the head slot and clears it. No nodes are allocated per element, and the producers do not contend with
+ * the consumer. The claimed slot which element is not yet published is seen by the consumer as empty queue for the moment.
+ * <p>Only one thread at a time may call poll or drainTo.
+ * @author tzielins
+ */
+final class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    private final int mask;
+
+    /**
+     * Number of the slots claimed by the producers.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Number of the elements taken by the consumer, written only by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates new ring buffer.
+     * @param capacity minimal capacity, it is rounded up to the power of two
+     */
+    MpscRingBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive not: "+capacity);
+        if (capacity > (1 << 30)) throw new IllegalArgumentException("Capacity too large: "+capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Inserts the element if there is a free slot, can be called by any thread.
+     * @param element the element to insert
+     * @return false if the buffer is full
+     */
+    boolean offer(E element) {
+        if (element == null) throw new NullPointerException();
+        long t;
+        do {
+            t = tail.get();
+            if (t - head.get() > mask) return false;
+        } while (!tail.compareAndSet(t, t + 1));
+        //volatile write, so the consumer which parked after checking the slot is seen by the producer afterwards
+        slots.set((int) t & mask, element);
+        return true;
+    }
+
+    /**
+     * Takes the head element, must be called only by the consumer.
+     * @return the element or null if there is none published
+     */
+    E poll() {
+        long h = head.get();
+        int index = (int) h & mask;
+        E element = slots.get(index);
+        if (element == null) return null;
+        slots.lazySet(index, null);
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Moves the published elements into the collection, must be called only by the consumer.
+     * @param target collection to add the elements to
+     * @param maxElements maximum number of elements to move
+     * @return number of the moved elements
+     */
+    int drainTo(Collection<? super E> target, int maxElements) {
+        long h = head.get();
+        int moved = 0;
+        try {
+            while (moved < maxElements) {
+                int index = (int) (h + moved) & mask;
+                E element = slots.get(index);
+                if (element == null) break;
+                slots.lazySet(index, null);
+                moved++;
+                target.add(element);
+            }
+        } finally {
+            //one ordered write for the whole batch
+            if (moved > 0) head.lazySet(h + moved);
+        }
+        return moved;
+    }
+
+    /**
+     * Gives the number of the claimed slots, which may include the elements being published.
+     * @return approximate size
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how the task submitted with TimeoutExecutor.submitWithRetry is retried: how many attempts it can take,
+ * how long to wait between them and which failures are worth another attempt.
+ * <p>The backoff before the n-th retry is the initial backoff multiplied n-1 times by the multiplier, but not more than
+ * the max backoff. The timeouts of the attempts are retried unless disabled with setRetryTimeouts, the exceptions
+ * thrown by the task are retried if they are instances of one of the retryable types (by default any Exception).
+ * Cancellation (other than the timeout) and Errors are never retried.
+ * <p>The policy is not changed by the executors, so one instance can be shared by many submissions once configured.
+ * Its settings are volatile, so the changes made later are seen by the running retries at their next decision.
+ * @author tzielins
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long backoffNanos;
+    private volatile double multiplier = 2;
+    private volatile long maxBackoffNanos = Long.MAX_VALUE;
+    private volatile boolean retryTimeouts = true;
+    private volatile List<Class<? extends Throwable>> retryOn = Collections.singletonList(Exception.class);
+
+    /**
+     * Creates policy with the exponential backoff doubling after each attempt.
+     * @param maxAttempts maximum number of attempts including the first one
+     * @param backoff delay before the first retry
+     * @param unit unit of the backoff
+     */
+    public RetryPolicy(int maxAttempts, long backoff, TimeUnit unit) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("Max attempts must be at least 1 not: "+maxAttempts);
+        if (backoff < 0) throw new IllegalArgumentException("Backoff cannot be negative: "+backoff);
+        this.maxAttempts = maxAttempts;
+        this.backoffNanos = unit.toNanos(backoff);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBackoff(TimeUnit unit) {
+        return unit.convert(backoffNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the factor by which the backoff grows after each retry, 1 for the constant backoff.
+     * @param multiplier factor not smaller than 1
+     */
+    public void setBackoffMultiplier(double multiplier) {
+        if (multiplier < 1) throw new IllegalArgumentException("Multiplier must be at least 1 not: "+multiplier);
+        this.multiplier = multiplier;
+    }
+
+    public double getBackoffMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * Sets the upper limit of the growing backoff.
+     * @param maxBackoff the longest delay between the attempts
+     * @param unit unit of the maxBackoff
+     */
+    public void setMaxBackoff(long maxBackoff, TimeUnit unit) {
+        if (maxBackoff < 0) throw new IllegalArgumentException("Max backoff cannot be negative: "+maxBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    public long getMaxBackoff(TimeUnit unit) {
+        return unit.convert(maxBackoffNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets if the attempts which have been timed out are retried.
+     * @param retryTimeouts false to end the retries at the first timeout
+     */
+    public void setRetryTimeouts(boolean retryTimeouts) {
+        this.retryTimeouts = retryTimeouts;
+    }
+
+    public boolean isRetryTimeouts() {
+        return retryTimeouts;
+    }
+
+    /**
+     * Sets the types of the exceptions thrown by the task which are retried, the others end the retries at once.
+     * @param types retryable exception types (with their subclasses), none to retry only the timeouts
+     */
+    @SafeVarargs
+    public final void setRetryOn(Class<? extends Throwable>... types) {
+        List<Class<? extends Throwable>> copy = new ArrayList<>(types.length);
+        for (Class<? extends Throwable> type : types) {
+            if (type == null) throw new IllegalArgumentException("Exception type cannot be null");
+            copy.add(type);
+        }
+        this.retryOn = Collections.unmodifiableList(copy);
+    }
+
+    public List<Class<? extends Throwable>> getRetryOn() {
+        return retryOn;
+    }
+
+    /**
+     * Checks if the failure of an attempt can be retried.
+     * @param error exception with which the attempt completed
+     * @return true if it is worth another attempt
+     */
+    boolean isRetryable(Throwable error) {
+        if (error instanceof TimeoutCancellationException) return retryTimeouts;
+        if (error instanceof CancellationException || error instanceof Error) return false;
+        for (Class<? extends Throwable> type : retryOn) {
+            if (type.isInstance(error)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives the delay before the next attempt.
+     * @param attempt number of the attempts made so far (starting from 1)
+     * @return delay in nanoseconds
+     */
+    long backoffNanos(int attempt) {
+        double backoff = backoffNanos * Math.pow(multiplier, attempt - 1);
+        return backoff >= maxBackoffNanos ? maxBackoffNanos : (long) backoff;
+    }
+}
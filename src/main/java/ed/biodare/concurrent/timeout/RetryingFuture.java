@@ -0,0 +1,232 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Future of the task which is retried according to the RetryPolicy, it represents the whole sequence of its attempts.
+ * <p>Each attempt is an ordinary timeout future of the executor, limited by its own timeout and by the deadline of the
+ * whole sequence (so the last attempt gets only what is left of the budget). The next attempt is scheduled on the timer
+ * of the executor after the backoff, so no worker sleeps between the attempts, and it is not scheduled at all if the
+ * budget would pass during the backoff. The future completes with the result of the first successful attempt, or fails
+ * with the outcome of the last one.
+ * <p>Timing out or cancelling the future stops the current attempt and the pending retry.
+ * <p>The attempts are created without the completion queue of the executor, it is the retried future which is inserted
+ * into the queue once the whole sequence completes.
+ * @author tzielins
+ * @param <T> type of the result
+ */
+class RetryingFuture<T> extends CompletableFuture<T> implements TimeoutFuture<T> {
+
+    private final Callable<T> task;
+    private final long attemptTimeoutNanos;
+    private final RetryPolicy policy;
+    private final AttemptFactory<T> factory;
+    private final Executor executor;
+    private final Ticker ticker;
+
+    /**
+     * Deadline of the sequence in the ticker time or TimeoutFutureTask.NO_DEADLINE.
+     */
+    private final long deadline;
+
+    private ActionScheduler timer;
+
+    private TimeoutFuture<T> current;
+
+    /**
+     * Parent scope of the first attempt which is passed to the next ones.
+     */
+    private TimeoutFuture<?> scope;
+
+    private Future<?> pendingRetry;
+
+    private int attempts;
+
+    private volatile boolean timedOut;
+
+    /**
+     * Creates the retried future, the first attempt is started by start.
+     * @param task code to run in each attempt
+     * @param attemptTimeoutNanos timeout of a single attempt
+     * @param deadline deadline of the whole sequence in the ticker time, the factory should limit the attempts with it
+     * @param ticker source of time of the deadline
+     * @param policy the retry policy
+     * @param factory creates the attempts
+     * @param executor runs the attempts
+     * @param completionQueue if not null the future inserts itself into it once it completes
+     */
+    RetryingFuture(Callable<T> task, long attemptTimeoutNanos, long deadline, Ticker ticker, RetryPolicy policy,
+            AttemptFactory<T> factory, Executor executor, Queue<TimeoutFuture<?>> completionQueue) {
+        if (task == null || policy == null) throw new NullPointerException();
+        this.task = task;
+        this.attemptTimeoutNanos = attemptTimeoutNanos;
+        this.deadline = deadline;
+        this.ticker = ticker;
+        this.policy = policy;
+        this.factory = factory;
+        this.executor = executor;
+        if (completionQueue != null) whenComplete((v, e) -> completionQueue.offer(this));
+    }
+
+    /**
+     * Launches the first attempt.
+     * @param timer timer on which the retries are scheduled
+     * @return this future
+     */
+    RetryingFuture<T> start(ActionScheduler timer) {
+        this.timer = timer;
+        synchronized (this) {
+            launch();
+        }
+        return this;
+    }
+
+    /**
+     * Creates and executes the next attempt, it must be called holding the lock.
+     */
+    private Void launch() {
+        TimeoutFuture<T> attempt = factory.newAttempt(task, attemptTimeoutNanos, TimeUnit.NANOSECONDS);
+        if (attempts == 0 && attempt instanceof TimeoutFutureTask) scope = ((TimeoutFutureTask<?>) attempt).parent();
+        attempts++;
+        current = attempt;
+        TimeoutFutureTask.stageOf(attempt).whenComplete((v, e) -> attemptDone(attempt, v, e));
+        executor.execute(attempt);
+        return null;
+    }
+
+    private void attemptDone(TimeoutFuture<T> attempt, T value, Throwable error) {
+        if (error == null) {
+            complete(value);
+            return;
+        }
+        boolean retrying = false;
+        synchronized (this) {
+            if (isDone() || attempt != current) return;
+            if (attempts < policy.getMaxAttempts() && policy.isRetryable(error)) {
+                long backoff = policy.backoffNanos(attempts);
+                //no point in starting the attempt which could not finish within the budget
+                if (getDelay(TimeUnit.NANOSECONDS) > backoff) {
+                    pendingRetry = timer.schedule(this::retry, backoff);
+                    retrying = pendingRetry != null;
+                }
+            }
+        }
+        if (!retrying) fail(error);
+    }
+
+    /**
+     * Launches the next attempt once the backoff has passed, called on the timer thread.
+     */
+    void retry() {
+        RejectedExecutionException rejected = null;
+        synchronized (this) {
+            if (isDone()) return;
+            pendingRetry = null;
+            try {
+                //the attempt joins the scope of the caller as the first one
+                TimeoutFutureTask.inScope(scope, this::launch);
+            } catch (RejectedExecutionException e) {
+                rejected = e;
+            }
+        }
+        if (rejected != null) fail(rejected);
+    }
+
+    private void fail(Throwable error) {
+        if (error instanceof TimeoutCancellationException) timedOut = true;
+        completeExceptionally(error);
+    }
+
+    /**
+     * Does nothing, the attempts are run by the executor.
+     */
+    @Override
+    public void run() {
+    }
+
+    /**
+     * Times out the current attempt and stops the retries.
+     * @return true if the sequence has been timed out by this invocation
+     */
+    @Override
+    public boolean timeOut() {
+        if (isDone()) return false;
+        timedOut = true;
+        boolean done = completeExceptionally(new TimeoutCancellationException("Retried future was timed out"));
+        if (!done) timedOut = false;
+        stopAttempts(true);
+        return done;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) stopAttempts(mayInterruptIfRunning);
+        return cancelled;
+    }
+
+    private void stopAttempts(boolean interrupt) {
+        TimeoutFuture<T> attempt;
+        Future<?> retry;
+        synchronized (this) {
+            attempt = current;
+            retry = pendingRetry;
+        }
+        if (retry != null) retry.cancel(false);
+        if (attempt == null) return;
+        if (timedOut) attempt.timeOut();
+        else attempt.cancel(interrupt);
+    }
+
+    /**
+     * Checks if the sequence has ended with a timeout, either of its last attempt or of the whole budget.
+     * @return true if timed out
+     */
+    @Override
+    public boolean isTimedOut() {
+        return timedOut && isCompletedExceptionally();
+    }
+
+    /**
+     * Gives the number of the attempts started so far.
+     * @return number of attempts
+     */
+    synchronized int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public Optional<FutureStorable> task() {
+        return task instanceof FutureStorable ? Optional.of((FutureStorable) task) : Optional.empty();
+    }
+
+    /**
+     * Gives the remaining budget of the whole sequence.
+     * @param unit unit of the returned delay
+     * @return remaining delay, Long.MAX_VALUE if there is no deadline
+     */
+    @Override
+    public long getDelay(TimeUnit unit) {
+        if (deadline == TimeoutFutureTask.NO_DEADLINE) return Long.MAX_VALUE;
+        return unit.convert(deadline - ticker.read(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o == this) return 0;
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+}
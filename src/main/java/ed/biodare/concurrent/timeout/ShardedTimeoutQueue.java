@@ -0,0 +1,173 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Timed out queue split into independent shards, each of them consumed by its own TimeKeeper.
+ * <p>The futures are assigned to the shards by their identity hash, so arming (put) and disarming (remove) of a future always
+ * go to the same shard without storing anything in the future, and different futures contend only for the lock of their shard.
+ * <p>TimeoutFixPoolExecutor starts a TimeKeeper thread per shard, so when many tasks expire together their cancellation
+ * (and the interrupts of the worker threads) are processed in parallel.
+ * <p>The queue itself cannot be consumed by blocking methods (take, poll with timeout), the consumers must wait on the shards,
+ * so the time keepers for it have to be started with TimeKeeper.startFor.
+ * @author tzielins
+ */
+public class ShardedTimeoutQueue extends AbstractQueue<TimeoutFuture<?>> implements BlockingQueue<TimeoutFuture<?>> {
+
+    private final List<BlockingQueue<TimeoutFuture<?>>> shards;
+
+    /**
+     * Creates queue with the given number of DeadlineHeap shards.
+     * @param shards number of shards, typically not more than the number of cores
+     */
+    public ShardedTimeoutQueue(int shards) {
+        this(shards, DeadlineHeap::new);
+    }
+
+    /**
+     * Creates queue with the given number of shards.
+     * @param shards number of shards, typically not more than the number of cores
+     * @param shardFactory creates the queues for the shards, for example DeadlineHeap::new or TimingWheel::new
+     */
+    public ShardedTimeoutQueue(int shards, Supplier<BlockingQueue<TimeoutFuture<?>>> shardFactory) {
+        if (shards <= 0) throw new IllegalArgumentException("Number of shards must be positive not: "+shards);
+
+        List<BlockingQueue<TimeoutFuture<?>>> list = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            BlockingQueue<TimeoutFuture<?>> shard = shardFactory.get();
+            if (shard == null) throw new IllegalArgumentException("Shard factory cannot give null");
+            list.add(shard);
+        }
+        this.shards = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Gives the shards, each of them should be consumed by its own thread.
+     * @return unmodifiable list of shards
+     */
+    public List<BlockingQueue<TimeoutFuture<?>>> shards() {
+        return shards;
+    }
+
+    private BlockingQueue<TimeoutFuture<?>> shardOf(Object o) {
+        int h = System.identityHashCode(o);
+        h ^= (h >>> 16);
+        return shards.get(Math.floorMod(h, shards.size()));
+    }
+
+    @Override
+    public boolean offer(TimeoutFuture<?> task) {
+        if (task == null) throw new NullPointerException();
+        return shardOf(task).offer(task);
+    }
+
+    @Override
+    public void put(TimeoutFuture<?> task) throws InterruptedException {
+        if (task == null) throw new NullPointerException();
+        shardOf(task).put(task);
+    }
+
+    @Override
+    public boolean offer(TimeoutFuture<?> task, long timeout, TimeUnit unit) throws InterruptedException {
+        if (task == null) throw new NullPointerException();
+        return shardOf(task).offer(task, timeout, unit);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        return shardOf(o).remove(o);
+    }
+
+    /**
+     * Not supported, the shards have to be consumed separately.
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public TimeoutFuture<?> take() {
+        throw new UnsupportedOperationException("Shards have to be consumed separately, see shards()");
+    }
+
+    /**
+     * Not supported, the shards have to be consumed separately.
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public TimeoutFuture<?> poll(long timeout, TimeUnit unit) {
+        throw new UnsupportedOperationException("Shards have to be consumed separately, see shards()");
+    }
+
+    /**
+     * Gives the first expired future found in the shards.
+     */
+    @Override
+    public TimeoutFuture<?> poll() {
+        for (BlockingQueue<TimeoutFuture<?>> shard : shards) {
+            TimeoutFuture<?> task = shard.poll();
+            if (task != null) return task;
+        }
+        return null;
+    }
+
+    @Override
+    public TimeoutFuture<?> peek() {
+        for (BlockingQueue<TimeoutFuture<?>> shard : shards) {
+            TimeoutFuture<?> task = shard.peek();
+            if (task != null) return task;
+        }
+        return null;
+    }
+
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+
+        int n = 0;
+        for (BlockingQueue<TimeoutFuture<?>> shard : shards) {
+            if (n >= maxElements) break;
+            n += shard.drainTo(c, maxElements - n);
+        }
+        return n;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        long capacity = 0;
+        for (BlockingQueue<TimeoutFuture<?>> shard : shards) capacity += shard.remainingCapacity();
+        return (int)Math.min(capacity, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int size() {
+        int n = 0;
+        for (BlockingQueue<TimeoutFuture<?>> shard : shards) n += shard.size();
+        return n;
+    }
+
+    /**
+     * Iterates over the shards one after another, it is supported only if the shards support iteration.
+     */
+    @Override
+    public Iterator<TimeoutFuture<?>> iterator() {
+        return shards.stream().flatMap(Collection::stream).iterator();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Timed out queue with its TimeKeeper threads which can be shared by many executors.
+ * <p>Normally each TimeoutFixPoolExecutor has its own timedOut queue and TimeKeeper thread. When many executors are used
+ * (for example one per pipeline stage) they can register with the same timer service instead, so there is only one
+ * (or few for sharded queue) timer thread for all of them.
+ * <p>The service is reference counted: the time keepers are started when the first executor registers and stopped
+ * once the last registered executor terminates. They are started again if a new executor registers later.
+ * <p>The JVM-wide instance, returned by getDefault, uses a DeadlineHeap, or a ShardedTimeoutQueue of deadline heaps
+ * on machines with many cores.
+ * @author tzielins
+ */
+public class SharedTimerService {
+
+    private static final SharedTimerService DEFAULT = new SharedTimerService(defaultQueue());
+
+    /**
+     * Queue of the tasks to be timed out shared by the executors.
+     */
+    private final BlockingQueue<TimeoutFuture<?>> timedOut;
+
+    /**
+     * Number of executors that use the service.
+     */
+    private int registered;
+
+    /**
+     * Time keepers which serve the queue while there are registered executors.
+     */
+    private List<TimeKeeper> timeKeepers = Collections.emptyList();
+
+    /**
+     * Creates new timer service using the given queue.
+     * @param timedOut empty queue which will keep the running tasks of the registered executors, for example DeadlineHeap
+     */
+    public SharedTimerService(BlockingQueue<TimeoutFuture<?>> timedOut) {
+        if (timedOut == null) throw new IllegalArgumentException("TimedOut queue cannot be null");
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * Gives the JVM-wide timer service.
+     * @return the shared service instance
+     */
+    public static SharedTimerService getDefault() {
+        return DEFAULT;
+    }
+
+    static BlockingQueue<TimeoutFuture<?>> defaultQueue() {
+        int shards = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 4));
+        return shards == 1 ? new DeadlineHeap() : new ShardedTimeoutQueue(shards);
+    }
+
+    /**
+     * Gives the queue into which the tasks of the registered executors are inserted.
+     * @return the shared timedOut queue
+     */
+    public BlockingQueue<TimeoutFuture<?>> timedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Registers a new user of the service, the first registration starts the time keepers.
+     */
+    synchronized void register() {
+        if (registered++ == 0) {
+            timeKeepers = TimeKeeper.startFor(timedOut, false);
+        }
+    }
+
+    /**
+     * Unregisters the user of the service, the time keepers are stopped when the last one is gone.
+     */
+    synchronized void unregister() {
+        if (registered == 0) throw new IllegalStateException("Service has no registered users");
+        if (--registered == 0) {
+            timeKeepers.forEach(TimeKeeper::stop);
+            timeKeepers = Collections.emptyList();
+        }
+    }
+
+    /**
+     * Gives the number of the executors which use the service.
+     * @return number of registered executors
+     */
+    public synchronized int getRegistered() {
+        return registered;
+    }
+
+    /**
+     * Checks if the time keepers of the service are running.
+     * @return true if there are running time keepers
+     */
+    public synchronized boolean isRunning() {
+        return timeKeepers.stream().anyMatch(TimeKeeper::isRunning);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compensation of a fixed pool for the workers which are stuck in timed out tasks that ignore the interrupt.
+ * <p>Once a started task is timed out, a check is scheduled after the grace period. If the worker is still running the task
+ * at that time, it is recorded as a zombie and the pool grows by one thread (up to the limit of extra threads), so the other
+ * tasks still have the same number of workers. When the zombie finally returns from the task the pool shrinks back,
+ * and the ThreadPoolExecutor retires the surplus worker once it becomes idle.
+ * <p>The grace checks are run by the executor ActionTimer, so the executor timedOut queue (which may be shared or per worker)
+ * is not used for them.
+ * @author tzielins
+ */
+class StuckWorkers {
+
+    private final TimeoutFixPoolExecutor<?> pool;
+
+    private final ActionTimer timer;
+
+    private final TimeoutMetrics metrics;
+
+    /**
+     * Grace period in nanoseconds, negative if the compensation is disabled.
+     */
+    private volatile long graceNanos = -1;
+
+    /**
+     * Maximum number of extra threads.
+     */
+    private volatile int maxExtra;
+
+    /**
+     * Workers which are stuck in timed out tasks (guarded by this).
+     */
+    private final Map<Thread, TimeoutFuture<?>> zombies = new HashMap<>();
+
+    /**
+     * Number of threads added to the pool (guarded by this).
+     */
+    private int extra;
+
+    /**
+     * Creates disabled compensation of the given pool.
+     * @param pool the pool which size is adjusted
+     * @param timer timer of the grace checks
+     * @param metrics metrics in which the stuck workers are recorded
+     */
+    StuckWorkers(TimeoutFixPoolExecutor<?> pool, ActionTimer timer, TimeoutMetrics metrics) {
+        this.pool = pool;
+        this.timer = timer;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Enables the compensation.
+     * @param grace time given to the worker to leave the timed out task
+     * @param unit unit of the grace
+     * @param maxExtraThreads limit of the replacement threads
+     */
+    void enable(long grace, TimeUnit unit, int maxExtraThreads) {
+        if (grace < 0) throw new IllegalArgumentException("Grace period cannot be negative: "+grace);
+        if (maxExtraThreads < 1) throw new IllegalArgumentException("Number of extra threads must be positive not: "+maxExtraThreads);
+        maxExtra = maxExtraThreads;
+        graceNanos = unit.toNanos(grace);
+    }
+
+    /**
+     * Disables the compensation of the tasks timed out from now on, the already added threads are retired
+     * once their zombies return.
+     */
+    void disable() {
+        graceNanos = -1;
+    }
+
+    boolean isEnabled() {
+        return graceNanos >= 0;
+    }
+
+    long getGrace(TimeUnit unit) {
+        return unit.convert(graceNanos, TimeUnit.NANOSECONDS);
+    }
+
+    int getMaxExtra() {
+        return maxExtra;
+    }
+
+    /**
+     * Schedules the grace check of the task which has just been timed out while running.
+     * @param task the timed out task
+     */
+    void timedOut(TimeoutFutureTask<?> task) {
+        long grace = graceNanos;
+        if (grace < 0) return;
+        timer.schedule(() -> check(task), grace, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the worker as zombie if it still runs the task.
+     * @param task task timed out a grace period ago
+     */
+    synchronized void check(TimeoutFutureTask<?> task) {
+        Thread worker = task.runner();
+        //the worker clears the runner before it calls returned, so the zombie cannot be missed
+        if (worker == null || pool.isTerminated()) return;
+        if (zombies.putIfAbsent(worker, task) != null) return;
+
+        metrics.stuck();
+        resize();
+    }
+
+    /**
+     * Called by the worker once it finished a task, retires one extra thread if the worker was a zombie.
+     * @param worker the worker thread
+     */
+    synchronized void returned(Thread worker) {
+        if (zombies.remove(worker) == null) return;
+
+        metrics.unstuck();
+        resize();
+    }
+
+    /**
+     * Makes the number of extra threads match the number of zombies.
+     */
+    private void resize() {
+        int target = Math.min(zombies.size(), maxExtra);
+        int delta = target - extra;
+        if (delta == 0) return;
+        extra = target;
+        pool.resizePool(delta);
+    }
+
+    /**
+     * Gives the current zombies.
+     * @return map of the stuck worker threads and the timed out tasks they still run
+     */
+    synchronized Map<Thread, TimeoutFuture<?>> zombies() {
+        return Collections.unmodifiableMap(new HashMap<>(zombies));
+    }
+
+    synchronized int extraThreads() {
+        return extra;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+/**
+ * Monotonic source of time in nanoseconds used by the timeout futures to compute their delays.
+ * <p>Similarly to System.nanoTime the value has an arbitrary origin, so only the differences between two readings
+ * are meaningful, but it is not affected by the changes of the wall clock (NTP adjustments) as System.currentTimeMillis is.
+ * <p>The default SYSTEM ticker reads System.nanoTime, other implementations can be used in tests or to share a coarser clock.
+ * Note that the timedOut queues (DeadlineHeap, TimingWheel...) wait using the system nano time, the ticker only decides
+ * the remaining delay reported by the futures.
+ * @author tzielins
+ */
+@FunctionalInterface
+public interface Ticker {
+
+    /**
+     * Ticker reading System.nanoTime.
+     */
+    public static final Ticker SYSTEM = System::nanoTime;
+
+    /**
+     * Reads current time.
+     * @return time in nanoseconds since an arbitrary origin
+     */
+    public long read();
+}
@@ -6,6 +6,7 @@
 package ed.biodare.concurrent.timeout;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
@@ -17,6 +18,9 @@ import java.util.concurrent.Executors;
  * the timeout behaviour (the timeout is set inside the future, the delay queue assures its execution at right time and timekeeper will invoke 
  * the timeout method. However it can use and other blocking queue and timeout tasks as soon as they become available.
  * <p>This implementation awaits tasks for the timedOut queue and call their timeout method.
+ * With the TimingWheel as the queue, the take calls made by time keeper advance the wheel tick by tick.
+ * The ShardedTimeoutQueue is served by several time keepers, one per shard, which are created by startFor
+ * (a keeper cannot be created for the sharded queue itself).
  * @author tzielins
  */
 class TimeKeeper implements Runnable {
@@ -47,12 +51,33 @@ class TimeKeeper implements Runnable {
         
         TimeKeeper(BlockingQueue<TimeoutFuture<?>> timedOut) {
             if (timedOut == null) throw new IllegalArgumentException("TimedOut queue cannot be null");
+            //its take is not supported, so the keeper would die at the first call
+            if (timedOut instanceof ShardedTimeoutQueue) throw new IllegalArgumentException("Sharded queue needs a keeper per shard, use startFor");
             
             this.timedOut = timedOut;            
             stop = false;
             //this.myThread = Executors.defaultThreadFactory().newThread(this);
         }
         
+        /**
+         * Creates and starts time keepers for the given queue, one for each shard if the queue is a ShardedTimeoutQueue.
+         * @param timedOut queue of the tasks to be timed out
+         * @param debug if true the keepers print out status messages
+         * @return started time keepers
+         */
+        static List<TimeKeeper> startFor(BlockingQueue<TimeoutFuture<?>> timedOut,boolean debug) {
+            List<BlockingQueue<TimeoutFuture<?>>> queues = (timedOut instanceof ShardedTimeoutQueue) ?
+                    ((ShardedTimeoutQueue)timedOut).shards() : Collections.singletonList(timedOut);
+            
+            List<TimeKeeper> keepers = new ArrayList<>(queues.size());
+            for (BlockingQueue<TimeoutFuture<?>> queue : queues) {
+                TimeKeeper keeper = new TimeKeeper(queue, debug);
+                keeper.start();
+                keepers.add(keeper);
+            }
+            return keepers;
+        }
+        
         void start() {
             myThread.start();
         }
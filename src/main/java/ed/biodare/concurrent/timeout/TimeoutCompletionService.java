@@ -0,0 +1,338 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Completion service for the timeout executors, which collects their finished futures into two channels: the completed
+ * ones (successfully, with exception or cancelled) and the timed out ones.
+ * <p>The service is attached to the executor by passing its getCompletionQueue as the completionQueue of the executor
+ * constructor (the same service can collect from many executors). Each channel is a preallocated lock-free ring buffer
+ * (see MpscRingBuffer), so the finishing tasks do not allocate queue nodes nor take locks, and the consumer can take
+ * the futures one by one (take, poll) or in batches (drainTo). The consumer waits for the futures according to the
+ * WaitStrategy of the service.
+ * <p>The futures are offered from the task completion, which can happen in the time keeper thread, so the full channel never
+ * blocks the producer: the surplus futures spill into an unbounded overflow queue read after the ring (so the order is then
+ * only approximate), and are counted by getOverflowed. The capacity should cover the expected bursts of completions.
+ * <p>Each channel supports a single consumer thread at a time.
+ * <pre>
+ *       TimeoutCompletionService&lt;Integer&gt; service = new TimeoutCompletionService&lt;&gt;(1024);
+ *       TimeoutFixPoolExecutor&lt;Integer&gt; executor = new TimeoutFixPoolExecutor&lt;&gt;(8, 1, TimeUnit.SECONDS, service.getCompletionQueue());
+ * </pre>
+ * @author tzielins
+ * @param <V> type of the result of the futures
+ */
+public class TimeoutCompletionService<V> {
+
+    /**
+     * How the consumer waits for the futures when its channel is empty.
+     */
+    public enum WaitStrategy {
+        /**
+         * Spins on the CPU, for the lowest latency when a core can be dedicated to the consumer.
+         */
+        BUSY_SPIN,
+        /**
+         * Yields the CPU between the checks.
+         */
+        YIELDING,
+        /**
+         * Sleeps for short periods between the checks, the producers do not wake up the consumer.
+         */
+        SLEEPING,
+        /**
+         * Parks the consumer till a producer wakes it up.
+         */
+        BLOCKING
+    }
+
+    /**
+     * Sleeping time of the SLEEPING strategy.
+     */
+    static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Channel<TimeoutFuture<V>> completed;
+
+    private final Channel<TimeoutFuture<V>> timedOut;
+
+    private final WaitStrategy waitStrategy;
+
+    private final Queue<TimeoutFuture<?>> completionQueue = new RoutingQueue();
+
+    /**
+     * Creates new service with the BLOCKING wait strategy.
+     * @param capacity capacity of each channel (rounded up to power of two)
+     */
+    public TimeoutCompletionService(int capacity) {
+        this(capacity, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Creates new service.
+     * @param capacity capacity of each channel (rounded up to power of two)
+     * @param waitStrategy how the consumers wait for the futures
+     */
+    public TimeoutCompletionService(int capacity, WaitStrategy waitStrategy) {
+        if (waitStrategy == null) throw new IllegalArgumentException("Wait strategy cannot be null");
+        this.waitStrategy = waitStrategy;
+        this.completed = new Channel<>(capacity, waitStrategy);
+        this.timedOut = new Channel<>(capacity, waitStrategy);
+    }
+
+    /**
+     * Gives the queue which should be passed as the completionQueue to the executors which tasks this service collects.
+     * It routes the offered futures into the channels, the other queue operations are not supported.
+     * @return write end of the service
+     */
+    public Queue<TimeoutFuture<?>> getCompletionQueue() {
+        return completionQueue;
+    }
+
+    /**
+     * Takes the next completed future, waiting if none is present.
+     * @return the completed (not timed out) future
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public TimeoutFuture<V> take() throws InterruptedException {
+        return completed.poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the next completed future if present.
+     * @return the completed future or null
+     */
+    public TimeoutFuture<V> poll() {
+        return completed.poll();
+    }
+
+    /**
+     * Takes the next completed future, waiting up to the timeout if none is present.
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     * @return the completed future or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public TimeoutFuture<V> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return completed.poll(unit.toNanos(timeout));
+    }
+
+    /**
+     * Moves the present completed futures into the collection, without waiting.
+     * @param target collection to add the futures to
+     * @param maxElements maximum number of futures to move
+     * @return number of moved futures
+     */
+    public int drainTo(Collection<? super TimeoutFuture<V>> target, int maxElements) {
+        return completed.drainTo(target, maxElements);
+    }
+
+    /**
+     * Takes the next timed out future, waiting if none is present.
+     * @return the timed out future
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public TimeoutFuture<V> takeTimedOut() throws InterruptedException {
+        return timedOut.poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the next timed out future if present.
+     * @return the timed out future or null
+     */
+    public TimeoutFuture<V> pollTimedOut() {
+        return timedOut.poll();
+    }
+
+    /**
+     * Takes the next timed out future, waiting up to the timeout if none is present.
+     * @param timeout how long to wait
+     * @param unit unit of the timeout
+     * @return the timed out future or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public TimeoutFuture<V> pollTimedOut(long timeout, TimeUnit unit) throws InterruptedException {
+        return timedOut.poll(unit.toNanos(timeout));
+    }
+
+    /**
+     * Moves the present timed out futures into the collection, without waiting.
+     * @param target collection to add the futures to
+     * @param maxElements maximum number of futures to move
+     * @return number of moved futures
+     */
+    public int drainTimedOutTo(Collection<? super TimeoutFuture<V>> target, int maxElements) {
+        return timedOut.drainTo(target, maxElements);
+    }
+
+    /**
+     * @return approximate number of the completed futures waiting for the consumer
+     */
+    public int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * @return approximate number of the timed out futures waiting for the consumer
+     */
+    public int getTimedOutCount() {
+        return timedOut.size();
+    }
+
+    /**
+     * Gives the number of futures which did not fit into the ring of their channel and were put into the overflow queue.
+     * @return number of the overflows since creation
+     */
+    public long getOverflowed() {
+        return completed.overflowed.sum() + timedOut.overflowed.sum();
+    }
+
+    /**
+     * @return capacity of each channel
+     */
+    public int getCapacity() {
+        return completed.ring.capacity();
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Write end of the service, passed to the futures as their completion queue.
+     */
+    final class RoutingQueue extends AbstractQueue<TimeoutFuture<?>> {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean offer(TimeoutFuture<?> future) {
+            TimeoutFuture<V> f = (TimeoutFuture<V>) future;
+            if (f.isTimedOut()) timedOut.offer(f);
+            else completed.offer(f);
+            return true;
+        }
+
+        @Override
+        public TimeoutFuture<?> poll() {
+            TimeoutFuture<?> f = completed.poll();
+            return f != null ? f : timedOut.poll();
+        }
+
+        @Override
+        public TimeoutFuture<?> peek() {
+            throw new UnsupportedOperationException("Completion queue can only be offered to or polled");
+        }
+
+        @Override
+        public Iterator<TimeoutFuture<?>> iterator() {
+            throw new UnsupportedOperationException("Completion queue can only be offered to or polled");
+        }
+
+        @Override
+        public int size() {
+            return completed.size() + timedOut.size();
+        }
+    }
+
+    /**
+     * Ring buffer with the overflow queue and the waiting consumer.
+     */
+    static final class Channel<E> {
+
+        final MpscRingBuffer<E> ring;
+
+        final Queue<E> overflow = new ConcurrentLinkedQueue<>();
+
+        final LongAdder overflowed = new LongAdder();
+
+        final WaitStrategy strategy;
+
+        /**
+         * Consumer parked in the BLOCKING strategy, null if none.
+         */
+        volatile Thread waiter;
+
+        Channel(int capacity, WaitStrategy strategy) {
+            this.ring = new MpscRingBuffer<>(capacity);
+            this.strategy = strategy;
+        }
+
+        void offer(E element) {
+            if (!ring.offer(element)) {
+                overflowed.increment();
+                overflow.offer(element);
+            }
+            Thread w = waiter;
+            if (w != null) LockSupport.unpark(w);
+        }
+
+        E poll() {
+            E e = ring.poll();
+            return e != null ? e : overflow.poll();
+        }
+
+        int drainTo(Collection<? super E> target, int maxElements) {
+            if (target == null) throw new NullPointerException();
+            int moved = ring.drainTo(target, maxElements);
+            E e;
+            while (moved < maxElements && (e = overflow.poll()) != null) {
+                target.add(e);
+                moved++;
+            }
+            return moved;
+        }
+
+        int size() {
+            return ring.size() + overflow.size();
+        }
+
+        /**
+         * Takes the element waiting according to the strategy.
+         * @param nanos how long to wait, Long.MAX_VALUE for no limit
+         * @return the element or null if none arrived in time
+         */
+        E poll(long nanos) throws InterruptedException {
+            E e = poll();
+            if (e != null) return e;
+
+            final long end = nanos == Long.MAX_VALUE ? 0 : System.nanoTime() + nanos;
+            while (true) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                long left = nanos == Long.MAX_VALUE ? Long.MAX_VALUE : end - System.nanoTime();
+                if (left <= 0) return null;
+
+                switch (strategy) {
+                    case BUSY_SPIN: Thread.onSpinWait(); break;
+                    case YIELDING: Thread.yield(); break;
+                    case SLEEPING: LockSupport.parkNanos(this, Math.min(left, SLEEP_NANOS)); break;
+                    case BLOCKING: {
+                        waiter = Thread.currentThread();
+                        try {
+                            //checked again after registering, so the producer which missed the waiter has already published
+                            e = poll();
+                            if (e != null) return e;
+                            if (left == Long.MAX_VALUE) LockSupport.park(this);
+                            else LockSupport.parkNanos(this, left);
+                        } finally {
+                            waiter = null;
+                        }
+                        break;
+                    }
+                    default: throw new IllegalStateException("Unknown strategy: "+strategy);
+                }
+                e = poll();
+                if (e != null) return e;
+            }
+        }
+    }
+}
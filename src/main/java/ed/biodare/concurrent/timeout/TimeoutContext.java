@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout scope of the task running on the current thread.
+ * <p>Every TimeoutFuture created by the executors of this package (on any of them) while a task runs becomes the child
+ * of the running task: its timeout is limited to the remaining budget of the parent (min of its own timeout and the
+ * parent remaining time), and it is cancelled once the parent is cancelled, or timed out once the parent is timed out.
+ * That way a job which fans out into more tasks cannot run beyond the budget of its caller, and its unfinished tasks
+ * stop wasting the workers as soon as the result is not needed. The children of a parent which completed normally
+ * keep running within their limits.
+ * <p>The context lets the task code check its own remaining budget, and run the code which submits background tasks
+ * outside of the scope.
+ * <p>It is also the cancellation token of the running task. The CPU-bound code which never blocks (so does not notice
+ * the interrupt) can call check in its inner loops: it only reads the flag which the time keeper raises when it times out
+ * the task (or which cancel raises), without reading the clock, so it costs about as much as a volatile field read.
+ * The context should be obtained once, outside of the loop.
+ * <pre>
+ *       TimeoutContext scope = TimeoutContext.current();
+ *       if (scope.getRemaining(TimeUnit.MILLISECONDS) &lt; 100) return cachedValue();
+ *       for (int i = 0; i &lt; n; i++) {
+ *           scope.check();
+ *           ...
+ *       }
+ * </pre>
+ * @author tzielins
+ */
+public final class TimeoutContext {
+
+    private static final TimeoutContext NONE = new TimeoutContext(null);
+
+    /**
+     * The running TimeoutFutureTask or TimeoutRunnable, null for the empty context.
+     */
+    private final TimeoutFuture<?> task;
+
+    private TimeoutContext(TimeoutFuture<?> task) {
+        this.task = task;
+    }
+
+    /**
+     * Gives the scope of the task running on the current thread.
+     * @return context of the running task (also of the fire-and-forget one started with execute and a timeout), or empty context
+     * (without limits) if the thread does not run a TimeoutFuture
+     */
+    public static TimeoutContext current() {
+        TimeoutFuture<?> t = TimeoutFutureTask.CURRENT.get();
+        return t == null ? NONE : new TimeoutContext(t);
+    }
+
+    /**
+     * Runs the action outside of the current scope, so the futures created by it are not the children of the running
+     * task, they get their own timeouts and outlive its cancellation.
+     * @param <T> type of the result
+     * @param action code which submits the independent tasks
+     * @return result of the action
+     * @throws Exception thrown by the action
+     */
+    public static <T> T detached(Callable<T> action) throws Exception {
+        TimeoutFuture<?> previous = TimeoutFutureTask.CURRENT.get();
+        TimeoutFutureTask.CURRENT.remove();
+        try {
+            return action.call();
+        } finally {
+            if (previous != null) TimeoutFutureTask.CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Checks if there is a running task behind this context.
+     * @return false for the empty context
+     */
+    public boolean isPresent() {
+        return task != null;
+    }
+
+    /**
+     * Gives the future of the running task, for the fire-and-forget task it is the task itself which has no result to get.
+     * @return the future or null for the empty context
+     */
+    public TimeoutFuture<?> getFuture() {
+        return task;
+    }
+
+    /**
+     * Throws if the task has been timed out or cancelled, so its computation can be abandoned. It only reads the flag
+     * raised by the time keeper (or by cancel), and does nothing for the empty context.
+     * @throws TimeoutCancellationException if the task has been timed out
+     * @throws CancellationException if the task has been cancelled
+     */
+    public void check() {
+        if (task != null && TimeoutFutureTask.cancelRequested(task)) {
+            if (TimeoutFutureTask.timeOutRequested(task)) throw new TimeoutCancellationException("Task was timed out");
+            throw new CancellationException("Task was cancelled");
+        }
+    }
+
+    /**
+     * Gives the remaining time budget of the task in nanoseconds. Once the task has been timed out or cancelled it gives 0
+     * from the flag, otherwise it reads the ticker on every call (System.nanoTime with the default ticker).
+     * <p>Only check and isExpired avoid the clock, so the inner loops should poll them and call this method (or getRemaining)
+     * only where the decision depends on the amount of time left, for example before starting an expensive step.
+     * @return remaining time, 0 if already expired, Long.MAX_VALUE if there is no limit
+     */
+    public long remainingNanos() {
+        if (task == null) return Long.MAX_VALUE;
+        if (TimeoutFutureTask.cancelRequested(task)) return 0;
+        return Math.max(0, task.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Gives the remaining time budget of the task, which also limits its children. It reads the ticker on every call.
+     * @param unit unit of the returned value
+     * @return remaining time (negative if already passed), Long.MAX_VALUE if there is no limit
+     */
+    public long getRemaining(TimeUnit unit) {
+        return task == null ? Long.MAX_VALUE : task.getDelay(unit);
+    }
+
+    /**
+     * Checks if the task has been timed out or cancelled, so its result will not be used. It only reads the flag as check.
+     * @return true if the task should stop
+     */
+    public boolean isExpired() {
+        return task != null && TimeoutFutureTask.cancelRequested(task);
+    }
+}
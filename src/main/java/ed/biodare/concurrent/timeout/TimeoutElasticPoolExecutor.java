@@ -0,0 +1,227 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimeoutFixPoolExecutor which number of threads follows the load within the given bounds.
+ * <p>Every sizing period (100ms by default) the executor looks at the tasks which started in that period. If they waited in the queue
+ * longer than the target wait (by default 10% of the default timeout) or the tasks were timed out (or shed) while others were still waiting,
+ * the pool is too small and it grows by half (at least one thread), up to the max threads. If the queue is empty, the tasks started
+ * without noticeable waiting and some threads are idle, the pool shrinks by one thread, down to the min threads. So the pool grows
+ * quickly under bursts and gives the threads back slowly.
+ * <p>The size is changed with the ThreadPoolExecutor setCorePoolSize and setMaximumPoolSize (keeping them equal),
+ * the surplus threads exit once they are idle. The replacement threads added by the stuck worker compensation do not count
+ * into the bounds.
+ * <p>The sizing runs on the timer thread of the executor till the executor is shut down, so as for any thread pool
+ * the executor must be shut down once it is not needed. The sizing action holds the executor only weakly, so it does not
+ * keep alive an executor which has become unreachable otherwise.
+ * @param <V>
+ * @author tzielins
+ */
+public class TimeoutElasticPoolExecutor<V> extends TimeoutFixPoolExecutor<V> {
+
+    static final long DEFAULT_SIZING_PERIOD_MILLIS = 100;
+    static final double DEFAULT_TARGET_WAIT_FRACTION = 0.1;
+    /**
+     * Share of timed out tasks above which the pool grows if there are waiting tasks.
+     */
+    static final double MAX_TIMEOUT_RATE = 0.01;
+
+    private final int minThreads;
+    private final int maxThreads;
+
+    private volatile long sizingPeriodNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SIZING_PERIOD_MILLIS);
+    private volatile double targetWaitFraction = DEFAULT_TARGET_WAIT_FRACTION;
+
+    /**
+     * Number of threads decided by the sizing, modified only by the timer thread.
+     */
+    private volatile int size;
+
+    /**
+     * Metrics at the previous sizing, modified only by the timer thread.
+     */
+    private TimeoutMetrics.Snapshot last;
+
+    /**
+     * Periodic action of the timer which calls resize.
+     */
+    private final Runnable sizing = new Sizing(this);
+
+    /**
+     * Creates new executor with the given bounds on the number of threads, which starts with the min threads.
+     * @param minThreads the smallest number of threads
+     * @param maxThreads the largest number of threads
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     */
+    public TimeoutElasticPoolExecutor(int minThreads, int maxThreads, long defaultTimeOut, TimeUnit defaultTimeOutUnit) {
+        this(minThreads, maxThreads, defaultTimeOut, defaultTimeOutUnit, new LinkedBlockingQueue<Runnable>(), null);
+    }
+
+    /**
+     * Creates new executor with the given bounds on the number of threads, which starts with the min threads.
+     * @param minThreads the smallest number of threads
+     * @param maxThreads the largest number of threads
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param workQueue the queue to use for holding tasks before they are executed, it should be unbounded
+     * @param completionQueue if not null the completed tasks will be inserted into this queue (regardless if they finished successfully or not)
+     */
+    public TimeoutElasticPoolExecutor(int minThreads, int maxThreads, long defaultTimeOut, TimeUnit defaultTimeOutUnit,
+            BlockingQueue<Runnable> workQueue, Queue<TimeoutFuture<?>> completionQueue) {
+        super(minThreads, defaultTimeOut, defaultTimeOutUnit, workQueue, completionQueue);
+        if (maxThreads < minThreads) {
+            shutdown();
+            throw new IllegalArgumentException("Max threads "+maxThreads+" cannot be smaller than min threads "+minThreads);
+        }
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.size = minThreads;
+        this.last = getMetrics().snapshot();
+
+        scheduleSizing();
+    }
+
+    private void scheduleSizing() {
+        actionTimer().schedule(sizing, sizingPeriodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Adjusts the number of threads to the load observed since the previous call, run periodically by the timer.
+     * It is not scheduled again once the executor has been shut down.
+     */
+    void resize() {
+        //before the try, so the sizing is not scheduled again
+        if (isShutdown()) return;
+        try {
+            TimeoutMetrics.Snapshot now = getMetrics().snapshot();
+            LatencyHistogram.Snapshot waits = now.getQueueWait().minus(last.getQueueWait());
+            long failed = (now.getTimedOut() - last.getTimedOut()) + (now.getShed() - last.getShed())
+                    + (now.getDeadlineRejected() - last.getDeadlineRejected());
+            long finished = (now.getCompleted() - last.getCompleted()) + failed;
+            last = now;
+
+            double timeoutRate = finished == 0 ? 0 : (double) failed / finished;
+            long wait = waits.getCount() == 0 ? 0 : waits.getPercentile(90, TimeUnit.NANOSECONDS);
+            int current = size;
+            //the busy threads do not include the stuck ones, which are compensated separately
+            int target = targetSize(current, minThreads, maxThreads, wait, waits.getCount(), targetWait(), timeoutRate,
+                    getQueue().size(), Math.min(current, getActiveCount()));
+            if (target != current) {
+                size = target;
+                resizePool(target - current);
+            }
+        } finally {
+            scheduleSizing();
+        }
+    }
+
+    /**
+     * Gives the queue wait above which the pool grows.
+     * @return the target fraction of the default timeout, or the sizing period if the timeout is infinite
+     */
+    long targetWait() {
+        long timeout = getDefaultTimeOut(TimeUnit.NANOSECONDS);
+        if (timeout == Long.MAX_VALUE) return sizingPeriodNanos;
+        return Math.max(1, (long) (timeout * targetWaitFraction));
+    }
+
+    /**
+     * Decides the number of threads.
+     * @param size current number of threads
+     * @param min the smallest number of threads
+     * @param max the largest number of threads
+     * @param wait 90th percentile of the queue wait of the tasks started in the last period in nanoseconds
+     * @param started number of the tasks started in the last period
+     * @param targetWait queue wait above which the pool should grow in nanoseconds
+     * @param timeoutRate share of the tasks finished in the last period which were timed out, shed or rejected
+     * @param backlog number of the queued tasks
+     * @param active number of the threads which run tasks
+     * @return new number of threads
+     */
+    static int targetSize(int size, int min, int max, long wait, long started, long targetWait, double timeoutRate, int backlog, int active) {
+        //nothing started while tasks are waiting means all the threads are busy for the whole period
+        boolean behind = backlog > 0 && (wait > targetWait || timeoutRate > MAX_TIMEOUT_RATE || started == 0);
+        if (behind) {
+            return Math.min(max, size + Math.max(1, size / 2));
+        }
+
+        boolean idle = backlog == 0 && wait <= targetWait / 4 && timeoutRate <= MAX_TIMEOUT_RATE && active < size;
+        if (idle) {
+            return Math.max(min, size - 1);
+        }
+        return size;
+    }
+
+    /**
+     * Sets how often the number of threads is adjusted.
+     * @param period period between the adjustments
+     * @param unit unit of the period
+     */
+    public void setSizingPeriod(long period, TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("Sizing period must be positive not: "+period);
+        sizingPeriodNanos = unit.toNanos(period);
+    }
+
+    public long getSizingPeriod(TimeUnit unit) {
+        return unit.convert(sizingPeriodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the queue wait, as the fraction of the default timeout, above which the pool grows.
+     * @param fraction value in range (0, 1]
+     */
+    public void setTargetWaitFraction(double fraction) {
+        if (!(fraction > 0 && fraction <= 1)) throw new IllegalArgumentException("Target wait fraction must be in range (0, 1] not: "+fraction);
+        targetWaitFraction = fraction;
+    }
+
+    public double getTargetWaitFraction() {
+        return targetWaitFraction;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Gives the number of threads decided by the sizing (without the stuck worker replacements).
+     * @return current target number of threads
+     */
+    public int getTargetThreads() {
+        return size;
+    }
+
+    /**
+     * Sizing action which holds the executor weakly, so the timer thread does not keep the unreachable executor alive
+     * (and its finalize can release the timer). Once the executor is gone the action is not scheduled again.
+     */
+    static final class Sizing implements Runnable {
+
+        private final WeakReference<TimeoutElasticPoolExecutor<?>> executor;
+
+        Sizing(TimeoutElasticPoolExecutor<?> executor) {
+            this.executor = new WeakReference<>(executor);
+        }
+
+        @Override
+        public void run() {
+            TimeoutElasticPoolExecutor<?> pool = executor.get();
+            if (pool != null) pool.resize();
+        }
+    }
+}
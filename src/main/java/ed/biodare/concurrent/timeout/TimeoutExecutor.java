@@ -5,10 +5,15 @@
  */
 package ed.biodare.concurrent.timeout;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Date;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Interface for executors that supports timeout of executed task.
@@ -22,6 +27,10 @@ import java.util.concurrent.TimeUnit;
  * isDone() isCancelled() and isTimeOut will return true. The get methods will throw TimeoutCancellationException which is sublass of CancellationException
  * <p>Without setting global deadline or default timeout the executor behaviour is same as for ordinary executors.
  * <p>Implementations must be of course thread save.
+ * <p>The methods added to the interface after its first release (deadlines, completion stages, hedging, retries, timeout modes
+ * and metrics) have default implementations, so the existing implementations keep compiling. The defaults delegate to the
+ * original methods where it is possible, otherwise they throw UnsupportedOperationException. The executors of this package
+ * implement all of them.
  * <p>Concepts:
  * <ul>
  * <li>TimeoutFuture - future which can be timed out. Same bahaviour as cancelled but the flag for timeout is additionally set.</li>
@@ -65,6 +74,193 @@ public interface TimeoutExecutor extends ExecutorService {
      * @return a Future representing pending completion of the task, the timeout future posses extra method for providing timeout status of the task
      */
     public TimeoutFuture<?> submit(Runnable task,long timeout,TimeUnit timeOutUnit); 
+    
+    /**
+     * Executes the Runnable task limited by the timeout, without creating a Future for it.
+     * <p>The task is timed out (interrupted) as the submitted ones, and it is also limited by the global deadline of the executor,
+     * but nothing waits for its outcome: its exceptions propagate as for the plain execute.
+     * @param task the task to execute
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @see #execute(Runnable, long, TimeUnit, Consumer) 
+     */
+    public default void execute(Runnable task,long timeout,TimeUnit timeOutUnit) {
+        execute(task, timeout, timeOutUnit, null);
+    }
+    
+    /**
+     * Executes the Runnable task limited by the timeout, and reports its timeout to the handler instead of through a Future.
+     * <p>The executors of this package run the task as a lightweight internal task, which is the only object allocated for it.
+     * The handler is called with the task once it is timed out, typically in the time keeper thread, so it should be quick.
+     * <p>The default implementation submits the task and calls the handler once its future is timed out.
+     * @param task the task to execute
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @param timeoutHandler if not null, called with the task once it is timed out
+     */
+    public default void execute(Runnable task,long timeout,TimeUnit timeOutUnit,Consumer<? super Runnable> timeoutHandler) {
+        if (task == null) throw new NullPointerException();
+        CompletionStage<Void> stage = submitAsync(task, timeout, timeOutUnit);
+        if (timeoutHandler != null) {
+            stage.whenComplete((v, e) -> {
+                if (e instanceof TimeoutCancellationException) timeoutHandler.accept(task);
+            });
+        }
+    }
+    
+    /**
+     * Submits a value-returning task which has to complete before its own deadline, and which is also limited by the timeout 
+     * (counted as for submit(task, timeout, timeOutUnit)) and the executor global deadline, whichever is reached first.
+     * <p>The task is timed out the same way as by the timeout, if the deadline passes before the task starts it is not run at all.
+     * The deadline is converted to the executor monotonic clock once, at submission.
+     * <p>The default implementation approximates the deadline by shortening the timeout to the time left till the deadline
+     * at submission, so the task is still started after the deadline (and timed out at once).
+     * @param <T> type of the return value 
+     * @param task the task to submit
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @param deadline point in time after which the task should not start nor continue its execution
+     * @return a Future representing pending completion of the task
+     */
+    public default <T> TimeoutFuture<T> submit(Callable<T> task,long timeout,TimeUnit timeOutUnit,Instant deadline) {
+        if (task == null || deadline == null) throw new NullPointerException();
+        Duration left = Duration.between(Instant.now(), deadline);
+        long leftMillis = left.isNegative() ? 0 : left.getSeconds() >= Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : left.toMillis();
+        return submit(task, Math.min(timeOutUnit.toMillis(timeout), leftMillis), TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Submits a Runnable task which has to complete before its own deadline, and which is also limited by the timeout 
+     * and the executor global deadline, whichever is reached first.
+     * @param task the task to submit
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @param deadline point in time after which the task should not start nor continue its execution
+     * @return a Future representing pending completion of the task
+     * @see #submit(Callable, long, TimeUnit, Instant) 
+     */
+    public default TimeoutFuture<?> submit(Runnable task,long timeout,TimeUnit timeOutUnit,Instant deadline) {
+        if (task == null) throw new NullPointerException();
+        return submit(Executors.callable(task), timeout, timeOutUnit, deadline);
+    }
+    
+    /**
+     * Submits a value-returning task which has to complete before its own deadline, with the executor default timeout.
+     * @param <T> type of the return value 
+     * @param task the task to submit
+     * @param deadline point in time after which the task should not start nor continue its execution
+     * @return a Future representing pending completion of the task
+     * @see #submit(Callable, long, TimeUnit, Instant) 
+     */
+    public default <T> TimeoutFuture<T> submit(Callable<T> task,Instant deadline) {
+        return submit(task, getDefaultTimeOut(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS, deadline);
+    }
+    
+    /**
+     * Submits a Runnable task which has to complete before its own deadline, with the executor default timeout.
+     * @param task the task to submit
+     * @param deadline point in time after which the task should not start nor continue its execution
+     * @return a Future representing pending completion of the task
+     * @see #submit(Callable, long, TimeUnit, Instant) 
+     */
+    public default TimeoutFuture<?> submit(Runnable task,Instant deadline) {
+        return submit(task, getDefaultTimeOut(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS, deadline);
+    }
+    
+    /**
+     * Submits a value-returning task for execution and returns a CompletionStage which will be completed with its result.
+     * <p>The task is executed with the same timeout semantics as the one submitted with submit(task, timeout, timeOutUnit), 
+     * but its completion is signalled by completing the stage once the task is done, so the result can be consumed 
+     * by non-blocking continuations without any waiting thread. 
+     * If the task is timed out the stage is completed exceptionally with TimeoutCancellationException, which as a CancellationException
+     * is thrown directly (not wrapped) by the get and join methods of the stage.
+     * <p>Cancelling the stage (using its toCompletableFuture().cancel) cancels the task.
+     * @param <T> type of the return value 
+     * @param task the task to submit
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @return a CompletionStage completed with the task outcome
+     * @throws UnsupportedOperationException by the default implementation, which cannot complete the stage of a cancelled task
+     */
+    public default <T> CompletionStage<T> submitAsync(Callable<T> task,long timeout,TimeUnit timeOutUnit) {
+        throw new UnsupportedOperationException("Completion stages are not supported by "+getClass().getName());
+    }
+    
+    /**
+     * Submits a Runnable task for execution and returns a CompletionStage which will be completed (with null) once it finishes.
+     * <p>The stage is completed exceptionally with TimeoutCancellationException if the task is timed out.
+     * @param task the task to submit
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @return a CompletionStage completed with the task outcome
+     * @see #submitAsync(Callable, long, TimeUnit) 
+     */
+    public default CompletionStage<Void> submitAsync(Runnable task,long timeout,TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        return submitAsync(Executors.callable(task, (Void)null), timeout, timeOutUnit);
+    }
+    
+    /**
+     * Submits a value-returning task which is hedged: if it has not completed within the hedge delay, a backup copy of the task 
+     * is started and the result of whichever copy succeeds first is returned. The other copy is then timed out at once.
+     * <p>The backup gets the remaining budget of the first copy, so the call is still limited by the timeout (and the global deadline).
+     * The future fails only once both copies have failed. Hedging suits the idempotent calls which latency has a long tail 
+     * (a slow replica, a pause), for the price of running some of them twice.
+     * <p>The hedge is scheduled on the timer of the executor, and it is cancelled if the task completes before the delay.
+     * @param <T> type of the return value 
+     * @param task the task to submit, it may be run twice
+     * @param hedgeDelay how long to wait for the first copy before starting the backup, if not positive both copies start at once
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the hedgeDelay and timeout parameters
+     * @return a Future representing pending completion of the first successful copy
+     * @throws UnsupportedOperationException by the default implementation
+     */
+    public default <T> TimeoutFuture<T> submitHedged(Callable<T> task,long hedgeDelay,long timeout,TimeUnit timeOutUnit) {
+        throw new UnsupportedOperationException("Hedged tasks are not supported by "+getClass().getName());
+    }
+    
+    /**
+     * Submits a hedged task which hedge delay is the given percentile of the run time of the tasks completed normally by this executor
+     * (see TimeoutMetrics.getRunTimePercentile), so only the calls slower than most of the previous ones get the backup.
+     * <p>Until the executor has completed any task the hedge delay is half of the timeout.
+     * <p>The percentile is read from a new snapshot of the run time histogram on each call. For very frequent submissions
+     * it can be cheaper to refresh the delay periodically and pass it to submitHedged.
+     * @param <T> type of the return value 
+     * @param task the task to submit, it may be run twice
+     * @param percentile percentile of the run time (between 0 and 100) after which the backup is started, for example 95
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @return a Future representing pending completion of the first successful copy
+     * @see #submitHedged(Callable, long, long, TimeUnit) 
+     */
+    public default <T> TimeoutFuture<T> submitHedgedAtPercentile(Callable<T> task,double percentile,long timeout,TimeUnit timeOutUnit) {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be in range 0-100 not: "+percentile);
+        long timeoutNanos = timeOutUnit.toNanos(timeout);
+        long delay = getMetrics().getRunTimePercentile(percentile, TimeUnit.NANOSECONDS);
+        if (delay == 0) delay = timeoutNanos / 2;
+        return submitHedged(task, delay, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Submits a value-returning task which is retried according to the policy when it times out or fails, within the overall budget.
+     * <p>Each attempt is limited by the attempt timeout and by what is left of the budget (and the global deadline), whichever
+     * is reached first, so the retries never run past the budget of the caller. The backoff between the attempts is scheduled on the 
+     * timer of the executor, no worker waits for it, and the retry is not made if the budget would pass during the backoff.
+     * <p>The returned future represents the whole sequence: it completes with the result of the first successful attempt, 
+     * or fails with the outcome of the last one (TimeoutCancellationException if it has been timed out). Cancelling it stops 
+     * the current attempt and the retries.
+     * @param <T> type of the return value 
+     * @param task the task to submit, it may be run several times
+     * @param attemptTimeout how long a single attempt can be run before being timedout
+     * @param budget how long the whole sequence of the attempts can take, counted from the submission
+     * @param timeOutUnit unit of the attemptTimeout and budget parameters
+     * @param policy how many attempts, with which backoff and on which failures
+     * @return a Future representing pending completion of the retried task
+     * @throws UnsupportedOperationException by the default implementation
+     */
+    public default <T> TimeoutFuture<T> submitWithRetry(Callable<T> task,long attemptTimeout,long budget,TimeUnit timeOutUnit,RetryPolicy policy) {
+        throw new UnsupportedOperationException("Retried tasks are not supported by "+getClass().getName());
+    }
 
     /**
      * Sets the global computation deadline for the executor. 
@@ -73,6 +269,7 @@ public interface TimeoutExecutor extends ExecutorService {
      * Depending on implementation the existing tasks may comply to old or new deadline.
      * <p>There is no guarantee that the tasks will be timed out exactly at reaching the deadline, but implementation should do its best
      * <p>The task submitted after the deadline will be timed out as well.
+     * <p>Implementations may convert the deadline to a monotonic clock once, when it is set, so later changes of the system clock do not move it.
      * @param deadline point in time after reaching which all the tasks will be timed out. 
      */
     public void setGlobalDeadline(Date deadline);
@@ -109,6 +306,60 @@ public interface TimeoutExecutor extends ExecutorService {
      * @param unit unit in whihc the value should be returrned
      * @return the deafault timeoout value in the provided unit.
      */
-    public long getDefaultTimeOut(TimeUnit unit); 
+    public long getDefaultTimeOut(TimeUnit unit);
+    
+    /**
+     * Sets from when the timeout of the tasks is counted: from their start (TimeoutMode.FROM_START, the default) or from their 
+     * submission (TimeoutMode.FROM_SUBMIT) in which case the time spent in the work queue is charged to the task timeout.
+     * <p>In the FROM_SUBMIT mode the tasks which remaining budget is smaller than the expected run time are shed, 
+     * ie timed out without taking a worker: at submission or once they are taken from the work queue.
+     * <p>Changing the mode does not affect the already submitted tasks.
+     * <p>The default implementation supports only the FROM_START mode.
+     * @param mode timeout mode for the tasks submitted after the change
+     * @throws UnsupportedOperationException if the mode is not supported
+     * @see #setExpectedRunTime(long, java.util.concurrent.TimeUnit) 
+     */
+    public default void setTimeoutMode(TimeoutMode mode) {
+        if (mode == null) throw new IllegalArgumentException("Timeout mode cannot be null");
+        if (mode != TimeoutMode.FROM_START) throw new UnsupportedOperationException("Timeout mode "+mode+" is not supported by "+getClass().getName());
+    }
+    
+    /**
+     * Gives the mode of counting the timeouts.
+     * @return current timeout mode, FROM_START in the default implementation
+     */
+    public default TimeoutMode getTimeoutMode() {
+        return TimeoutMode.FROM_START;
+    }
     
+    /**
+     * Sets the expected run time of the tasks, used in the FROM_SUBMIT mode to shed the tasks which remaining budget is smaller. 
+     * The default 0 sheds only the tasks which budget has already passed.
+     * @param runTime expected run time
+     * @param unit unit of the runTime
+     * @throws UnsupportedOperationException by the default implementation, which does not shed the tasks
+     */
+    public default void setExpectedRunTime(long runTime, TimeUnit unit) {
+        throw new UnsupportedOperationException("Shedding of the tasks is not supported by "+getClass().getName());
+    }
+    
+    /**
+     * Gives the expected run time of the tasks.
+     * @param unit unit in which the value should be returned
+     * @return the expected run time, 0 in the default implementation
+     */
+    public default long getExpectedRunTime(TimeUnit unit) {
+        return 0;
+    }
+    
+    /**
+     * Gives the instrumentation of this executor: counts of submitted, completed, timed out and deadline rejected tasks, 
+     * histograms of their queue wait, run time and lag of the timeout, and the number of the running tasks waiting for the timeout.
+     * It can be polled with snapshot or registered as MBean.
+     * @return metrics of this executor
+     * @throws UnsupportedOperationException by the default implementation
+     */
+    public default TimeoutMetrics getMetrics() {
+        throw new UnsupportedOperationException("Metrics are not supported by "+getClass().getName());
+    }
 }
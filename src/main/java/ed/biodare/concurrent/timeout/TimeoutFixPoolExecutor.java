@@ -5,9 +5,17 @@
  */
 package ed.biodare.concurrent.timeout;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Implementation of TimeoutExecutor which is based on ThreadPoolExecutor and a delay queue that provides the timeout functionality.
@@ -18,7 +26,7 @@ import java.util.concurrent.*;
  * <br>To cater for timeout functionality, this implementations overwrites the newTaskFor method so it returns TimeoutFutureTask instead of FutureTask.
  * The TimeoutFuture is configured with timeout and deadline using either the executor default values or the explicit parameters from the submit methods.
  * The TimeoutFutureTask inserts itself into the delay queue of task to be timed out, and its delay method will reflect the desired timeout values. 
- * <br>Executor creates one TimeKeeper thread which 'listens' on the delay queue of the tasks to be timed-out, and calls the task timeout() method
+ * <br>Executor creates one TimeKeeper thread (or one per shard of ShardedTimeoutQueue) which 'listens' on the delay queue of the tasks to be timed-out, and calls the task timeout() method
  * once it receives it. Inside the timeout method of TimeoutFutureTask the usual Future.cancel method is called and the timeout flag is set.
  * <br>As the results all the thread governing and synchronisation is done in Java way using the provided implementations of ThreadPoolExecutor, FutureTask and BlockingQueue, with
  * only difference that the future will insert itself into a queue prior to invoking run, and the consumer of this queue (TimeKeeper) will call the future
@@ -32,6 +40,8 @@ import java.util.concurrent.*;
  * has some mechanism to detect so which at this moment it doesn't) and no new task will be able to replace the timed-out one in the working thread.
  * <br>For example if the task is an infinite loop it will never stop
  * and will not release the working thread blocking execution of other tasks.
+ * <br>The setStuckWorkerCompensation mode mitigates it: the workers still running a timed out task after a grace period
+ * are reported as zombies and temporary threads are added to the pool in their place, till the zombies return.
  * <p>Despite the limitation for non-interruptible tasks, this implementation of TimeoutExecutor should be chosen for most of the cases.
  * <br>The interruptibility of the tasks can be easily tested and fixed before they are used with TimeoutExecutor, so the blocking limitation will not affect the system.
  * <br>At the same time, it is a very neat implementation, using the java provided classes, which will handle all the synchronisation issues thus
@@ -56,27 +66,51 @@ public class TimeoutFixPoolExecutor<V> extends ThreadPoolExecutor implements Tim
     private final Queue<TimeoutFuture<?>> completionQueue;
     /**
      * Delay queue of task which should be cancelled due to their timeout. The task delay is based on the task timeout, so the tasks which
-     * can be pulled from the queue will be the ones after their timeout.
+     * can be pulled from the queue will be the ones after their timeout. By default it is DeadlineHeap (indexed heap which removes
+     * the completed tasks in O(log n)) but it can be any queue with the DelayQueue semantics like TimingWheel.
      */
-    private final DelayQueue<TimeoutFuture<?>> timedOut;
+    private final BlockingQueue<TimeoutFuture<?>> timedOut;
+
+    /**
+     * Counters and timings of the tasks of this executor.
+     */
+    private final TimeoutMetrics metrics;
+    
+    /**
+     * Named lanes (bulkheads) which share the workers of this executor.
+     */
+    private final Map<String, TimeoutLane> lanes = new ConcurrentHashMap<>();
+    
+    /**
+     * Timer of the housekeeping actions, its thread is started only if they are used.
+     */
+    private final ActionTimer actionTimer = new ActionTimer();
+    
+    /**
+     * Compensation of the workers stuck in the timed out tasks, disabled by default.
+     */
+    private final StuckWorkers stuckWorkers;
     
     /**
-     * Listener of the timedOut queue, which runs on separate thread and timeouts (cancel) the tasks which are pulled from the timedOut queue.
+     * Listeners of the timedOut queue, which run on separate threads and timeout (cancel) the tasks which are pulled from the timedOut queue.
+     * There is one time keeper for each shard of ShardedTimeoutQueue, otherwise there is only one.
      */
-    private final TimeKeeper timeKeeper;
+    private final List<TimeKeeper> timeKeepers;
     
     /**
-     * Point in time in milliseconds, after reaching which all the tasks will become timedout. 
+     * If not null the shared timer service which times out the tasks instead of own time keepers.
      */
-    private volatile long globalDeadline = Long.MAX_VALUE;
+    private final SharedTimerService timerService;
+    
     /**
-     * The default timeout use for task without explicit time out.
+     * Set once the time keepers have been stopped or the executor unregistered from the timer service.
      */
-    private volatile long defaultTimeOut;// = Long.MAX_VALUE;
+    private final AtomicBoolean timerReleased = new AtomicBoolean(false);
+    
     /**
-     * Unit of the defaultTimeOut.
+     * Timeout settings of this executor and the factory of its tasks.
      */
-    private volatile TimeUnit defaultTimeOutUnit;// = TimeUnit.MILLISECONDS;
+    private final TimeoutTaskFactory tasks;
     
     /**
      * Creates new TimeoutExectuor that uses given number of threads. 
@@ -126,36 +160,205 @@ public class TimeoutFixPoolExecutor<V> extends ThreadPoolExecutor implements Tim
      */
     public TimeoutFixPoolExecutor(int nThreads,long defaultTimeOut,TimeUnit defaultTimeOutUnit,
             BlockingQueue<Runnable> workQueue, Queue<TimeoutFuture<?>> completionQueue) {        
+        this(nThreads, defaultTimeOut, defaultTimeOutUnit, workQueue, completionQueue, new DeadlineHeap());
+    }
+    
+    /**
+     * Creates new TimeoutExectuor that uses given number of threads, and which will use the provided value for the default timeout.Additionally it will support the task completion listener by inserting the completed tasks into the provided completionQueue.
+     * The value of defaultTimeOut is used for all the task with explicit timeout (inserted by the superclass submit methods)
+     * <p>The timedOut parameter selects the structure which keeps the running tasks till their timeout, for example DeadlineHeap (the default)
+     * or TimingWheel which arms and disarms the tasks in O(1) without locking, at the price of timeout precision limited to its tick.
+     * For ShardedTimeoutQueue the executor starts a TimeKeeper thread for each of its shards.
+     * @param nThreads number of threads this executor uses for running the tasks
+     * @param defaultTimeOut value of timeout for all the task without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param workQueue the queue to use for holding tasks before they are executed, inherited from superclass
+     * @param completionQueue if not null the completed tasks will be inserted into this queue (regardless if they finished successfully or not)
+     * @param timedOut empty queue into which the running tasks are inserted and which releases them once they have to be timed out, 
+     * it must not be shared with other executors
+     */
+    public TimeoutFixPoolExecutor(int nThreads,long defaultTimeOut,TimeUnit defaultTimeOutUnit,
+            BlockingQueue<Runnable> workQueue, Queue<TimeoutFuture<?>> completionQueue,
+            BlockingQueue<TimeoutFuture<?>> timedOut) {        
+        this(nThreads, defaultTimeOut, defaultTimeOutUnit, workQueue, completionQueue, timedOut, null);
+    }
+    
+    /**
+     * Creates new TimeoutExectuor that uses given number of threads, and which will use the provided value for the default timeout.Additionally it will support the task completion listener by inserting the completed tasks into the provided completionQueue.
+     * The value of defaultTimeOut is used for all the task with explicit timeout (inserted by the superclass submit methods)
+     * <p>The executor does not start its own TimeKeeper, instead it registers with the shared timer service, 
+     * (for example SharedTimerService.getDefault()) and unregisters once it terminates.
+     * @param nThreads number of threads this executor uses for running the tasks
+     * @param defaultTimeOut value of timeout for all the task without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param workQueue the queue to use for holding tasks before they are executed, inherited from superclass
+     * @param completionQueue if not null the completed tasks will be inserted into this queue (regardless if they finished successfully or not)
+     * @param timerService timer service shared with other executors which will time out the tasks
+     */
+    public TimeoutFixPoolExecutor(int nThreads,long defaultTimeOut,TimeUnit defaultTimeOutUnit,
+            BlockingQueue<Runnable> workQueue, Queue<TimeoutFuture<?>> completionQueue,
+            SharedTimerService timerService) {        
+        this(nThreads, defaultTimeOut, defaultTimeOutUnit, workQueue, completionQueue, 
+                timerService == null ? null : timerService.timedOut(), timerService);
+    }
+    
+    private TimeoutFixPoolExecutor(int nThreads,long defaultTimeOut,TimeUnit defaultTimeOutUnit,
+            BlockingQueue<Runnable> workQueue, Queue<TimeoutFuture<?>> completionQueue,
+            BlockingQueue<TimeoutFuture<?>> timedOut, SharedTimerService timerService) {        
         super(nThreads, nThreads,0L, TimeUnit.MILLISECONDS,workQueue);
+        if (timedOut == null) throw new IllegalArgumentException("TimedOut queue cannot be null");
         
-        this.defaultTimeOut = defaultTimeOut;
-        this.defaultTimeOutUnit = defaultTimeOutUnit;
         this.completionQueue = completionQueue;
-        this.timedOut = new DelayQueue<>();
-        
-        //ThreadFactory threadFactory = Executors.defaultThreadFactory();
-        this.timeKeeper = new TimeKeeper(timedOut,DEBUG);
-        //this.timeKeeper.setThread(threadFactory.newThread(timeKeeper));
-        this.timeKeeper.start();
+        this.timedOut = timedOut;
+        this.metrics = new TimeoutMetrics(timedOut);
+        this.stuckWorkers = new StuckWorkers(this, actionTimer, metrics);
+        this.tasks = new TimeoutTaskFactory(timedOut, completionQueue, metrics, stuckWorkers, defaultTimeOut, defaultTimeOutUnit);
+        this.timerService = timerService;
         
+        if (timerService != null) {
+            timerService.register();
+            this.timeKeepers = Collections.emptyList();
+        } else {
+            //ThreadFactory threadFactory = Executors.defaultThreadFactory();
+            this.timeKeepers = TimeKeeper.startFor(timedOut,DEBUG);
+        }
         
     }
 
+    @Override
+    public void execute(Runnable command) {
+        //the doomed tasks are not queued at all, after shutdown they are rejected as any other
+        if (!isShutdown() && tasks.shedIfDoomed(command)) return;
+        super.execute(command);
+        metrics.submitted();
+    }
+
+    @Override
+    public void execute(Runnable task, long timeout, TimeUnit timeOutUnit, Consumer<? super Runnable> timeoutHandler) {
+        execute(tasks.newRunnable(task, timeout, timeOutUnit, timeoutHandler));
+    }
+
+    @Override
+    public void shutdown() {
+        //the lanes are closed first so the tasks finishing during the shutdown do not pass the waiting ones to the pool
+        lanes.values().forEach(lane -> lane.close(null));
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = new ArrayList<>();
+        lanes.values().forEach(lane -> lane.close(pending));
+        pending.addAll(super.shutdownNow());
+        return pending;
+    }
+
+    /**
+     * Creates a named lane (bulkhead) of this executor, which tasks can take at most maxConcurrency of its workers,
+     * so a burst of slow tasks in one lane does not hold up the other lanes and the plain submissions.
+     * <p>The lane tasks over the limit wait in the lane queue, the submissions over its capacity are rejected. 
+     * The lane has its own default timeout and metrics.
+     * @param name unique name of the lane, for example the tenant or request type
+     * @param maxConcurrency how many of the lane tasks can be in the pool at the same time
+     * @param queueCapacity how many of the lane tasks can wait for a free place
+     * @param defaultTimeOut timeout of the lane tasks submitted without explicit one
+     * @param unit unit of the defaultTimeOut
+     * @return the new lane
+     * @throws IllegalArgumentException if the lane with such name already exists
+     */
+    public TimeoutLane addLane(String name, int maxConcurrency, int queueCapacity, long defaultTimeOut, TimeUnit unit) {
+        if (name == null) throw new IllegalArgumentException("Lane name cannot be null");
+        TimeoutLane lane = new TimeoutLane(name, this, maxConcurrency, queueCapacity, defaultTimeOut, unit);
+        if (lanes.putIfAbsent(name, lane) != null) throw new IllegalArgumentException("Lane already exists: "+name);
+        return lane;
+    }
+
+    /**
+     * Gives the lane of the given name.
+     * @param name name of the lane
+     * @return the lane or null if there is no such lane
+     */
+    public TimeoutLane getLane(String name) {
+        return lanes.get(name);
+    }
+
+    /**
+     * Gives all the lanes of this executor, for example to report their metrics.
+     * @return unmodifiable view of the lanes
+     */
+    public Collection<TimeoutLane> getLanes() {
+        return Collections.unmodifiableCollection(lanes.values());
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        stuckWorkers.returned(Thread.currentThread());
+        //the lane place is held until the worker leaves the task, also the timed out one which ignored the interrupt
+        if (r instanceof TimeoutFutureTask) {
+            Queue<TimeoutFuture<?>> completion = ((TimeoutFutureTask<?>) r).completionQueue();
+            if (completion instanceof TimeoutLane.LaneCompletion) ((TimeoutLane.LaneCompletion) completion).lane().left((TimeoutFutureTask<?>) r);
+        }
+    }
+
     @Override
     protected void terminated() {
         super.terminated();
-        timeKeeper.stop();
+        releaseTimer();
     }
 
     @Override
     protected void finalize() {
-        timeKeeper.stop();
+        releaseTimer();
         super.finalize();
     }
     
+    /**
+     * Stops own time keepers or unregisters from the shared timer service, only the first call has effect.
+     */
+    private void releaseTimer() {
+        if (!timerReleased.compareAndSet(false, true)) return;
+        
+        timeKeepers.forEach(TimeKeeper::stop);
+        if (timerService != null) timerService.unregister();
+        actionTimer.stop();
+    }
     
     
     
+    
+    /**
+     * Changes the number of threads by the delta, keeping the core and maximum sizes equal. The new threads are started
+     * at once so they pick up the queued tasks, the surplus threads exit once they are idle.
+     * @param delta number of threads to add (or remove if negative)
+     */
+    synchronized void resizePool(int delta) {
+        if (delta > 0) {
+            setMaximumPoolSize(getMaximumPoolSize() + delta);
+            setCorePoolSize(getCorePoolSize() + delta);
+            prestartAllCoreThreads();
+        } else if (delta < 0) {
+            setCorePoolSize(getCorePoolSize() + delta);
+            setMaximumPoolSize(getMaximumPoolSize() + delta);
+        }
+    }
+    
+    ActionTimer actionTimer() {
+        return actionTimer;
+    }
+    
+    Queue<TimeoutFuture<?>> completionQueue() {
+        return completionQueue;
+    }
+    
+    /**
+     * Gives the queue of the running tasks served by the time keepers of this executor (or the shared timer service).
+     * @return the timedOut queue
+     */
+    BlockingQueue<TimeoutFuture<?>> timedOut() {
+        return timedOut;
+    }
+    
     @Override
     protected <T> TimeoutFuture<T> newTaskFor(Runnable runnable, T value) {
         return newTaskFor(Executors.callable(runnable, value));
@@ -163,68 +366,174 @@ public class TimeoutFixPoolExecutor<V> extends ThreadPoolExecutor implements Tim
 
     @Override
     protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable) {
-        return newTaskFor(callable,defaultTimeOut,defaultTimeOutUnit);
+        return tasks.newTask(callable);
     }
-    
-    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable,long timeout,TimeUnit timeUnit) {
-        return new TimeoutFutureTask(callable, timedOut, completionQueue,timeout, timeUnit,globalDeadline);
+
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable, long timeout, TimeUnit timeUnit) {
+        return tasks.newTask(callable, timeout, timeUnit);
+    }
+
+    /**
+     * Creates the future of the task which is limited by the timeout, its own deadline and the global deadline of this executor.
+     * @param <T> type of the result
+     * @param callable the task
+     * @param timeout timeout of the task
+     * @param timeUnit unit of the timeout
+     * @param deadline the task deadline
+     * @return new future
+     */
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable, long timeout, TimeUnit timeUnit, Instant deadline) {
+        return tasks.newTask(callable, timeout, timeUnit, deadline);
     }
 
-    /*@Override
-    public <T> TimeoutFuture<T> submit(Callable<T> task) {
-        return submit(task, defaultTimeOut, defaultTimeOutUnit);
+    /**
+     * Creates the future of the lane task, which reports its completion and records its metrics through the lane.
+     */
+    <T> TimeoutFutureTask<T> newLaneTask(Callable<T> callable, long timeout, TimeUnit timeUnit, Queue<TimeoutFuture<?>> laneCompletion, TimeoutMetrics laneMetrics) {
+        return tasks.newTask(callable, timeout, timeUnit, laneCompletion, laneMetrics);
     }
 
     @Override
-    public TimeoutFuture<?> submit(Runnable task) {
-        return submit(task, defaultTimeOut, defaultTimeOutUnit);
-    }*/
-    
-    
-    
+    public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submit(this, task, timeout, timeOutUnit);
+    }
+
     @Override
-    public <T> TimeoutFuture<T> submit(Callable<T> task,long timeout,TimeUnit timeOutUnit) {
-        TimeoutFuture<T> future = newTaskFor(task, timeout,timeOutUnit);
-        execute(future);
-        return future;
+    public TimeoutFuture<?> submit(Runnable task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        return tasks.submit(this, Executors.callable(task), timeout, timeOutUnit);
     }
-    
+
     @Override
-    public TimeoutFuture<?> submit(Runnable task,long timeout,TimeUnit timeOutUnit) {
-        TimeoutFuture<Object> future = newTaskFor(Executors.callable(task),timeout,timeOutUnit);
-        execute(future);
-        return future;
+    public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit, Instant deadline) {
+        return tasks.submit(this, task, timeout, timeOutUnit, deadline);
     }
 
     @Override
-    public void setDefaultTimeOut(long timeout,TimeUnit timeoutUnit) {
-        defaultTimeOut = timeout;
-        defaultTimeOutUnit = timeoutUnit;
+    public <T> CompletionStage<T> submitAsync(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submitAsync(this, task, timeout, timeOutUnit);
     }
-    
+
+    @Override
+    public <T> TimeoutFuture<T> submitHedged(Callable<T> task, long hedgeDelay, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submitHedged(this, task, hedgeDelay, timeout, timeOutUnit);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submitWithRetry(Callable<T> task, long attemptTimeout, long budget, TimeUnit timeOutUnit, RetryPolicy policy) {
+        return tasks.submitWithRetry(this, task, attemptTimeout, budget, timeOutUnit, policy);
+    }
+
+    @Override
+    public void setDefaultTimeOut(long timeout, TimeUnit timeoutUnit) {
+        tasks.setDefaultTimeOut(timeout, timeoutUnit);
+    }
+
     @Override
     public long getDefaultTimeOut(TimeUnit unit) {
-        return unit.convert(defaultTimeOut, defaultTimeOutUnit);
+        return tasks.getDefaultTimeOut(unit);
     }
-    
+
     @Override
     public void setGlobalDeadline(Date deadline) {
-        globalDeadline = deadline.getTime();
+        tasks.setGlobalDeadline(deadline);
     }
-    
+
     @Override
     public void resetGlobalDeadline() {
-        globalDeadline = Long.MAX_VALUE;
+        tasks.resetGlobalDeadline();
     }
-    
+
     @Override
     public boolean hasGlobalDeadline() {
-        return globalDeadline < Long.MAX_VALUE;
+        return tasks.hasGlobalDeadline();
     }
-    
+
     @Override
-    public Date getGlobalDeadline() {        
-        return new Date(globalDeadline);
+    public Date getGlobalDeadline() {
+        return tasks.getGlobalDeadline();
+    }
+
+    @Override
+    public void setTimeoutMode(TimeoutMode mode) {
+        tasks.setTimeoutMode(mode);
+    }
+
+    @Override
+    public TimeoutMode getTimeoutMode() {
+        return tasks.getTimeoutMode();
+    }
+
+    @Override
+    public void setExpectedRunTime(long runTime, TimeUnit unit) {
+        tasks.setExpectedRunTime(runTime, unit);
+    }
+
+    @Override
+    public long getExpectedRunTime(TimeUnit unit) {
+        return tasks.getExpectedRunTime(unit);
+    }
+
+    @Override
+    public TimeoutMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables compensation of the workers which are stuck in timed out tasks that do not respond to the interrupt.
+     * <p>If a worker still runs its task after the grace period since the task was timed out, it is reported as a zombie
+     * (see getZombies and the metrics) and a temporary replacement thread is added to the pool, so the pool keeps 
+     * its capacity for the other tasks. Once the zombie returns from the task, the pool shrinks back and the surplus
+     * thread is retired as soon as it is idle.
+     * <p>It affects the tasks submitted after the call.
+     * @param grace time given to the worker to leave the timed out task
+     * @param unit unit of the grace
+     * @param maxExtraThreads limit of the replacement threads, so a flood of non-interruptible tasks cannot grow the pool without bounds
+     */
+    public void setStuckWorkerCompensation(long grace, TimeUnit unit, int maxExtraThreads) {
+        stuckWorkers.enable(grace, unit, maxExtraThreads);
+    }
+
+    /**
+     * Disables compensation of the stuck workers for the tasks submitted from now on. The already added replacement 
+     * threads are retired once their zombies return.
+     */
+    public void disableStuckWorkerCompensation() {
+        stuckWorkers.disable();
+    }
+
+    /**
+     * Checks if the stuck workers are compensated.
+     * @return true if the compensation is enabled
+     */
+    public boolean isStuckWorkerCompensation() {
+        return stuckWorkers.isEnabled();
+    }
+
+    /**
+     * Gives the workers which are stuck in timed out tasks (found by the stuck worker compensation), 
+     * for example to log their stack traces.
+     * @return copy of the map of the zombie threads and the timed out tasks they still run
+     */
+    public Map<Thread, TimeoutFuture<?>> getZombies() {
+        return stuckWorkers.zombies();
+    }
+
+    /**
+     * Sets the monotonic source of time used to measure the tasks timeouts, by default Ticker.SYSTEM (System.nanoTime).
+     * <p>Similarly to the global deadline it should be set before submitting tasks. The global deadline, if already set, 
+     * is converted to the new ticker time.
+     * @param ticker source of time for the timeouts
+     */
+    public void setTicker(Ticker ticker) {
+        tasks.setTicker(ticker);
+    }
+
+    /**
+     * Gives the source of time used to measure the tasks timeouts.
+     * @return the ticker
+     */
+    public Ticker getTicker() {
+        return tasks.getTicker();
     }
-    
 }
@@ -0,0 +1,347 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of TimeoutExecutor based on work-stealing ForkJoinPool, for CPU-heavy divide-and-conquer jobs.
+ * <p>Each submitted task is a root TimeoutFutureTask, timed out by the TimeKeeper as in TimeoutFixPoolExecutor. The root runs
+ * on a worker of the pool, and the TimeoutForkJoinTasks it forks (directly or through their own subtasks) are stolen and run
+ * by the other workers, so a single job can use all the cores. The subtasks inherit the remaining budget of their root:
+ * once the root is timed out, the whole tree is cancelled in one pass, as every pending subtask checks its root
+ * and completes as cancelled instead of computing (see TimeoutForkJoinTask).
+ * <p>The default timeout, global deadline, timeout mode, completion queue and metrics have the same semantics as
+ * in the other executors.
+ * <p>As in ForkJoinPool, the interrupt of the root worker on timeout is only a hint, the running subtasks should check
+ * TimeoutForkJoinTask.isExpired in long loops.
+ * @author tzielins
+ */
+public class TimeoutForkJoinExecutor extends AbstractExecutorService implements TimeoutExecutor {
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Counters and timings of the tasks of this executor.
+     */
+    private final TimeoutMetrics metrics;
+
+    private final List<TimeKeeper> timeKeepers;
+
+    private final AtomicBoolean timerReleased = new AtomicBoolean(false);
+
+    /**
+     * Number of the accepted root tasks which have not finished yet, the time keepers stop once it drops to 0 after shutdown.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Accepted root tasks which have not finished yet, so shutdownNow can cancel them.
+     */
+    private final Set<Runnable> roots = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean shutdown;
+
+    /**
+     * Timeout settings of this executor and the factory of its tasks.
+     */
+    private final TimeoutTaskFactory tasks;
+
+    /**
+     * Creates new executor with parallelism equal to the number of processors and without default timeout.
+     */
+    public TimeoutForkJoinExecutor() {
+        this(Runtime.getRuntime().availableProcessors(), Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates new executor.
+     * @param parallelism number of the worker threads of the pool
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     */
+    public TimeoutForkJoinExecutor(int parallelism, long defaultTimeOut, TimeUnit defaultTimeOutUnit) {
+        this(parallelism, defaultTimeOut, defaultTimeOutUnit, null);
+    }
+
+    /**
+     * Creates new executor.
+     * @param parallelism number of the worker threads of the pool
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param completionQueue if not null the completed root tasks will be inserted into this queue (regardless if they finished successfully or not)
+     */
+    public TimeoutForkJoinExecutor(int parallelism, long defaultTimeOut, TimeUnit defaultTimeOutUnit, Queue<TimeoutFuture<?>> completionQueue) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive not: "+parallelism);
+
+        this.pool = new ForkJoinPool(parallelism);
+        BlockingQueue<TimeoutFuture<?>> timedOut = new DeadlineHeap();
+        this.metrics = new TimeoutMetrics(timedOut);
+        this.tasks = new TimeoutTaskFactory(timedOut, completionQueue, metrics, null, defaultTimeOut, defaultTimeOutUnit);
+        this.timeKeepers = TimeKeeper.startFor(timedOut, false);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) throw new NullPointerException();
+        if (shutdown) throw new RejectedExecutionException("Executor has been shut down");
+        if (tasks.shedIfDoomed(command)) return;
+
+        active.incrementAndGet();
+        if (shutdown) {
+            finished();
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        roots.add(command);
+        try {
+            pool.execute(() -> runRoot(command));
+        } catch (RuntimeException e) {
+            roots.remove(command);
+            finished();
+            throw e;
+        }
+        metrics.submitted();
+    }
+
+    @Override
+    public void execute(Runnable task, long timeout, TimeUnit timeOutUnit, Consumer<? super Runnable> timeoutHandler) {
+        execute(tasks.newRunnable(task, timeout, timeOutUnit, timeoutHandler));
+    }
+
+    private void runRoot(Runnable command) {
+        //the running TimeoutFutureTask is the root of the TimeoutForkJoinTasks created by it
+        try {
+            command.run();
+        } finally {
+            //the timeout interrupt must not leak into the next task of the worker
+            Thread.interrupted();
+            roots.remove(command);
+            finished();
+        }
+    }
+
+    private void finished() {
+        if (active.decrementAndGet() == 0 && shutdown) releaseTimer();
+    }
+
+    private void releaseTimer() {
+        if (!timerReleased.compareAndSet(false, true)) return;
+        timeKeepers.forEach(TimeKeeper::stop);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        pool.shutdown();
+        if (active.get() == 0) releaseTimer();
+    }
+
+    /**
+     * Shuts down the executor and cancels all the accepted root tasks (so the subtasks of the running ones do not start).
+     * @return always empty list, the queued root tasks are cancelled
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        pool.shutdownNow();
+        for (Runnable root : roots) {
+            if (root instanceof Future) ((Future<?>)root).cancel(true);
+        }
+        //the roots cancelled in the pool queue are never run
+        releaseTimer();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return pool.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean terminated = pool.awaitTermination(timeout, unit);
+        if (terminated) releaseTimer();
+        return terminated;
+    }
+
+    /**
+     * Submits the fork join task as a root task with the timeout, its subtasks share the timeout.
+     * @param <T> type of the result
+     * @param task the root computation, typically TimeoutForkJoinTask
+     * @param timeout how long the whole computation can run
+     * @param timeOutUnit unit of the timeout
+     * @return future of the computation result
+     */
+    public <T> TimeoutFuture<T> submit(ForkJoinTask<T> task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        return submit((Callable<T>) task::invoke, timeout, timeOutUnit);
+    }
+
+    /**
+     * Gives the number of the worker threads.
+     * @return the parallelism of the pool
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Gives the number of the accepted root tasks which have not finished yet.
+     * @return number of active root tasks
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    protected <T> TimeoutFuture<T> newTaskFor(Runnable runnable, T value) {
+        return newTaskFor(Executors.callable(runnable, value));
+    }
+
+    @Override
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable) {
+        return tasks.newTask(callable);
+    }
+
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable, long timeout, TimeUnit timeUnit) {
+        return tasks.newTask(callable, timeout, timeUnit);
+    }
+
+    /**
+     * Creates the future of the task which is limited by the timeout, its own deadline and the global deadline of this executor.
+     * @param <T> type of the result
+     * @param callable the task
+     * @param timeout timeout of the task
+     * @param timeUnit unit of the timeout
+     * @param deadline the task deadline
+     * @return new future
+     */
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable, long timeout, TimeUnit timeUnit, Instant deadline) {
+        return tasks.newTask(callable, timeout, timeUnit, deadline);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submit(this, task, timeout, timeOutUnit);
+    }
+
+    @Override
+    public TimeoutFuture<?> submit(Runnable task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        return tasks.submit(this, Executors.callable(task), timeout, timeOutUnit);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit, Instant deadline) {
+        return tasks.submit(this, task, timeout, timeOutUnit, deadline);
+    }
+
+    @Override
+    public <T> CompletionStage<T> submitAsync(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submitAsync(this, task, timeout, timeOutUnit);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submitHedged(Callable<T> task, long hedgeDelay, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submitHedged(this, task, hedgeDelay, timeout, timeOutUnit);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submitWithRetry(Callable<T> task, long attemptTimeout, long budget, TimeUnit timeOutUnit, RetryPolicy policy) {
+        return tasks.submitWithRetry(this, task, attemptTimeout, budget, timeOutUnit, policy);
+    }
+
+    @Override
+    public void setDefaultTimeOut(long timeout, TimeUnit timeoutUnit) {
+        tasks.setDefaultTimeOut(timeout, timeoutUnit);
+    }
+
+    @Override
+    public long getDefaultTimeOut(TimeUnit unit) {
+        return tasks.getDefaultTimeOut(unit);
+    }
+
+    @Override
+    public void setGlobalDeadline(Date deadline) {
+        tasks.setGlobalDeadline(deadline);
+    }
+
+    @Override
+    public void resetGlobalDeadline() {
+        tasks.resetGlobalDeadline();
+    }
+
+    @Override
+    public boolean hasGlobalDeadline() {
+        return tasks.hasGlobalDeadline();
+    }
+
+    @Override
+    public Date getGlobalDeadline() {
+        return tasks.getGlobalDeadline();
+    }
+
+    @Override
+    public void setTimeoutMode(TimeoutMode mode) {
+        tasks.setTimeoutMode(mode);
+    }
+
+    @Override
+    public TimeoutMode getTimeoutMode() {
+        return tasks.getTimeoutMode();
+    }
+
+    @Override
+    public void setExpectedRunTime(long runTime, TimeUnit unit) {
+        tasks.setExpectedRunTime(runTime, unit);
+    }
+
+    @Override
+    public long getExpectedRunTime(TimeUnit unit) {
+        return tasks.getExpectedRunTime(unit);
+    }
+
+    @Override
+    public TimeoutMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the monotonic source of time used to measure the tasks timeouts, by default Ticker.SYSTEM (System.nanoTime).
+     * @param ticker source of time for the timeouts
+     */
+    public void setTicker(Ticker ticker) {
+        tasks.setTicker(ticker);
+    }
+
+    public Ticker getTicker() {
+        return tasks.getTicker();
+    }
+}
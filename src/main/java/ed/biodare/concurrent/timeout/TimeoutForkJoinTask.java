@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursive task for the TimeoutForkJoinExecutor, which subtasks share the time budget of the root TimeoutFuture.
+ * <p>It is used as RecursiveTask: the subclass implements compute, in which it forks and joins new subtasks.
+ * Each task belongs to the root future which runs it: the task created inside the root (or inside another task of the root)
+ * takes it at construction, the task created outside takes it once it is run. The tasks of one root form a tree which is
+ * cancelled in one pass: once the root is timed out (or cancelled) the pending tasks of the tree do not compute but complete
+ * as cancelled at once, so their joins unwind the whole tree. The running tasks can check isExpired or getRemaining to stop early.
+ * <p>Outside of TimeoutForkJoinExecutor the task has no root and behaves like a plain RecursiveTask.
+ * @param <V> the type of the result of the task
+ * @author tzielins
+ */
+public abstract class TimeoutForkJoinTask<V> extends ForkJoinTask<V> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Root future of the tree of this task, null if none.
+     */
+    private transient TimeoutFuture<?> root;
+
+    private V result;
+
+    /**
+     * Creates task which belongs to the root running on the current thread, if any.
+     */
+    protected TimeoutForkJoinTask() {
+        this.root = TimeoutFutureTask.CURRENT.get();
+    }
+
+    /**
+     * The main computation performed by this task.
+     * @return the result of the computation
+     */
+    protected abstract V compute();
+
+    @Override
+    public final V getRawResult() {
+        return result;
+    }
+
+    @Override
+    protected final void setRawResult(V value) {
+        result = value;
+    }
+
+    @Override
+    protected final boolean exec() {
+        TimeoutFuture<?> previous = TimeoutFutureTask.CURRENT.get();
+        if (root == null) root = previous;
+
+        TimeoutFuture<?> r = root;
+        if (r != null && r.isCancelled()) {
+            //the budget of the tree is gone, the joins of this task throw CancellationException
+            cancel(false);
+            return true;
+        }
+
+        //the futures submitted by the compute are the children of the root (see TimeoutContext)
+        TimeoutFutureTask.CURRENT.set(r);
+        try {
+            result = compute();
+        } finally {
+            TimeoutFutureTask.CURRENT.set(previous);
+        }
+        return true;
+    }
+
+    /**
+     * Gives the root future of the tree of this task.
+     * @return the root or null if the task is not run by TimeoutForkJoinExecutor
+     */
+    public TimeoutFuture<?> getRoot() {
+        return root;
+    }
+
+    /**
+     * Gives the remaining time budget of the tree, ie time till its root is timed out.
+     * @param unit unit of the returned value
+     * @return remaining time (negative if already passed), Long.MAX_VALUE if there is no limit
+     */
+    public long getRemaining(TimeUnit unit) {
+        TimeoutFuture<?> r = root;
+        return r == null ? Long.MAX_VALUE : r.getDelay(unit);
+    }
+
+    /**
+     * Checks if the root of this task has been timed out or cancelled, so the result will not be used.
+     * @return true if the computation should stop
+     */
+    public boolean isExpired() {
+        TimeoutFuture<?> r = root;
+        return r != null && TimeoutFutureTask.cancelRequested(r);
+    }
+}
@@ -5,61 +5,196 @@
  */
 package ed.biodare.concurrent.timeout;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /**
  * Implementation of TimeoutFuture that can be used in services implementing timeout using delay queue. 
  * <p>
  * Upon its starts (run) the future can insert itself in the delayed queue, with delay determined by this feature timeout
- * parameters. The managing service can then use entries for delay queue to cancel them (timeout) them once they reach their deadline.
+ * parameters (or any other blocking queue which releases the futures after their delay, like TimingWheel). 
+ * The managing service can then use entries for delay queue to cancel them (timeout) them once they reach their deadline.
  * <p>To reduce number of encapsulating entities this class also supports completion listeners, using queue to which it inserts itself once
  * the future is done (either cause it run successfully or has been cancelled). That way it can be used in the completion service implementation.
  * <p>The timeout method is implemented by calling cancel on self and setting the timeout flag.
  * <p>The run method starts only if it is before the deadline, and it inserts this future in the delay queue of tasks to be timed out.
  * <p>The done method, removes itself from the timedOut queue and places itself in the completed queue if such exists.
+ * <p>The delays are measured with the monotonic Ticker in nanoseconds, so the timeouts can be shorter than a millisecond and 
+ * are not affected by wall clock changes. The deadline given as system time in milliseconds is converted to the ticker time once, 
+ * in the constructor.
+ * <p>While running, the future is the current scope of its thread (see TimeoutContext): the future created in it becomes
+ * its child, which deadline is limited by the remaining budget of the parent, and which is cancelled (or timed out)
+ * together with the parent. The children of the parent which completed normally carry on within their own limits.
+ * <p>The future keeps its own flags (started, timed out, budget mode and the others) in one state word updated with a VarHandle,
+ * so they do not need extra objects, and the Optional of the stored task is built only when asked for. The other per task
+ * allocations are made only when needed: the children set once a child is created and the completion stage once it is asked for.
+ * The Runnable tasks are still wrapped in the Executors.callable adapter, as FutureTask stores a Callable (its own Runnable
+ * constructor wraps them the same way).
  * @author tzielins
  */
 class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
 
     /**
-     * Deadline for this task execution, used to compute the getDelay method for delay queue.
+     * Value of deadline meaning that there is none.
      */
-    private long waitTill = Long.MAX_VALUE;
+    static final long NO_DEADLINE = Long.MAX_VALUE;
     
     /**
-     * Requested timeout parameter for this task in miliseconds.
+     * Future running on the current thread (TimeoutFutureTask or TimeoutRunnable), the parent of the futures created by its task.
+     */
+    static final ThreadLocal<TimeoutFuture<?>> CURRENT = new ThreadLocal<>();
+    
+    /**
+     * Bit of the state set once the task has started, so done can record its run time.
+     */
+    private static final int STARTED = 1;
+    /**
+     * Bit of the state set when the future is being timed out, it is set before cancelling so it is visible in done.
+     */
+    private static final int TIMED_OUT = 2;
+    /**
+     * Bit of the state set if the timeout is counted from the creation of this future not from its start (see TimeoutMode.FROM_SUBMIT).
+     */
+    private static final int FROM_SUBMIT = 4;
+    /**
+     * Bit of the state set when the future is cancelled (or timed out) before the runner is interrupted, it is the flag
+     * polled by the TimeoutContext checks in the running task.
+     */
+    private static final int CANCEL_REQUESTED = 8;
+    /**
+     * Bit of the state set when the task has thrown an exception, so done records it apart from the normal completions.
+     */
+    private static final int FAILED = 16;
+    /**
+     * Bit of the state set when a TimeoutLane has taken the task from its waiting queue, so the lane knows where the done task was.
+     */
+    private static final int DISPATCHED = 32;
+    /**
+     * Bit of the state claimed by the TimeoutLane which frees the place of the task, it is freed either in done (if the task
+     * never started) or when the worker leaves the task, whichever comes first claims it.
+     */
+    private static final int RELEASED = 64;
+    
+    private static final VarHandle STATE;
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(TimeoutFutureTask.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    /**
+     * Source of time for the delays.
+     */
+    private final Ticker ticker;
+    
+    /**
+     * Ticker time when the task started, used together with budget to compute the getDelay method for delay queue.
+     */
+    private long startedAt;
+    
+    /**
+     * Flags of this future: STARTED, TIMED_OUT, FROM_SUBMIT, CANCEL_REQUESTED, FAILED, DISPATCHED and RELEASED, updated through the STATE handle.
+     */
+    private volatile int state;
+    
+    /**
+     * If not null the metrics into which this future records its timings.
+     */
+    private final TimeoutMetrics metrics;
+    
+    /**
+     * Ticker time when the task was created (submitted), used for the queue wait metric and the end-to-end budget.
+     */
+    private final long createdAt;
+    
+    /**
+     * Expected run time in nanoseconds, the future which remaining budget is smaller is shed instead of started (only fromSubmit).
+     */
+    private long expectedRun;
+    
+    /**
+     * Time in nanoseconds the task can run from its start, Long.MAX_VALUE if it should not be timed out.
+     */
+    private long budget = Long.MAX_VALUE;
+    
+    /**
+     * Requested timeout parameter for this task in nanoseconds.
      */
     private final long timeout;
     /**
-     * Delay queue storing futures to be timed out using they timeout parameters to decide on the order.
+     * Queue storing futures to be timed out using they timeout parameters to decide on the order, typically DelayQueue or TimingWheel.
      */
-    private final DelayQueue<TimeoutFuture<?>> timedOut;
+    private final BlockingQueue<TimeoutFuture<?>> timedOut;
     /**
      * If not null the completion queue into which future will be inserted once it is done. Used to impelement completion service.
      */
     private final Queue<TimeoutFuture<?>> completionQueue;
     
     /**
-     * Imposed deadline after reaching which task should not start running nor continue execution. 
+     * Imposed deadline (in the ticker time) after reaching which task should not start running nor continue execution,
+     * NO_DEADLINE if there is none.
      */
     private final long deadline;
     
     /**
-     * Flag for the timeout status.
+     * The task if it is FutureStorable, null otherwise.
      */
-    private final AtomicBoolean isTimedOut = new AtomicBoolean(false);
+    private final FutureStorable task;
     
-    private final Optional<FutureStorable> task;
+    /**
+     * Position of this future in the DeadlineHeap it was inserted into (guarded by the heap lock) 
+     * or the slot of its worker in WorkerDeadlineSlots (encoded below -1 by WorkerDeadlineSlots.slotIndex), -1 if it is not there.
+     */
+    int queueIndex = -1;
+
+    /**
+     * Entry of this future in the TimingWheel it was inserted into, so it can be disarmed in O(1), null if none.
+     */
+    volatile TimingWheel.Entry wheelEntry;
+    
+    /**
+     * Thread which runs the task code, null before the start and once it returned.
+     */
+    private volatile Thread runner;
+    
+    /**
+     * If not null the compensation of the executor which is notified when this future is timed out while running.
+     */
+    private StuckWorkers stuckWorkers;
+    
+    /**
+     * If not null the completion stage which is completed from done.
+     */
+    private volatile CompletableFuture<T> stage;
+    
+    /**
+     * The future which was running when this one was created, null if none.
+     */
+    private final TimeoutFuture<?> parent;
+    
+    /**
+     * Not completed futures created by the task of this one, null if none (guarded by this).
+     */
+    private Set<TimeoutFuture<?>> children;
     
     /**
      * Creates new future which will never be timed out
      * @param callable task for this future
      * @param timedOutQueue delay queue into which this future should be inserted to implement its timing out
      */
-    public TimeoutFutureTask(Callable<T> callable, DelayQueue<TimeoutFuture<?>> timedOutQueue) {
+    public TimeoutFutureTask(Callable<T> callable, BlockingQueue<TimeoutFuture<?>> timedOutQueue) {
         this(callable,timedOutQueue,Long.MAX_VALUE,TimeUnit.MILLISECONDS);
     }
 
@@ -69,7 +204,7 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
      * @param result returned value upon completion
      * @param timedOutQueue delay queue into which this future should be inserted to implement its timing out
      */
-    public TimeoutFutureTask(Runnable runnable, T result,DelayQueue<TimeoutFuture<?>> timedOutQueue) {
+    public TimeoutFutureTask(Runnable runnable, T result,BlockingQueue<TimeoutFuture<?>> timedOutQueue) {
         this(Executors.callable(runnable, result),timedOutQueue);
     }
     
@@ -81,7 +216,7 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
      * @param timeout value of timeout (counted from beginning of the future execution
      * @param timeoutUnit unit of the timeout
      */
-    public TimeoutFutureTask(Runnable runnable, T result, DelayQueue<TimeoutFuture<?>> timedOutQueue,long timeout,TimeUnit timeoutUnit) {
+    public TimeoutFutureTask(Runnable runnable, T result, BlockingQueue<TimeoutFuture<?>> timedOutQueue,long timeout,TimeUnit timeoutUnit) {
         this(Executors.callable(runnable, result),timedOutQueue,timeout,timeoutUnit);
     }
     
@@ -92,7 +227,7 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
      * @param timeout value of timeout (counted from beginning of the future execution
      * @param timeoutUnit unit of the timeout
      */
-    public TimeoutFutureTask(Callable<T> callable, DelayQueue<TimeoutFuture<?>> timedOutQueue,long timeout,TimeUnit timeoutUnit) {
+    public TimeoutFutureTask(Callable<T> callable, BlockingQueue<TimeoutFuture<?>> timedOutQueue,long timeout,TimeUnit timeoutUnit) {
         this(callable, timedOutQueue, timeout, timeoutUnit, Long.MAX_VALUE);
     }
     
@@ -105,7 +240,7 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
      * @param timeoutUnit unit of the timeout
      * @param deadline time in miliseconds after which the task should not start execution nor continue its execution
      */
-    public TimeoutFutureTask(Callable<T> callable, DelayQueue<TimeoutFuture<?>> timedOutQueue,long timeout,TimeUnit timeoutUnit,long deadline) {
+    public TimeoutFutureTask(Callable<T> callable, BlockingQueue<TimeoutFuture<?>> timedOutQueue,long timeout,TimeUnit timeoutUnit,long deadline) {
         this(callable,timedOutQueue,null,timeout,timeoutUnit,deadline);
     }
     
@@ -119,58 +254,538 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
      * @param timeoutUnit unit of the timeout
      * @param deadline system time in miliseconds after which the task should not start execution nor continue its execution
      */
-    public TimeoutFutureTask(Callable<T> callable, DelayQueue<TimeoutFuture<?>> timedOutQueue,Queue<TimeoutFuture<?>> completionQueue,long timeout,TimeUnit timeoutUnit,long deadline) {
+    public TimeoutFutureTask(Callable<T> callable, BlockingQueue<TimeoutFuture<?>> timedOutQueue,Queue<TimeoutFuture<?>> completionQueue,long timeout,TimeUnit timeoutUnit,long deadline) {
+        this(callable, timedOutQueue, completionQueue, timeout, timeoutUnit, Ticker.SYSTEM, tickerDeadline(deadline, Ticker.SYSTEM));
+    }
+    
+    /**
+     * Creates new future which represent a task which execution should be terminated after given timeout or before the given deadline is reached whichever
+     * is faster
+     * @param callable task for this future
+     * @param timedOutQueue delay queue into which this future should be inserted once started to implement its timing out
+     * @param completionQueue if not null, a queue into which this task will be inserted once done (both successfully or cancelled)
+     * @param timeout value of timeout (counted from beginning of the future execution
+     * @param timeoutUnit unit of the timeout
+     * @param ticker source of time for the timeout
+     * @param deadline ticker time after which the task should not start execution nor continue its execution, or NO_DEADLINE
+     * @see #tickerDeadline(long, Ticker) 
+     */
+    TimeoutFutureTask(Callable<T> callable, BlockingQueue<TimeoutFuture<?>> timedOutQueue,Queue<TimeoutFuture<?>> completionQueue,long timeout,TimeUnit timeoutUnit,Ticker ticker,long deadline) {
+        this(callable, timedOutQueue, completionQueue, timeout, timeoutUnit, ticker, deadline, null);
+    }
+    
+    /**
+     * Creates new future which represent a task which execution should be terminated after given timeout or before the given deadline is reached whichever
+     * is faster, and which records its timings into the metrics.
+     * @param callable task for this future
+     * @param timedOutQueue delay queue into which this future should be inserted once started to implement its timing out
+     * @param completionQueue if not null, a queue into which this task will be inserted once done (both successfully or cancelled)
+     * @param timeout value of timeout (counted from beginning of the future execution
+     * @param timeoutUnit unit of the timeout
+     * @param ticker source of time for the timeout
+     * @param deadline ticker time after which the task should not start execution nor continue its execution, or NO_DEADLINE
+     * @param metrics if not null, metrics of the executor to record into
+     */
+    TimeoutFutureTask(Callable<T> callable, BlockingQueue<TimeoutFuture<?>> timedOutQueue,Queue<TimeoutFuture<?>> completionQueue,long timeout,TimeUnit timeoutUnit,Ticker ticker,long deadline,TimeoutMetrics metrics) {
         super(callable);
         if (timedOutQueue == null) throw new IllegalArgumentException("TimedOutQueue cannot be null");
+        if (ticker == null) throw new IllegalArgumentException("Ticker cannot be null");
         this.timedOut = timedOutQueue;
         this.completionQueue = completionQueue;
-        this.timeout = TimeUnit.MILLISECONDS.convert(timeout, timeoutUnit);
-        this.deadline = deadline;
+        this.timeout = timeoutUnit.toNanos(timeout);
+        this.ticker = ticker;
+        this.metrics = metrics;
+        this.createdAt = ticker.read();
+        
+        this.task = (callable instanceof FutureStorable) ? (FutureStorable)callable : null;
+        
+        TimeoutFuture<?> p = currentScope(ticker);
+        if (p != null) {
+            this.parent = p;
+            this.deadline = earlierDeadline(deadline, scopeEnd(p));
+            adopt(p, this);
+        } else {
+            this.parent = null;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Converts the deadline given as system time in milliseconds into the ticker time.
+     * <p>The wall clock is read only here, so later changes to it do not affect the converted deadline.
+     * @param deadlineMillis system time in milliseconds, Long.MAX_VALUE for no deadline
+     * @param ticker source of time in which the deadline is expressed
+     * @return deadline in the ticker time or NO_DEADLINE if it is too far away to be reached
+     */
+    static long tickerDeadline(long deadlineMillis, Ticker ticker) {
+        if (deadlineMillis == Long.MAX_VALUE) return NO_DEADLINE;
         
-        this.task = (callable instanceof FutureStorable) ? Optional.of((FutureStorable)callable) : Optional.empty();
-            
+        long remaining = TimeUnit.MILLISECONDS.toNanos(deadlineMillis - System.currentTimeMillis());
+        //keeps the sum with ticker value from overflowing
+        if (remaining >= Long.MAX_VALUE / 4) return NO_DEADLINE;
+        if (remaining < -Long.MAX_VALUE / 4) remaining = -Long.MAX_VALUE / 4;
+        return ticker.read() + remaining;
+    }
+
+    /**
+     * Makes the timeout of this future an end-to-end budget counted from its creation, which includes the time spent waiting in
+     * the work queue. It has to be called before the future is passed to the executor.
+     * @param expectedRunNanos expected run time, the future is shed instead of started if its remaining budget is smaller
+     * @return this future
+     */
+    TimeoutFutureTask<T> budgetFromSubmit(long expectedRunNanos) {
+        if (expectedRunNanos < 0) throw new IllegalArgumentException("Expected run time cannot be negative: "+expectedRunNanos);
+        STATE.getAndBitwiseOr(this, FROM_SUBMIT);
+        expectedRun = expectedRunNanos;
+        return this;
+    }
+    
+    /**
+     * Gives the remaining budget of this future if it started now.
+     * @param now current ticker time
+     * @return remaining time till the timeout or deadline whichever earlier, Long.MAX_VALUE if there is none
+     */
+    private long remainingAt(long now) {
+        long toDeadline = deadline == NO_DEADLINE ? Long.MAX_VALUE : deadline - now;
+        long toTimeout = (!isFromSubmit() || timeout == Long.MAX_VALUE) ? timeout : timeout - (now - createdAt);
+        return Math.min(toDeadline, toTimeout);
+    }
+    
+    /**
+     * Gives how long this future can still wait for its start: till its deadline, or in the end-to-end budget mode till its
+     * remaining budget drops below the expected run time. Used to order the futures in the DeadlineWorkQueue.
+     * @return time in nanoseconds (negative if already late), Long.MAX_VALUE if the future can wait forever
+     */
+    long startSlack() {
+        long now = ticker.read();
+        long slack = deadline == NO_DEADLINE ? Long.MAX_VALUE : deadline - now;
+        if (isFromSubmit() && timeout != Long.MAX_VALUE) {
+            slack = Math.min(slack, timeout - (now - createdAt) - expectedRun);
+        }
+        return slack;
+    }
+    
+    /**
+     * Checks if the remaining end-to-end budget is smaller than the expected run time and if so times out this future 
+     * without running it. Used by the executors to shed the doomed futures before they are queued.
+     * @return true if the future has been shed
+     */
+    boolean shedIfDoomed() {
+        if (!isFromSubmit() || remainingAt(ticker.read()) >= expectedRun) return false;
+        if (!expire()) return false;
+        if (metrics != null) metrics.shed();
+        return true;
+    }
+
+    private boolean isFromSubmit() {
+        return (state & FROM_SUBMIT) != 0;
+    }
+    
+    boolean isStarted() {
+        return (state & STARTED) != 0;
+    }
+    
+    private boolean isFailed() {
+        return (state & FAILED) != 0;
+    }
+    
+    void markDispatched() {
+        STATE.getAndBitwiseOr(this, DISPATCHED);
+    }
+    
+    boolean isDispatched() {
+        return (state & DISPATCHED) != 0;
+    }
+    
+    /**
+     * Claims the release of the lane place of this task.
+     * @return true only for the first call
+     */
+    boolean claimRelease() {
+        return ((int) STATE.getAndBitwiseOr(this, RELEASED) & RELEASED) == 0;
+    }
+    
+    Queue<TimeoutFuture<?>> completionQueue() {
+        return completionQueue;
+    }
+    
+    @Override
+    protected void setException(Throwable t) {
+        //set before the completion, as done reads it
+        STATE.getAndBitwiseOr(this, FAILED);
+        super.setException(t);
+    }
+    
+    /**
+     * Makes the stuck workers compensation check if the worker left this future after it has been timed out. 
+     * It has to be called before the future is passed to the executor.
+     * @param stuckWorkers compensation of the executor
+     * @return this future
+     */
+    TimeoutFutureTask<T> watchedBy(StuckWorkers stuckWorkers) {
+        this.stuckWorkers = stuckWorkers;
+        return this;
+    }
+    
+    /**
+     * Gives the thread which runs the task code.
+     * @return the worker thread or null if the future is not running
+     */
+    Thread runner() {
+        return runner;
+    }
+    
+    /**
+     * Gives the ticker time at which this future will be timed out.
+     * @return end of the budget of the started future, NO_DEADLINE if it is not limited or has not started
+     */
+    long endTicks() {
+        long b = budget;
+        //keeps the sum with ticker value from overflowing
+        if (b >= Long.MAX_VALUE / 4) return NO_DEADLINE;
+        return startedAt + b;
+    }
+    
+    /**
+     * Gives the task running on the current thread if its deadlines are in the given ticker time
+     * (the deadlines in other ticker time cannot be compared).
+     * @param ticker source of time of the task created now
+     * @return the running TimeoutFutureTask or TimeoutRunnable, or null
+     */
+    static TimeoutFuture<?> currentScope(Ticker ticker) {
+        TimeoutFuture<?> p = CURRENT.get();
+        if (p instanceof TimeoutFutureTask) return ((TimeoutFutureTask<?>) p).ticker == ticker ? p : null;
+        if (p instanceof TimeoutRunnable) return ((TimeoutRunnable) p).ticker() == ticker ? p : null;
+        return null;
+    }
+    
+    /**
+     * Gives the ticker time at which the scope (TimeoutFutureTask or TimeoutRunnable) will be timed out.
+     */
+    static long scopeEnd(TimeoutFuture<?> scope) {
+        if (scope instanceof TimeoutRunnable) return ((TimeoutRunnable) scope).endTicks();
+        return ((TimeoutFutureTask<?>) scope).endTicks();
+    }
+    
+    /**
+     * Checks the flag raised once the scope (TimeoutFutureTask or TimeoutRunnable) is cancelled or timed out.
+     */
+    static boolean cancelRequested(TimeoutFuture<?> scope) {
+        if (scope instanceof TimeoutRunnable) return ((TimeoutRunnable) scope).isCancelRequested();
+        return ((TimeoutFutureTask<?>) scope).isCancelRequested();
+    }
+    
+    /**
+     * Checks if the scope (TimeoutFutureTask or TimeoutRunnable) is being timed out.
+     */
+    static boolean timeOutRequested(TimeoutFuture<?> scope) {
+        if (scope instanceof TimeoutRunnable) return ((TimeoutRunnable) scope).isTimeOutRequested();
+        return ((TimeoutFutureTask<?>) scope).isTimeOutRequested();
+    }
+    
+    /**
+     * Registers the child in the scope (TimeoutFutureTask or TimeoutRunnable), so it is cancelled together with it.
+     */
+    static void adopt(TimeoutFuture<?> scope, TimeoutFuture<?> child) {
+        if (scope instanceof TimeoutRunnable) ((TimeoutRunnable) scope).addChild(child);
+        else ((TimeoutFutureTask<?>) scope).addChild(child);
+    }
+    
+    /**
+     * Removes the completed child from the scope (TimeoutFutureTask or TimeoutRunnable).
+     */
+    static void disown(TimeoutFuture<?> scope, TimeoutFuture<?> child) {
+        if (scope instanceof TimeoutRunnable) ((TimeoutRunnable) scope).removeChild(child);
+        else ((TimeoutFutureTask<?>) scope).removeChild(child);
+    }
+    
+    /**
+     * Gives the future which was running when this one was created.
+     * @return the parent future or null
+     */
+    TimeoutFuture<?> parent() {
+        return parent;
+    }
+    
+    private synchronized void addChild(TimeoutFuture<?> child) {
+        if (children == null) children = new HashSet<>();
+        children.add(child);
+    }
+    
+    private synchronized void removeChild(TimeoutFuture<?> child) {
+        if (children != null) children.remove(child);
+    }
+    
+    /**
+     * Cancels the not completed children of the cancelled future, they are timed out if it was timed out.
+     */
+    private void cancelChildren() {
+        List<TimeoutFuture<?>> orphans;
+        synchronized (this) {
+            if (children == null || children.isEmpty()) return;
+            orphans = new ArrayList<>(children);
+            children.clear();
+        }
+        boolean timeOut = isTimedOut();
+        for (TimeoutFuture<?> child : orphans) {
+            if (timeOut) child.timeOut();
+            else child.cancel(true);
+        }
+    }
+    
+    /**
+     * Converts the deadline into the ticker time, with the nanosecond precision of the Instant.
+     * @param deadline point in time, Instant.MAX for no deadline
+     * @param ticker source of time in which the deadline is expressed
+     * @return deadline in the ticker time or NO_DEADLINE if it is too far away to be reached
+     */
+    static long tickerDeadline(Instant deadline, Ticker ticker) {
+        if (deadline.equals(Instant.MAX)) return NO_DEADLINE;
+        
+        long remaining;
+        try {
+            remaining = Duration.between(Instant.now(), deadline).toNanos();
+        } catch (ArithmeticException e) {
+            remaining = deadline.isBefore(Instant.now()) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        //keeps the sum with ticker value from overflowing
+        if (remaining >= Long.MAX_VALUE / 4) return NO_DEADLINE;
+        if (remaining < -Long.MAX_VALUE / 4) remaining = -Long.MAX_VALUE / 4;
+        return ticker.read() + remaining;
+    }
+    
+    /**
+     * Gives the deadline in the ticker time which comes after the given budget from now.
+     * @param nanos budget in nanoseconds
+     * @param ticker source of time
+     * @return deadline in the ticker time or NO_DEADLINE if it is too far away to be reached
+     */
+    static long deadlineAfter(long nanos, Ticker ticker) {
+        //keeps the sum with ticker value from overflowing
+        if (nanos >= Long.MAX_VALUE / 4) return NO_DEADLINE;
+        return ticker.read() + nanos;
+    }
+    
+    /**
+     * Runs the action with the given future as the current scope, so the futures created by it become its children
+     * (as if they were created by its task). Used for the later attempts of the hedged and retried tasks,
+     * which are created on the timer thread but belong to the scope of the caller.
+     * @param <R> type of the result
+     * @param scope the parent future, if null the current scope of the thread is kept
+     * @param action code creating the futures
+     * @return result of the action
+     */
+    static <R> R inScope(TimeoutFuture<?> scope, Supplier<R> action) {
+        if (scope == null) return action.get();
+        TimeoutFuture<?> previous = CURRENT.get();
+        CURRENT.set(scope);
+        try {
+            return action.get();
+        } finally {
+            if (previous != null) CURRENT.set(previous);
+            else CURRENT.remove();
+        }
+    }
+    
+    /**
+     * Gives the earlier of two deadlines in the ticker time.
+     * @param deadline1 ticker time or NO_DEADLINE
+     * @param deadline2 ticker time or NO_DEADLINE
+     * @return the deadline which comes first
+     */
+    static long earlierDeadline(long deadline1, long deadline2) {
+        if (deadline1 == NO_DEADLINE) return deadline2;
+        if (deadline2 == NO_DEADLINE) return deadline1;
+        //the ticker values can wrap around, so only their difference is meaningful
+        return deadline1 - deadline2 < 0 ? deadline1 : deadline2;
     }
 
     @Override
     public boolean timeOut() {
-        if (isDone() || isTimedOut.get()) {
-            return isTimedOut.get();
+        //already timed out counts as success
+        if (!expire()) return isTimedOut();
+        
+        if (isStarted()) {
+            if (metrics != null) metrics.timedOut(-getDelay(TimeUnit.NANOSECONDS));
+            if (stuckWorkers != null) stuckWorkers.timedOut(this);
         }
+        return true;
+    }
     
-        isTimedOut.compareAndSet(false, cancel(true));
-        return isTimedOut.get();
+    /**
+     * Cancels this future marking it as timed out.
+     * @return true if the future has been timed out by this call
+     */
+    private boolean expire() {
+        if (isDone()) return false;
+    
+        //the flag is set before cancelling so it is visible in done
+        int s;
+        do {
+            s = state;
+            if ((s & TIMED_OUT) != 0) return false;
+        } while (!STATE.compareAndSet(this, s, s | TIMED_OUT));
+        if (cancel(true)) return true;
+        
+        //completed or cancelled in the meantime
+        STATE.getAndBitwiseAnd(this, ~TIMED_OUT);
+        return false;
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        //raised first, so the task polling it stops also if it ignores the interrupt
+        if (!isDone()) STATE.getAndBitwiseOr(this, CANCEL_REQUESTED);
+        return super.cancel(mayInterruptIfRunning);
+    }
+    
+    /**
+     * Checks the flag raised once this future is cancelled or timed out, without reading the clock.
+     * @return true if the task should stop
+     */
+    boolean isCancelRequested() {
+        return (state & CANCEL_REQUESTED) != 0;
+    }
+    
+    /**
+     * Checks if this future is being timed out, the flag is raised before it is cancelled.
+     * @return true if the timeout was requested
+     */
+    boolean isTimeOutRequested() {
+        return (state & TIMED_OUT) != 0;
     }
     
     @Override
     public boolean isTimedOut() {
-        return isTimedOut.get();
+        //the flag alone may be set for a moment for a task which completes while being timed out
+        return (state & TIMED_OUT) != 0 && isCancelled();
     }
 
     @Override
     public void run() {
-        //we only run if have not reached the deadlin
-        if (deadline < System.currentTimeMillis()) {
+        long now = ticker.read();
+        long toDeadline = deadline == NO_DEADLINE ? Long.MAX_VALUE : deadline - now;
+        //we only run if have not reached the deadline
+        if (toDeadline < 0) {
             //we are already too late to do something
-            timeOut();
+            if (expire() && metrics != null) metrics.deadlineRejected();
+            return;
+        }
+        
+        //the children created after the parent was cancelled do not start
+        if (parent != null && parent.isCancelled()) {
+            if (parent.isTimedOut()) timeOut();
+            else cancel(false);
+            return;
+        }
+        
+        long remaining = remainingAt(now);
+        if (isFromSubmit() && remaining < expectedRun) {
+            //the worker is released at once instead of wasting it on the task which cannot finish in time
+            if (expire() && metrics != null) metrics.shed();
             return;
         }
         
-        long max = Long.MAX_VALUE - System.currentTimeMillis()-1;
-        if (timeout >= max) waitTill = Long.MAX_VALUE;
-        else waitTill = System.currentTimeMillis()+timeout;
+        startedAt = now;
+        budget = remaining;
+        STATE.getAndBitwiseOr(this, STARTED);
+        if (metrics != null) metrics.started(now - createdAt);
         
-        if (waitTill > deadline) waitTill = deadline;
-                
-        timedOut.put(this);
-        super.run();
+
+        try {
+            timedOut.put(this);
+        } catch (InterruptedException e) {
+            //the timedOut queues are unbounded so it only happens if worker was interrupted before the start
+            Thread.currentThread().interrupt();
+        }
+        runner = Thread.currentThread();
+        TimeoutFuture<?> previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            super.run();
+        } finally {
+            CURRENT.set(previous);
+            runner = null;
+        }
     }
 
     @Override
     protected void done() {
         super.done();
+        if (metrics != null && isStarted()) {
+            long runNanos = ticker.read() - startedAt;
+            if (isCancelled()) metrics.cancelled(runNanos);
+            else metrics.completed(runNanos, !isFailed());
+        }
         timedOut.remove(this);
+        if (parent != null) disown(parent, this);
+        if (isCancelled()) cancelChildren();
         if (completionQueue!=null) completionQueue.offer(this);
         
+        CompletableFuture<T> s = stage;
+        if (s != null) completeStage(s);
+    }
+    
+    /**
+     * Gives completion stage which will be completed once this future is done, with its result or exceptionally with 
+     * TimeoutCancellationException if the future is timed out (or other exception that the future would throw from get).
+     * Cancelling the stage cancels this future.
+     * <p>It should be called before the future is run, as only the last created stage is completed from done.
+     * @return stage completed with this future
+     */
+    CompletionStage<T> asStage() {
+        CompletableFuture<T> s = new StageFuture<>(this);
+        stage = s;
+        if (isDone()) completeStage(s);
+        return s;
+    }
+    
+    /**
+     * Gives completion stage of the future, if it is a TimeoutFutureTask.
+     * @param <T> type of result
+     * @param future future which stage is needed
+     * @return the stage as created by asStage
+     * @throws IllegalArgumentException if the future is not a TimeoutFutureTask
+     */
+    static <T> CompletionStage<T> stageOf(TimeoutFuture<T> future) {
+        if (future instanceof TimeoutFutureTask) return ((TimeoutFutureTask<T>)future).asStage();
+        throw new IllegalArgumentException("Completion stage needs TimeoutFutureTask not: "+future.getClass().getName());
+    }
+    
+    private void completeStage(CompletableFuture<T> s) {
+        if (!isCancelled()) {
+            try {
+                s.complete(super.get());
+            } catch (ExecutionException e) {
+                s.completeExceptionally(e.getCause());
+            } catch (InterruptedException | CancellationException e) {
+                //cannot happen for done future
+                s.completeExceptionally(e);
+            }
+        } else if (isTimedOut()) {
+            s.completeExceptionally(new TimeoutCancellationException("Future was timed out"));
+        } else {
+            s.completeExceptionally(new CancellationException());
+        }
+    }
+    
+    /**
+     * Completion stage of the task which cancels the task if it is cancelled itself.
+     */
+    static final class StageFuture<T> extends CompletableFuture<T> {
+        
+        private final TimeoutFutureTask<T> task;
+
+        StageFuture(TimeoutFutureTask<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            //cancelled task completes this stage from its done method
+            boolean cancelled = task.cancel(mayInterruptIfRunning);
+            return super.cancel(mayInterruptIfRunning) || cancelled;
+        }
     }
 
     @Override
@@ -194,9 +809,17 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
     }
     
     
+    /**
+     * Gives the time left till this future should be timed out. Long.MAX_VALUE (in any unit) for the future without
+     * timeout or which has not been started yet.
+     * @param unit unit of the returned delay
+     * @return remaining delay
+     */
     @Override
     public long getDelay(TimeUnit unit) {
-        return unit.convert(waitTill-System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        long b = budget;
+        if (b == Long.MAX_VALUE) return Long.MAX_VALUE;
+        return unit.convert(b - (ticker.read() - startedAt), TimeUnit.NANOSECONDS);
     }
 
     @Override
@@ -204,9 +827,10 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
         long diff;
         
         if (o == null) return -1;
+        if (o == this) return 0;
         
         if (o instanceof TimeoutFutureTask) {
-            diff = waitTill - ((TimeoutFutureTask)o).waitTill;
+            diff = Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
         } else {
             diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
         }
@@ -217,7 +841,7 @@ class TimeoutFutureTask<T> extends FutureTask<T> implements TimeoutFuture<T> {
 
     @Override
     public Optional<FutureStorable> task() {
-        return task;
+        return Optional.ofNullable(task);
     }
 
     
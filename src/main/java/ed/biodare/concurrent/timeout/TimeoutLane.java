@@ -0,0 +1,314 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named lane (bulkhead) of a TimeoutFixPoolExecutor, which limits how many of its tasks can take the workers of the shared pool.
+ * <p>The lane passes its tasks to the pool only while fewer than maxConcurrency of them are there (queued or running), the rest
+ * wait in the lane own queue, bounded by queueCapacity, and the submissions over it are rejected. So a burst of slow tasks
+ * of one tenant (or request type) occupies at most its share of the workers, and the tasks of the other lanes and the plain
+ * submissions still get the free workers promptly. A task takes its place in the pool until its worker leaves it, not when
+ * it is done, so a timed out task which ignores the interrupt keeps counting against its lane while it holds the worker.
+ * The task which is done before getting a worker (cancelled or shed while queued in the pool) frees its place at once.
+ * <p>Each lane has its own default timeout and its own TimeoutMetrics, which also record into the executor metrics,
+ * so they show which lane causes the timeouts. The tasks waiting in the lane are cancelled when the executor is shut down.
+ * <p>The lanes are created with TimeoutFixPoolExecutor.addLane.
+ * @author tzielins
+ */
+public final class TimeoutLane {
+
+    private final String name;
+    private final TimeoutFixPoolExecutor<?> executor;
+    private final int maxConcurrency;
+    private final int queueCapacity;
+    private final long defaultTimeOutNanos;
+
+    private final TimeoutMetrics metrics;
+
+    /**
+     * Completion queue of the lane tasks, the pool recognizes the lane tasks by it.
+     */
+    private final Queue<TimeoutFuture<?>> completion = new LaneCompletion();
+
+    private final Queue<TimeoutFutureTask<?>> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of the lane tasks which have been passed to the pool and have not left their worker yet.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Number of the tasks waiting in the lane.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Number of the dispatch requests, the thread which raised it from 0 passes the tasks.
+     */
+    private final AtomicInteger dispatching = new AtomicInteger();
+
+    /**
+     * Set when the executor is shut down, the lane does not pass nor accept tasks anymore.
+     */
+    private volatile boolean closed;
+
+    TimeoutLane(String name, TimeoutFixPoolExecutor<?> executor, int maxConcurrency, int queueCapacity, long defaultTimeOut, TimeUnit unit) {
+        if (maxConcurrency < 1) throw new IllegalArgumentException("Max concurrency must be at least 1 not: "+maxConcurrency);
+        if (queueCapacity < 0) throw new IllegalArgumentException("Queue capacity cannot be negative: "+queueCapacity);
+        this.name = name;
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.queueCapacity = queueCapacity;
+        this.defaultTimeOutNanos = unit.toNanos(defaultTimeOut);
+        this.metrics = new TimeoutMetrics(executor.timedOut(), executor.getMetrics());
+    }
+
+    /**
+     * Submits a value-returning task into this lane with the lane default timeout.
+     * @param <T> type of the return value
+     * @param task the task to submit
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException if the lane queue is full or the executor has been shut down
+     */
+    public <T> TimeoutFuture<T> submit(Callable<T> task) {
+        return submit(task, defaultTimeOutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Submits a value-returning task into this lane, its timeout is counted as by the executor (from the start or from the submission,
+     * so the wait in the lane counts in the FROM_SUBMIT mode).
+     * @param <T> type of the return value
+     * @param task the task to submit
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException if the lane queue is full or the executor has been shut down
+     */
+    public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        if (closed || executor.isShutdown()) throw new RejectedExecutionException("Executor has been shut down");
+        //the lane queue is there for the tasks which do not get a free place at once
+        if (queued.incrementAndGet() > queueCapacity + Math.max(0, maxConcurrency - active.get())) {
+            queued.decrementAndGet();
+            rejected.increment();
+            throw new RejectedExecutionException("Lane "+name+" is full");
+        }
+        TimeoutFutureTask<T> future = executor.newLaneTask(task, timeout, timeOutUnit, completion, metrics);
+        metrics.submitted();
+        waiting.offer(future);
+        dispatch();
+        return future;
+    }
+
+    /**
+     * Submits a Runnable task into this lane with the lane default timeout.
+     * @param task the task to submit
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException if the lane queue is full or the executor has been shut down
+     */
+    public TimeoutFuture<?> submit(Runnable task) {
+        return submit(task, defaultTimeOutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Submits a Runnable task into this lane.
+     * @param task the task to submit
+     * @param timeout how long the task can be run before being timedout
+     * @param timeOutUnit unit of the timeout parameters
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException if the lane queue is full or the executor has been shut down
+     */
+    public TimeoutFuture<?> submit(Runnable task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        return submit(Executors.callable(task), timeout, timeOutUnit);
+    }
+
+    /**
+     * Passes the waiting tasks to the pool while the lane has free places. Only one thread passes the tasks at a time,
+     * the calls made meanwhile make it loop once more, so the done tasks which are shed at once do not recurse into it.
+     */
+    private void dispatch() {
+        if (dispatching.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            while (!closed && active.get() < maxConcurrency) {
+                //the place is taken before the task leaves the queue, as done of the polled task frees it
+                active.incrementAndGet();
+                TimeoutFutureTask<?> future = waiting.poll();
+                if (future == null) {
+                    active.decrementAndGet();
+                    break;
+                }
+                future.markDispatched();
+                queued.decrementAndGet();
+                try {
+                    executor.execute(future);
+                } catch (RejectedExecutionException e) {
+                    //shut down in the meantime, done frees the place
+                    future.cancel(false);
+                }
+            }
+            missed = dispatching.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Called once the lane task is done, it frees its place in the lane queue if it was cancelled while waiting,
+     * or its place in the pool if it never started there. Only the former needs the linear search of the waiting queue
+     * (the task cancelled just after being polled, before being marked, is not found there and is treated as in the pool).
+     * The started task keeps its place until its worker leaves it.
+     */
+    private void finished(TimeoutFutureTask<?> future) {
+        if (!future.isDispatched() && waiting.remove(future)) {
+            queued.decrementAndGet();
+            return;
+        }
+        //STARTED is set before the task body runs, so the not started done task will not take a worker anymore
+        if (!future.isStarted()) release(future);
+    }
+
+    /**
+     * Called by the pool once the worker has left the lane task (after its run returned), it frees the task place
+     * unless done already did it.
+     */
+    void left(TimeoutFutureTask<?> future) {
+        release(future);
+    }
+
+    private void release(TimeoutFutureTask<?> future) {
+        if (future.claimRelease()) {
+            active.decrementAndGet();
+            dispatch();
+        }
+    }
+
+    /**
+     * Closes the lane and cancels its waiting tasks, called on the executor shutdown.
+     * @param drained if not null list to which the cancelled tasks are added
+     */
+    void close(List<Runnable> drained) {
+        closed = true;
+        TimeoutFutureTask<?> future;
+        while ((future = waiting.poll()) != null) {
+            future.markDispatched();
+            queued.decrementAndGet();
+            //it has already left the queue so it takes the place which done frees (it never starts)
+            active.incrementAndGet();
+            future.cancel(false);
+            if (drained != null) drained.add(future);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getDefaultTimeOut(TimeUnit unit) {
+        return unit.convert(defaultTimeOutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gives the number of the lane tasks which are in the pool (queued there or holding a worker, also after being timed out).
+     * @return number of the taken places
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * Gives the number of the tasks waiting in the lane for a free place.
+     * @return number of the waiting tasks
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Gives the number of the submissions rejected as the lane queue was full.
+     * @return number of the rejected tasks
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gives the instrumentation of the lane tasks: submitted, completed, timed out, shed tasks and their timings.
+     * The task records go to the executor metrics as well.
+     * @return metrics of this lane
+     */
+    public TimeoutMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeoutLane[" + name + ", active=" + getActive() + "/" + maxConcurrency + ", queued=" + getQueued() + "]";
+    }
+
+    /**
+     * Completion queue of the lane tasks, which frees the place of the not started ones and passes them to the completion
+     * queue of the executor.
+     */
+    final class LaneCompletion extends AbstractQueue<TimeoutFuture<?>> {
+
+        @Override
+        public boolean offer(TimeoutFuture<?> future) {
+            finished((TimeoutFutureTask<?>) future);
+            Queue<TimeoutFuture<?>> forward = executor.completionQueue();
+            if (forward != null) forward.offer(future);
+            return true;
+        }
+
+        /**
+         * Gives the lane which owns this queue (and its tasks).
+         */
+        TimeoutLane lane() {
+            return TimeoutLane.this;
+        }
+
+        @Override
+        public TimeoutFuture<?> poll() {
+            throw new UnsupportedOperationException("Lane completion queue can only be offered to");
+        }
+
+        @Override
+        public TimeoutFuture<?> peek() {
+            throw new UnsupportedOperationException("Lane completion queue can only be offered to");
+        }
+
+        @Override
+        public Iterator<TimeoutFuture<?>> iterator() {
+            throw new UnsupportedOperationException("Lane completion queue can only be offered to");
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of a timeout executor: counters of the tasks and histograms of their timings.
+ * <p>The counters are striped (LongAdder) and the histograms lock-free, so the TimeoutFutureTask can record into them
+ * from the worker and TimeKeeper threads without adding contention. It records:
+ * <ul>
+ * <li>submitted - tasks accepted by the executor</li>
+ * <li>completed - tasks which finished their execution, normally or with exception</li>
+ * <li>timed out - tasks cancelled by the TimeKeeper</li>
+ * <li>deadline rejected - tasks not started as the global deadline had passed before their turn</li>
+ * <li>shed - tasks timed out without running as their end-to-end budget was smaller than the expected run time (TimeoutMode.FROM_SUBMIT)</li>
+ * <li>stuck - workers which still ran their task after the grace period since its time out (with the stuck workers compensation)</li>
+ * <li>zombies - workers which are currently stuck in the timed out tasks</li>
+ * <li>queue wait - time from the task creation till its start</li>
+ * <li>run time - time from the task start till it was done (completed or cancelled)</li>
+ * <li>success run time - run time of the tasks which completed normally, the base of the adaptive hedge delay</li>
+ * <li>expiry lag - time from the task deadline till its actual cancellation by the TimeKeeper</li>
+ * </ul>
+ * Plus the current depth of the timedOut queue (which is shared if the executor uses SharedTimerService).
+ * <p>The values can be polled with snapshot or exposed over JMX with register.
+ * @author tzielins
+ */
+public class TimeoutMetrics implements TimeoutMetricsMXBean {
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder deadlineRejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder stuck = new LongAdder();
+    private final AtomicInteger zombies = new AtomicInteger();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    /**
+     * Run time of the tasks which completed normally, without the timed out, cancelled and failed ones which would skew it
+     * (in particular the hedge losers cut short and the tasks which ran till their timeout).
+     */
+    private final LatencyHistogram successRunTime = new LatencyHistogram();
+    private final LatencyHistogram expiryLag = new LatencyHistogram();
+
+    private final Collection<?> timedOutQueue;
+
+    /**
+     * If not null the metrics of the whole executor, into which the metrics of its part (a lane) pass their records.
+     */
+    private final TimeoutMetrics parent;
+
+    /**
+     * Creates metrics of executor which uses the given timedOut queue.
+     * @param timedOutQueue queue which size is reported as timedOut queue depth
+     */
+    public TimeoutMetrics(Collection<?> timedOutQueue) {
+        this(timedOutQueue, null);
+    }
+
+    /**
+     * Creates metrics of a part of the executor (a lane), which also records into the executor metrics. Only the submitted
+     * count is not passed, as the executor counts the tasks itself once they reach it.
+     * @param timedOutQueue queue which size is reported as timedOut queue depth
+     * @param parent if not null the metrics of the executor
+     */
+    TimeoutMetrics(Collection<?> timedOutQueue, TimeoutMetrics parent) {
+        if (timedOutQueue == null) throw new IllegalArgumentException("TimedOut queue cannot be null");
+        this.timedOutQueue = timedOutQueue;
+        this.parent = parent;
+    }
+
+    void submitted() {
+        submitted.increment();
+    }
+
+    void started(long queueWaitNanos) {
+        queueWait.record(queueWaitNanos);
+        if (parent != null) parent.started(queueWaitNanos);
+    }
+
+    void completed(long runNanos, boolean succeeded) {
+        completed.increment();
+        runTime.record(runNanos);
+        if (succeeded) successRunTime.record(runNanos);
+        if (parent != null) parent.completed(runNanos, succeeded);
+    }
+
+    void cancelled(long runNanos) {
+        runTime.record(runNanos);
+        if (parent != null) parent.cancelled(runNanos);
+    }
+
+    void timedOut(long lagNanos) {
+        timedOut.increment();
+        expiryLag.record(lagNanos);
+        if (parent != null) parent.timedOut(lagNanos);
+    }
+
+    void deadlineRejected() {
+        deadlineRejected.increment();
+        if (parent != null) parent.deadlineRejected();
+    }
+
+    void shed() {
+        shed.increment();
+        if (parent != null) parent.shed();
+    }
+
+    void stuck() {
+        stuck.increment();
+        zombies.incrementAndGet();
+        if (parent != null) parent.stuck();
+    }
+
+    void unstuck() {
+        zombies.decrementAndGet();
+        if (parent != null) parent.unstuck();
+    }
+
+    /**
+     * Gives the current values of the metrics.
+     * @return copy of the counters and histograms
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(submitted.sum(), completed.sum(), timedOut.sum(), deadlineRejected.sum(), shed.sum(), stuck.sum(), zombies.get(), timedOutQueue.size(),
+                queueWait.snapshot(), runTime.snapshot(), expiryLag.snapshot());
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server.
+     * @param name object name, for example ed.biodare.concurrent.timeout:type=TimeoutExecutor,name=lookups
+     * @return the registered object name
+     * @throws IllegalArgumentException if the name is malformed or already registered
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Cannot register metrics as: "+name+"; "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes the metrics registered under the given name from the platform MBean server, if present.
+     * @param name object name used in register
+     */
+    public static void unregister(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Cannot unregister metrics: "+name+"; "+e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public long getDeadlineRejected() {
+        return deadlineRejected.sum();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.sum();
+    }
+
+    @Override
+    public long getStuck() {
+        return stuck.sum();
+    }
+
+    @Override
+    public int getZombies() {
+        return zombies.get();
+    }
+
+    @Override
+    public int getTimedOutQueueDepth() {
+        return timedOutQueue.size();
+    }
+
+    @Override
+    public long getQueueWaitP50Micros() {
+        return queueWait.snapshot().getPercentile(50, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getQueueWaitP99Micros() {
+        return queueWait.snapshot().getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getQueueWaitMaxMicros() {
+        return queueWait.snapshot().getMax(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getRunTimeP50Micros() {
+        return runTime.snapshot().getPercentile(50, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getRunTimeP99Micros() {
+        return runTime.snapshot().getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Gives the percentile of the run time of the tasks which completed normally, for example to derive the hedge delay from it.
+     * The timed out, cancelled and failed tasks are not counted, so the percentile is not pulled up by the tasks which ran till
+     * their timeout nor down by the hedge losers which were cut short.
+     * <p>Each call takes a snapshot of the histogram (sums its {@value LatencyHistogram#BUCKETS} striped counters).
+     * @param percentile value between 0 and 100
+     * @param unit unit of the returned value
+     * @return the run time for the percentile, 0 if no task has completed normally yet
+     */
+    public long getRunTimePercentile(double percentile, TimeUnit unit) {
+        return successRunTime.snapshot().getPercentile(percentile, unit);
+    }
+
+    @Override
+    public long getRunTimeMaxMicros() {
+        return runTime.snapshot().getMax(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getExpiryLagP50Micros() {
+        return expiryLag.snapshot().getPercentile(50, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getExpiryLagP99Micros() {
+        return expiryLag.snapshot().getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getExpiryLagMaxMicros() {
+        return expiryLag.snapshot().getMax(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Immutable copy of the metrics values.
+     */
+    public static final class Snapshot {
+
+        private final long submitted;
+        private final long completed;
+        private final long timedOut;
+        private final long deadlineRejected;
+        private final long shed;
+        private final long stuck;
+        private final int zombies;
+        private final int timedOutQueueDepth;
+        private final LatencyHistogram.Snapshot queueWait;
+        private final LatencyHistogram.Snapshot runTime;
+        private final LatencyHistogram.Snapshot expiryLag;
+
+        Snapshot(long submitted, long completed, long timedOut, long deadlineRejected, long shed, long stuck, int zombies, int timedOutQueueDepth,
+                LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot runTime, LatencyHistogram.Snapshot expiryLag) {
+            this.submitted = submitted;
+            this.completed = completed;
+            this.timedOut = timedOut;
+            this.deadlineRejected = deadlineRejected;
+            this.shed = shed;
+            this.stuck = stuck;
+            this.zombies = zombies;
+            this.timedOutQueueDepth = timedOutQueueDepth;
+            this.queueWait = queueWait;
+            this.runTime = runTime;
+            this.expiryLag = expiryLag;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getTimedOut() {
+            return timedOut;
+        }
+
+        public long getDeadlineRejected() {
+            return deadlineRejected;
+        }
+
+        public long getShed() {
+            return shed;
+        }
+
+        public long getStuck() {
+            return stuck;
+        }
+
+        public int getZombies() {
+            return zombies;
+        }
+
+        public int getTimedOutQueueDepth() {
+            return timedOutQueueDepth;
+        }
+
+        public LatencyHistogram.Snapshot getQueueWait() {
+            return queueWait;
+        }
+
+        public LatencyHistogram.Snapshot getRunTime() {
+            return runTime;
+        }
+
+        public LatencyHistogram.Snapshot getExpiryLag() {
+            return expiryLag;
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted + ", completed=" + completed + ", timedOut=" + timedOut
+                    + ", deadlineRejected=" + deadlineRejected + ", shed=" + shed + ", stuck=" + stuck + ", zombies=" + zombies + ", timedOutQueueDepth=" + timedOutQueueDepth
+                    + ", queueWaitP99=" + queueWait.getPercentile(99, TimeUnit.MICROSECONDS) + "us"
+                    + ", runTimeP99=" + runTime.getPercentile(99, TimeUnit.MICROSECONDS) + "us"
+                    + ", expiryLagP99=" + expiryLag.getPercentile(99, TimeUnit.MICROSECONDS) + "us";
+        }
+    }
+}
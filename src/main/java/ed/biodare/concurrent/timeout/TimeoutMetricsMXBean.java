@@ -0,0 +1,48 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+/**
+ * Management interface of the TimeoutMetrics, which exposes the executor counters and latency percentiles over JMX.
+ * All the durations are in microseconds.
+ * @author tzielins
+ */
+public interface TimeoutMetricsMXBean {
+
+    public long getSubmitted();
+
+    public long getCompleted();
+
+    public long getTimedOut();
+
+    public long getDeadlineRejected();
+
+    public long getShed();
+
+    public long getStuck();
+
+    public int getZombies();
+
+    public int getTimedOutQueueDepth();
+
+    public long getQueueWaitP50Micros();
+
+    public long getQueueWaitP99Micros();
+
+    public long getQueueWaitMaxMicros();
+
+    public long getRunTimeP50Micros();
+
+    public long getRunTimeP99Micros();
+
+    public long getRunTimeMaxMicros();
+
+    public long getExpiryLagP50Micros();
+
+    public long getExpiryLagP99Micros();
+
+    public long getExpiryLagMaxMicros();
+}
@@ -0,0 +1,25 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+/**
+ * Decides from when the task timeout is counted.
+ * @author tzielins
+ */
+public enum TimeoutMode {
+
+    /**
+     * The timeout is counted from the start of the task execution, the time spent in the work queue is not charged (the default).
+     */
+    FROM_START,
+
+    /**
+     * The timeout is counted from the task submission, so it is an end-to-end budget which includes the time spent waiting
+     * in the work queue. The tasks which remaining budget is smaller than the executor expected run time are shed
+     * (timed out without running), either at the submission or when the worker takes them from the queue.
+     */
+    FROM_SUBMIT
+}
@@ -0,0 +1,409 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Lightweight timed out task for the fire-and-forget execute(task, timeout, unit) of the executors.
+ * <p>It is timed out as TimeoutFutureTask (inserted into the timedOut queue on start, interrupted by the time keeper),
+ * but it has no result nor waiters: it is not a FutureTask, does not wrap the Runnable, and its outcome is only reported
+ * to the timeout handler (and the metrics). It is the only object allocated per task.
+ * <p>It implements TimeoutFuture only to be served by the timedOut queues, the get methods are not supported.
+ * The exceptions of the task propagate from run, as for the plain execute.
+ * <p>While it runs it is the TimeoutContext of its thread, as the futures are: the task can check its cancellation and budget,
+ * and the futures created by it are its children (allocated only when the first child is created). Created while another
+ * task runs it is the child of that task: limited by its budget, and cancelled or timed out together with it.
+ * @author tzielins
+ */
+final class TimeoutRunnable implements TimeoutFuture<Void>, Runnable {
+
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    /**
+     * The running task is being interrupted by cancel.
+     */
+    private static final int INTERRUPTING = 2;
+    /**
+     * The running task is being interrupted by timeOut.
+     */
+    private static final int TIMING_OUT = 3;
+    private static final int COMPLETED = 4;
+    private static final int CANCELLED = 5;
+    private static final int TIMED_OUT = 6;
+
+    private static final VarHandle STATE;
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(TimeoutRunnable.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile int state;
+
+    private final Runnable task;
+
+    /**
+     * If not null called with the task once it is timed out.
+     */
+    private final Consumer<? super Runnable> timeoutHandler;
+
+    private final BlockingQueue<TimeoutFuture<?>> timedOut;
+
+    private final TimeoutMetrics metrics;
+
+    private final Ticker ticker;
+
+    /**
+     * Timeout in nanoseconds, Long.MAX_VALUE for none.
+     */
+    private final long timeout;
+
+    /**
+     * Deadline in the ticker time or TimeoutFutureTask.NO_DEADLINE.
+     */
+    private final long deadline;
+
+    /**
+     * Expected run time in nanoseconds if the timeout is counted from submission, -1 if it is counted from the start.
+     */
+    private final long expectedRun;
+
+    private final long createdAt;
+
+    private long startedAt;
+
+    private long budget = Long.MAX_VALUE;
+
+    /**
+     * Thread which runs the task, null before the start and once it returned.
+     */
+    private volatile Thread runner;
+
+    /**
+     * The future (or fire-and-forget task) which was running when this one was created, null if none.
+     */
+    private final TimeoutFuture<?> parent;
+
+    /**
+     * Not completed futures created by the task, null if none (guarded by this).
+     */
+    private Set<TimeoutFuture<?>> children;
+
+    /**
+     * Position in the DeadlineHeap or the encoded slot in WorkerDeadlineSlots (below -1), -1 if it is not there.
+     */
+    int queueIndex = -1;
+
+    /**
+     * Entry of this task in the TimingWheel it was inserted into, so it can be disarmed in O(1), null if none.
+     */
+    volatile TimingWheel.Entry wheelEntry;
+
+    /**
+     * Creates new task.
+     * @param task code to run
+     * @param timeoutHandler if not null called (in the time keeper thread) with the task once it is timed out
+     * @param timedOut queue into which the task is inserted on start to be timed out
+     * @param timeout timeout of the task
+     * @param timeoutUnit unit of the timeout
+     * @param ticker source of time
+     * @param deadline deadline in the ticker time or TimeoutFutureTask.NO_DEADLINE
+     * @param expectedRun expected run time in nanoseconds to count the timeout from the submission (and shed the task with smaller
+     * remaining budget), -1 to count it from the start
+     * @param metrics if not null, metrics of the executor to record into
+     */
+    TimeoutRunnable(Runnable task, Consumer<? super Runnable> timeoutHandler, BlockingQueue<TimeoutFuture<?>> timedOut,
+            long timeout, TimeUnit timeoutUnit, Ticker ticker, long deadline, long expectedRun, TimeoutMetrics metrics) {
+        if (task == null) throw new NullPointerException();
+        this.task = task;
+        this.timeoutHandler = timeoutHandler;
+        this.timedOut = timedOut;
+        this.timeout = timeoutUnit.toNanos(timeout);
+        this.ticker = ticker;
+        this.expectedRun = expectedRun;
+        this.metrics = metrics;
+        this.createdAt = ticker.read();
+        TimeoutFuture<?> p = TimeoutFutureTask.currentScope(ticker);
+        if (p != null) {
+            this.parent = p;
+            this.deadline = TimeoutFutureTask.earlierDeadline(deadline, TimeoutFutureTask.scopeEnd(p));
+            TimeoutFutureTask.adopt(p, this);
+        } else {
+            this.parent = null;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Gives the remaining budget of this task if it started now.
+     */
+    private long remainingAt(long now) {
+        long toDeadline = deadline == TimeoutFutureTask.NO_DEADLINE ? Long.MAX_VALUE : deadline - now;
+        long toTimeout = (expectedRun < 0 || timeout == Long.MAX_VALUE) ? timeout : timeout - (now - createdAt);
+        return Math.min(toDeadline, toTimeout);
+    }
+
+    /**
+     * Times out the task without running it if its remaining end-to-end budget is smaller than the expected run time.
+     * @return true if the task has been shed
+     */
+    boolean shedIfDoomed() {
+        if (expectedRun < 0 || remainingAt(ticker.read()) >= expectedRun) return false;
+        if (!STATE.compareAndSet(this, NEW, TIMED_OUT)) return false;
+        if (metrics != null) metrics.shed();
+        finished();
+        handleTimeout();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        if (state != NEW) return;
+        //the children created after the parent was cancelled do not start
+        if (parent != null && parent.isCancelled()) {
+            if (parent.isTimedOut()) timeOut();
+            else cancel(false);
+            return;
+        }
+        runner = Thread.currentThread();
+        if (!STATE.compareAndSet(this, NEW, RUNNING)) {
+            runner = null;
+            return;
+        }
+
+        long now = ticker.read();
+        long remaining = remainingAt(now);
+        boolean late = deadline != TimeoutFutureTask.NO_DEADLINE && deadline - now < 0;
+        if (late || (expectedRun >= 0 && remaining < expectedRun)) {
+            runner = null;
+            if (STATE.compareAndSet(this, RUNNING, TIMED_OUT)) {
+                if (metrics != null) {
+                    if (late) metrics.deadlineRejected();
+                    else metrics.shed();
+                }
+                finished();
+                handleTimeout();
+            }
+            return;
+        }
+
+        startedAt = now;
+        budget = remaining;
+        if (metrics != null) metrics.started(now - createdAt);
+        try {
+            timedOut.put(this);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        TimeoutFuture<?> previous = TimeoutFutureTask.CURRENT.get();
+        TimeoutFutureTask.CURRENT.set(this);
+        boolean succeeded = false;
+        try {
+            task.run();
+            succeeded = true;
+        } finally {
+            TimeoutFutureTask.CURRENT.set(previous);
+            runner = null;
+            timedOut.remove(this);
+            if (STATE.compareAndSet(this, RUNNING, COMPLETED)) {
+                //the failed task counts as completed with exception, as for the futures
+                if (metrics != null) metrics.completed(ticker.read() - startedAt, succeeded);
+                finished();
+            } else {
+                //the interrupt of the timeout must be delivered before the worker leaves the task
+                while (state == INTERRUPTING || state == TIMING_OUT) Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public boolean timeOut() {
+        int s = state;
+        if (s == NEW) {
+            //not started, like the futures rejected at the global deadline
+            if (!STATE.compareAndSet(this, NEW, TIMED_OUT)) return timeOut();
+            finished();
+            handleTimeout();
+            return true;
+        }
+        if (s == RUNNING) {
+            if (!STATE.compareAndSet(this, RUNNING, TIMING_OUT)) return timeOut();
+            interruptRunner();
+            state = TIMED_OUT;
+            if (metrics != null) metrics.timedOut(-getDelay(TimeUnit.NANOSECONDS));
+            finished();
+            handleTimeout();
+            return true;
+        }
+        return s == TIMED_OUT;
+    }
+
+    /**
+     * Checks the flag raised once this task is cancelled or timed out, without reading the clock (see TimeoutContext.check).
+     * @return true if the task should stop
+     */
+    boolean isCancelRequested() {
+        int s = state;
+        return s == INTERRUPTING || s == TIMING_OUT || s >= CANCELLED;
+    }
+
+    /**
+     * Checks if this task is being timed out.
+     * @return true if the timeout was requested
+     */
+    boolean isTimeOutRequested() {
+        int s = state;
+        return s == TIMING_OUT || s == TIMED_OUT;
+    }
+
+    Ticker ticker() {
+        return ticker;
+    }
+
+    /**
+     * Gives the ticker time at which this task will be timed out.
+     * @return end of the budget of the started task, TimeoutFutureTask.NO_DEADLINE if it is not limited or has not started
+     */
+    long endTicks() {
+        long b = budget;
+        //keeps the sum with ticker value from overflowing
+        if (b >= Long.MAX_VALUE / 4) return TimeoutFutureTask.NO_DEADLINE;
+        return startedAt + b;
+    }
+
+    synchronized void addChild(TimeoutFuture<?> child) {
+        if (children == null) children = new HashSet<>();
+        children.add(child);
+    }
+
+    synchronized void removeChild(TimeoutFuture<?> child) {
+        if (children != null) children.remove(child);
+    }
+
+    /**
+     * Called once the task has reached its final state, it leaves its parent and cancels its children if it was cancelled.
+     */
+    private void finished() {
+        if (parent != null) TimeoutFutureTask.disown(parent, this);
+        if (isCancelled()) cancelChildren();
+    }
+
+    /**
+     * Cancels the not completed children of the cancelled task, they are timed out if it was timed out.
+     */
+    private void cancelChildren() {
+        List<TimeoutFuture<?>> orphans;
+        synchronized (this) {
+            if (children == null || children.isEmpty()) return;
+            orphans = new ArrayList<>(children);
+            children.clear();
+        }
+        boolean timeOut = isTimedOut();
+        for (TimeoutFuture<?> child : orphans) {
+            if (timeOut) child.timeOut();
+            else child.cancel(true);
+        }
+    }
+
+    private void interruptRunner() {
+        Thread r = runner;
+        if (r != null) r.interrupt();
+    }
+
+    private void handleTimeout() {
+        if (timeoutHandler == null) return;
+        try {
+            timeoutHandler.accept(task);
+        } catch (RuntimeException | Error e) {
+            //the handler cannot break the time keeper
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (STATE.compareAndSet(this, NEW, CANCELLED)) {
+            finished();
+            return true;
+        }
+        if (!STATE.compareAndSet(this, RUNNING, mayInterruptIfRunning ? INTERRUPTING : CANCELLED)) return false;
+        if (mayInterruptIfRunning) {
+            interruptRunner();
+            state = CANCELLED;
+        }
+        finished();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state >= CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state >= COMPLETED;
+    }
+
+    @Override
+    public boolean isTimedOut() {
+        return state == TIMED_OUT;
+    }
+
+    @Override
+    public Void get() {
+        throw new UnsupportedOperationException("Fire-and-forget task has no result");
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) {
+        throw new UnsupportedOperationException("Fire-and-forget task has no result");
+    }
+
+    @Override
+    public Optional<FutureStorable> task() {
+        return Optional.empty();
+    }
+
+    /**
+     * Gives the time left till this task should be timed out, Long.MAX_VALUE for the task without timeout
+     * or which has not been started yet.
+     * @param unit unit of the returned delay
+     * @return remaining delay
+     */
+    @Override
+    public long getDelay(TimeUnit unit) {
+        long b = budget;
+        if (b == Long.MAX_VALUE) return Long.MAX_VALUE;
+        return unit.convert(b - (ticker.read() - startedAt), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o == this) return 0;
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "[" + task + "]";
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TimeoutExecutor which can also run delayed and periodic tasks, with the timeout applied to each run.
+ * <p>The scheduling uses the same timer as the timeouts: the start of a delayed run is a DelayedAction inserted into the executor
+ * timedOut DeadlineHeap, so one TimeKeeper thread and one heap serve both the starts and the timeouts. Once the start is due,
+ * the time keeper submits the run as a normal TimeoutFutureTask to the pool, so the run is timed out like any other task.
+ * <p>Periodic tasks behave like in ScheduledThreadPoolExecutor: the runs never overlap, the next run is scheduled once
+ * the previous one has finished and its worker has left it (a timed out run which ignores the interrupt delays the next one
+ * until it returns), and the periodic task stops if a run throws an exception or the task is cancelled.
+ * A run which is timed out does not stop the later periods, the number of such runs is given by getTimedOutRuns of the
+ * scheduled future. A delayed one-shot task which is timed out completes its future with TimeoutCancellationException.
+ * <p>On shutdown the delayed and periodic tasks which are not running are cancelled
+ * (as ScheduledThreadPoolExecutor with both shutdown policies set to false).
+ * @param <V>
+ * @author tzielins
+ */
+public class TimeoutScheduledExecutor<V> extends TimeoutFixPoolExecutor<V> implements ScheduledExecutorService {
+
+    /**
+     * Scheduled tasks which have not finished yet.
+     */
+    private final Set<ScheduledRuns<?>> scheduled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates new scheduled executor that uses given number of threads, and which will use the provided value for the default timeout.
+     * @param nThreads number of threads this executor uses for running the tasks
+     * @param defaultTimeOut value of timeout for all the runs without explicit timeout
+     * @param defaultTimeOutUnit unit for the timeout
+     */
+    public TimeoutScheduledExecutor(int nThreads, long defaultTimeOut, TimeUnit defaultTimeOutUnit) {
+        this(nThreads, defaultTimeOut, defaultTimeOutUnit, null);
+    }
+
+    /**
+     * Creates new scheduled executor that uses given number of threads, and which will use the provided value for the default timeout.
+     * Additionally it will insert the finished runs into the provided completionQueue.
+     * @param nThreads number of threads this executor uses for running the tasks
+     * @param defaultTimeOut value of timeout for all the runs without explicit timeout
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param completionQueue if not null the finished runs will be inserted into this queue (regardless if they finished successfully or not)
+     */
+    public TimeoutScheduledExecutor(int nThreads, long defaultTimeOut, TimeUnit defaultTimeOutUnit, Queue<TimeoutFuture<?>> completionQueue) {
+        super(nThreads, defaultTimeOut, defaultTimeOutUnit, new LinkedBlockingQueue<Runnable>(), completionQueue, new DeadlineHeap());
+    }
+
+    @Override
+    public TimeoutScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (command == null) throw new NullPointerException();
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    @Override
+    public <T> TimeoutScheduledFuture<T> schedule(Callable<T> callable, long delay, TimeUnit unit) {
+        return start(callable, 0, getDefaultTimeOut(TimeUnit.NANOSECONDS), unit.toNanos(delay));
+    }
+
+    /**
+     * Runs the task once after the delay, the run is timed out after the timeout counted from its start.
+     * @param <T> type of the result
+     * @param callable the task
+     * @param delay delay of the run
+     * @param timeout timeout of the run
+     * @param unit unit of the delay and timeout
+     * @return future completed with the task result, or with TimeoutCancellationException if the run was timed out
+     */
+    public <T> TimeoutScheduledFuture<T> schedule(Callable<T> callable, long delay, long timeout, TimeUnit unit) {
+        return start(callable, 0, unit.toNanos(timeout), unit.toNanos(delay));
+    }
+
+    /**
+     * Runs the task once after the delay, the run is timed out after the timeout counted from its start.
+     * @param command the task
+     * @param delay delay of the run
+     * @param timeout timeout of the run
+     * @param unit unit of the delay and timeout
+     * @return future completed once the task has run, or with TimeoutCancellationException if the run was timed out
+     */
+    public TimeoutScheduledFuture<?> schedule(Runnable command, long delay, long timeout, TimeUnit unit) {
+        if (command == null) throw new NullPointerException();
+        return schedule(Executors.callable(command), delay, timeout, unit);
+    }
+
+    private <T> TimeoutScheduledFuture<T> start(Callable<T> callable, long periodNanos, long timeoutNanos, long delayNanos) {
+        if (callable == null) throw new NullPointerException();
+        return new ScheduledRuns<>(callable, periodNanos, timeoutNanos, delayNanos).start();
+    }
+
+    @Override
+    public TimeoutScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (command == null) throw new NullPointerException();
+        if (period <= 0) throw new IllegalArgumentException("Period must be positive not: "+period);
+        return start(Executors.callable(command), unit.toNanos(period), getDefaultTimeOut(TimeUnit.NANOSECONDS), unit.toNanos(initialDelay));
+    }
+
+    /**
+     * Runs the task periodically, the runs start at initialDelay, initialDelay + period and so on (later if the previous
+     * run takes longer than the period). Each run is timed out after the timeout, which does not stop the following runs.
+     * @param command the task
+     * @param initialDelay delay of the first run
+     * @param period period between the starts of the runs
+     * @param timeout timeout of each run
+     * @param unit unit of the delay, period and timeout
+     * @return future which can be used to cancel the task, it completes only exceptionally if a run fails
+     */
+    public TimeoutScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, long timeout, TimeUnit unit) {
+        if (command == null) throw new NullPointerException();
+        if (period <= 0) throw new IllegalArgumentException("Period must be positive not: "+period);
+        return start(Executors.callable(command), unit.toNanos(period), unit.toNanos(timeout), unit.toNanos(initialDelay));
+    }
+
+    @Override
+    public TimeoutScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (command == null) throw new NullPointerException();
+        if (delay <= 0) throw new IllegalArgumentException("Delay must be positive not: "+delay);
+        return start(Executors.callable(command), -unit.toNanos(delay), getDefaultTimeOut(TimeUnit.NANOSECONDS), unit.toNanos(initialDelay));
+    }
+
+    /**
+     * Runs the task periodically, the first run starts after the initialDelay and the next ones after the delay since
+     * the previous run finished. Each run is timed out after the timeout, which does not stop the following runs.
+     * @param command the task
+     * @param initialDelay delay of the first run
+     * @param delay delay between the end of a run and the start of the next
+     * @param timeout timeout of each run
+     * @param unit unit of the delays and timeout
+     * @return future which can be used to cancel the task, it completes only exceptionally if a run fails
+     */
+    public TimeoutScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, long timeout, TimeUnit unit) {
+        if (command == null) throw new NullPointerException();
+        if (delay <= 0) throw new IllegalArgumentException("Delay must be positive not: "+delay);
+        return start(Executors.callable(command), -unit.toNanos(delay), unit.toNanos(timeout), unit.toNanos(initialDelay));
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        cancelScheduled();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = super.shutdownNow();
+        cancelScheduled();
+        return pending;
+    }
+
+    private void cancelScheduled() {
+        for (ScheduledRuns<?> future : scheduled) {
+            //the running ones finish their current run
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Delayed or periodic task, which is triggered by the time keeper and run as TimeoutFutureTask by the pool.
+     */
+    final class ScheduledRuns<T> extends CompletableFuture<T> implements TimeoutScheduledFuture<T> {
+
+        private final Callable<T> callable;
+        /**
+         * Period in nanoseconds: 0 for one-shot task, positive for fixed rate, negative for fixed delay.
+         */
+        private final long period;
+        private final long timeout;
+
+        /**
+         * Ticker time of the next run.
+         */
+        private volatile long nextRunAt;
+        private volatile DelayedAction trigger;
+        private volatile TimeoutFuture<T> current;
+
+        private final AtomicLong timedOutRuns = new AtomicLong();
+
+        ScheduledRuns(Callable<T> callable, long period, long timeout, long delay) {
+            this.callable = callable;
+            this.period = period;
+            this.timeout = timeout;
+            this.nextRunAt = getTicker().read() + Math.max(0, delay);
+        }
+
+        ScheduledRuns<T> start() {
+            if (isShutdown()) throw new RejectedExecutionException("Executor has been shut down");
+            scheduled.add(this);
+            arm();
+            //shutdown in the meantime
+            if (isShutdown()) cancel(false);
+            return this;
+        }
+
+        /**
+         * Inserts the trigger of the next run into the timedOut heap.
+         */
+        private void arm() {
+            DelayedAction next = new DelayedAction(this::fire, nextRunAt - getTicker().read(), TimeUnit.NANOSECONDS, getTicker());
+            trigger = next;
+            timedOut().offer(next);
+            if (isDone()) disarm();
+        }
+
+        private void disarm() {
+            DelayedAction t = trigger;
+            if (t != null && t.cancel(false)) timedOut().remove(t);
+        }
+
+        /**
+         * Called by the time keeper, submits the run to the pool.
+         */
+        private void fire() {
+            if (isDone()) return;
+            if (isShutdown()) {
+                cancel(false);
+                return;
+            }
+
+            Run body = new Run();
+            TimeoutFuture<T> run = newTaskFor(body, timeout, TimeUnit.NANOSECONDS);
+            current = run;
+            TimeoutFutureTask.stageOf(run).whenComplete((result, error) -> finished(body, run, result, error));
+            try {
+                execute(run);
+            } catch (RuntimeException e) {
+                //rejected, the time keeper thread must not die
+                cancel(false);
+            }
+        }
+
+        private void finished(Run body, TimeoutFuture<T> run, T result, Throwable error) {
+            if (!isDone()) {
+                if (run.isTimedOut()) {
+                    timedOutRuns.incrementAndGet();
+                    if (period == 0) completeExceptionally(error);
+                } else if (error != null) {
+                    //failed or cancelled run stops the task
+                    completeExceptionally(error);
+                } else if (period == 0) {
+                    complete(result);
+                }
+            }
+            body.done();
+        }
+
+        /**
+         * Arms the next period, called once the run is done and its worker has left it.
+         */
+        private void next() {
+            current = null;
+            if (isDone()) return;
+
+            long now = getTicker().read();
+            nextRunAt = period > 0 ? nextRunAt + period : now - period;
+            arm();
+        }
+
+        /**
+         * Body of one run, the next period is armed once both the run future is done and the worker has left the body,
+         * as a timed out run is done while the body which ignores the interrupt still runs. The body which has not been
+         * entered before the run is done never runs, so it counts as left.
+         */
+        private final class Run implements Callable<T> {
+
+            private final AtomicBoolean entered = new AtomicBoolean();
+            /**
+             * Number of the events (done and left) still awaited before the next period.
+             */
+            private final AtomicInteger pending = new AtomicInteger(2);
+
+            @Override
+            public T call() throws Exception {
+                //lost to done, the future is already completed so the result does not matter
+                if (!entered.compareAndSet(false, true)) return null;
+                try {
+                    return callable.call();
+                } finally {
+                    arrive();
+                }
+            }
+
+            void done() {
+                if (entered.compareAndSet(false, true)) arrive();
+                arrive();
+            }
+
+            private void arrive() {
+                if (pending.decrementAndGet() == 0) next();
+            }
+        }
+
+        @Override
+        public boolean complete(T value) {
+            boolean completed = super.complete(value);
+            if (completed) scheduled.remove(this);
+            return completed;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            boolean completed = super.completeExceptionally(ex);
+            if (completed) scheduled.remove(this);
+            return completed;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                scheduled.remove(this);
+                disarm();
+                TimeoutFuture<T> run = current;
+                if (run != null && mayInterruptIfRunning) run.cancel(true);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public long getTimedOutRuns() {
+            return timedOutRuns.get();
+        }
+
+        @Override
+        public boolean isTimedOut() {
+            return period == 0 && timedOutRuns.get() > 0;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextRunAt - getTicker().read(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            if (o == this) return 0;
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
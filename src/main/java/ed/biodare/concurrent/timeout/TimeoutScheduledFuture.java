@@ -0,0 +1,34 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Future of a delayed or periodic task of the TimeoutScheduledExecutor, which runs are limited by timeout.
+ * @author tzielins
+ * @param <V> The result type returned by this Future's {@code get} method
+ */
+public interface TimeoutScheduledFuture<V> extends ScheduledFuture<V> {
+
+    /**
+     * Gives the number of runs of this task which have been timed out.
+     * @return number of timed out runs
+     */
+    public long getTimedOutRuns();
+
+    /**
+     * Checks if the one-shot task has been timed out, in which case its get throws TimeoutCancellationException.
+     * The periodic tasks are never timed out as a whole.
+     * @return true if the run of the one-shot task was timed out
+     */
+    public boolean isTimedOut();
+
+    /**
+     * @return true if the task runs periodically
+     */
+    public boolean isPeriodic();
+}
@@ -0,0 +1,262 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Timeout settings and task factory shared by TimeoutFixPoolExecutor, TimeoutVirtualThreadExecutor and TimeoutForkJoinExecutor.
+ * <p>It keeps the default timeout, global deadline, timeout mode and ticker of one executor, and creates the TimeoutFutureTasks
+ * and TimeoutRunnables armed in its timedOut queue. The executors only decide where the created tasks run: the submit methods
+ * take the executor which runs the task. The settings can be changed at any time, they affect the tasks created afterwards.
+ * @author tzielins
+ */
+final class TimeoutTaskFactory {
+
+    /**
+     * If not null a 'listener' queue into which task will be inserted once they are completed (with success or without).
+     */
+    private final Queue<TimeoutFuture<?>> completionQueue;
+    /**
+     * Queue of tasks which should be cancelled due to their timeout.
+     */
+    private final BlockingQueue<TimeoutFuture<?>> timedOut;
+    /**
+     * Counters and timings of the tasks of the executor.
+     */
+    private final TimeoutMetrics metrics;
+    /**
+     * If not null the compensation of stuck workers which watches the created tasks once it is enabled.
+     */
+    private final StuckWorkers stuckWorkers;
+
+    /**
+     * Point in time in milliseconds, after reaching which all the tasks will become timedout.
+     */
+    private volatile long globalDeadline = Long.MAX_VALUE;
+    /**
+     * The global deadline converted to the ticker time (once, when it is set), TimeoutFutureTask.NO_DEADLINE if there is none.
+     */
+    private volatile long globalDeadlineTicks = TimeoutFutureTask.NO_DEADLINE;
+    /**
+     * Monotonic source of time for the tasks timeouts.
+     */
+    private volatile Ticker ticker = Ticker.SYSTEM;
+    /**
+     * Decides if the timeout is counted from the task start or its submission.
+     */
+    private volatile TimeoutMode timeoutMode = TimeoutMode.FROM_START;
+    /**
+     * Expected run time of the tasks in nanoseconds, in FROM_SUBMIT mode the tasks with smaller remaining budget are shed.
+     */
+    private volatile long expectedRunNanos = 0;
+    /**
+     * The default timeout use for task without explicit time out.
+     */
+    private volatile long defaultTimeOut;
+    /**
+     * Unit of the defaultTimeOut.
+     */
+    private volatile TimeUnit defaultTimeOutUnit;
+
+    /**
+     * Creates the factory of the executor tasks.
+     * @param timedOut queue served by the time keepers of the executor
+     * @param completionQueue if not null the completed tasks are inserted into it
+     * @param metrics metrics of the executor
+     * @param stuckWorkers compensation of the stuck workers or null if the executor does not support it
+     * @param defaultTimeOut timeout of the tasks submitted without explicit one
+     * @param defaultTimeOutUnit unit of the default timeout
+     */
+    TimeoutTaskFactory(BlockingQueue<TimeoutFuture<?>> timedOut, Queue<TimeoutFuture<?>> completionQueue, TimeoutMetrics metrics,
+            StuckWorkers stuckWorkers, long defaultTimeOut, TimeUnit defaultTimeOutUnit) {
+        this.timedOut = timedOut;
+        this.completionQueue = completionQueue;
+        this.metrics = metrics;
+        this.stuckWorkers = stuckWorkers;
+        this.defaultTimeOut = defaultTimeOut;
+        this.defaultTimeOutUnit = defaultTimeOutUnit;
+    }
+
+    /**
+     * Checks if the task can be dropped at submission, as it would reach its deadline before completing (see shedIfDoomed
+     * of the tasks), the dropped task is counted as submitted.
+     * @param command the executed runnable
+     * @return true if the task has been shed and must not be queued
+     */
+    boolean shedIfDoomed(Runnable command) {
+        if ((command instanceof TimeoutFutureTask && ((TimeoutFutureTask<?>)command).shedIfDoomed())
+                || (command instanceof TimeoutRunnable && ((TimeoutRunnable)command).shedIfDoomed())) {
+            metrics.submitted();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the task with the default timeout, limited by the global deadline.
+     */
+    <T> TimeoutFutureTask<T> newTask(Callable<T> callable) {
+        return newTask(callable, defaultTimeOut, defaultTimeOutUnit);
+    }
+
+    /**
+     * Creates the task limited by the timeout and the global deadline.
+     */
+    <T> TimeoutFutureTask<T> newTask(Callable<T> callable, long timeout, TimeUnit timeUnit) {
+        return newTask(callable, timeout, timeUnit, globalDeadlineTicks, completionQueue, metrics);
+    }
+
+    /**
+     * Creates the task limited by the timeout, its own deadline and the global deadline.
+     */
+    <T> TimeoutFutureTask<T> newTask(Callable<T> callable, long timeout, TimeUnit timeUnit, Instant deadline) {
+        long own = TimeoutFutureTask.tickerDeadline(deadline, ticker);
+        return newTask(callable, timeout, timeUnit, TimeoutFutureTask.earlierDeadline(globalDeadlineTicks, own), completionQueue, metrics);
+    }
+
+    /**
+     * Creates the task limited by the timeout and the global deadline, which reports its completion and records its metrics
+     * into the given ones instead of the executor ones (used by the lanes).
+     */
+    <T> TimeoutFutureTask<T> newTask(Callable<T> callable, long timeout, TimeUnit timeUnit,
+            Queue<TimeoutFuture<?>> completionQueue, TimeoutMetrics metrics) {
+        return newTask(callable, timeout, timeUnit, globalDeadlineTicks, completionQueue, metrics);
+    }
+
+    private <T> TimeoutFutureTask<T> newTask(Callable<T> callable, long timeout, TimeUnit timeUnit, long deadline,
+            Queue<TimeoutFuture<?>> completionQueue, TimeoutMetrics metrics) {
+        TimeoutFutureTask<T> task = new TimeoutFutureTask<>(callable, timedOut, completionQueue, timeout, timeUnit, ticker, deadline, metrics);
+        if (timeoutMode == TimeoutMode.FROM_SUBMIT) task.budgetFromSubmit(expectedRunNanos);
+        if (stuckWorkers != null && stuckWorkers.isEnabled()) task.watchedBy(stuckWorkers);
+        return task;
+    }
+
+    /**
+     * Creates the fire-and-forget task limited by the timeout and the global deadline.
+     */
+    TimeoutRunnable newRunnable(Runnable task, long timeout, TimeUnit timeOutUnit, Consumer<? super Runnable> timeoutHandler) {
+        if (task == null) throw new NullPointerException();
+        long expectedRun = timeoutMode == TimeoutMode.FROM_SUBMIT ? expectedRunNanos : -1;
+        return new TimeoutRunnable(task, timeoutHandler, timedOut, timeout, timeOutUnit, ticker, globalDeadlineTicks, expectedRun, metrics);
+    }
+
+    <T> TimeoutFuture<T> submit(Executor executor, Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        TimeoutFuture<T> future = newTask(task, timeout, timeOutUnit);
+        executor.execute(future);
+        return future;
+    }
+
+    <T> TimeoutFuture<T> submit(Executor executor, Callable<T> task, long timeout, TimeUnit timeOutUnit, Instant deadline) {
+        if (task == null || deadline == null) throw new NullPointerException();
+        TimeoutFuture<T> future = newTask(task, timeout, timeOutUnit, deadline);
+        executor.execute(future);
+        return future;
+    }
+
+    <T> CompletionStage<T> submitAsync(Executor executor, Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        TimeoutFuture<T> future = newTask(task, timeout, timeOutUnit);
+        CompletionStage<T> stage = TimeoutFutureTask.stageOf(future);
+        executor.execute(future);
+        return stage;
+    }
+
+    <T> TimeoutFuture<T> submitHedged(Executor executor, Callable<T> task, long hedgeDelay, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        //the attempts do not report to the completion queue, only the hedged future does
+        HedgedFuture<T> future = new HedgedFuture<>(task, timeOutUnit.toNanos(timeout),
+                (c, attemptTimeout, unit) -> newTask(c, attemptTimeout, unit, globalDeadlineTicks, null, metrics), executor, completionQueue);
+        return future.start(timeOutUnit.toNanos(hedgeDelay), this::scheduleAction);
+    }
+
+    <T> TimeoutFuture<T> submitWithRetry(Executor executor, Callable<T> task, long attemptTimeout, long budget, TimeUnit timeOutUnit,
+            RetryPolicy policy) {
+        if (task == null || policy == null) throw new NullPointerException();
+        long end = TimeoutFutureTask.earlierDeadline(globalDeadlineTicks, TimeoutFutureTask.deadlineAfter(timeOutUnit.toNanos(budget), ticker));
+        RetryingFuture<T> future = new RetryingFuture<>(task, timeOutUnit.toNanos(attemptTimeout), end, ticker, policy,
+                (c, timeout, unit) -> newTask(c, timeout, unit, end, null, metrics), executor, completionQueue);
+        return future.start(this::scheduleAction);
+    }
+
+    /**
+     * Schedules the action of a hedged or retried task, it waits in the same queue as the running tasks,
+     * served by the same time keepers (or the shared timer service) and measured with the same ticker.
+     * @return the scheduled action, or null if it could not be queued
+     */
+    Future<?> scheduleAction(Runnable action, long delayNanos) {
+        DelayedAction delayed = new DelayedAction(action, delayNanos, TimeUnit.NANOSECONDS, ticker);
+        return timedOut.offer(delayed) ? delayed : null;
+    }
+
+    void setDefaultTimeOut(long timeout, TimeUnit timeoutUnit) {
+        defaultTimeOut = timeout;
+        defaultTimeOutUnit = timeoutUnit;
+    }
+
+    long getDefaultTimeOut(TimeUnit unit) {
+        return unit.convert(defaultTimeOut, defaultTimeOutUnit);
+    }
+
+    void setGlobalDeadline(Date deadline) {
+        globalDeadline = deadline.getTime();
+        globalDeadlineTicks = TimeoutFutureTask.tickerDeadline(globalDeadline, ticker);
+    }
+
+    void resetGlobalDeadline() {
+        globalDeadline = Long.MAX_VALUE;
+        globalDeadlineTicks = TimeoutFutureTask.NO_DEADLINE;
+    }
+
+    boolean hasGlobalDeadline() {
+        return globalDeadline < Long.MAX_VALUE;
+    }
+
+    Date getGlobalDeadline() {
+        return new Date(globalDeadline);
+    }
+
+    void setTimeoutMode(TimeoutMode mode) {
+        if (mode == null) throw new IllegalArgumentException("Timeout mode cannot be null");
+        timeoutMode = mode;
+    }
+
+    TimeoutMode getTimeoutMode() {
+        return timeoutMode;
+    }
+
+    void setExpectedRunTime(long runTime, TimeUnit unit) {
+        if (runTime < 0) throw new IllegalArgumentException("Expected run time cannot be negative: "+runTime);
+        expectedRunNanos = unit.toNanos(runTime);
+    }
+
+    long getExpectedRunTime(TimeUnit unit) {
+        return unit.convert(expectedRunNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the ticker, the global deadline (if already set) is converted to the new ticker time.
+     */
+    void setTicker(Ticker ticker) {
+        if (ticker == null) throw new IllegalArgumentException("Ticker cannot be null");
+        this.ticker = ticker;
+        globalDeadlineTicks = TimeoutFutureTask.tickerDeadline(globalDeadline, ticker);
+    }
+
+    Ticker getTicker() {
+        return ticker;
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of TimeoutExecutor which runs each task on its own virtual thread.
+ * <p>It is meant for tasks which mostly block on I/O, as their number is not capped by the size of the thread pool.
+ * The concurrency can still be limited by the optional semaphore, the tasks over the limit wait in a FIFO queue (without a thread)
+ * and get their thread once a permit is free, in the order of their submission, so a later task cannot overtake an earlier one
+ * and push it past its deadline. Their timeout starts once they run.
+ * <p>The timeouts work the same way as in TimeoutFixPoolExecutor: the tasks are TimeoutFutureTask which insert themselves
+ * into the timedOut queue and TimeKeeper times them out, which interrupts their virtual threads. The default timeout, global deadline
+ * and completion queue have the same semantics as well.
+ * <p>Virtual threads need Java 21, on older runtimes (see VirtualThreads) each task gets a new platform thread instead.
+ * <p>The executor is not pooling threads, so shutdownNow interrupts all the running tasks and returns only the tasks
+ * which waited for a permit.
+ * @author tzielins
+ */
+public class TimeoutVirtualThreadExecutor extends AbstractExecutorService implements TimeoutExecutor {
+
+    /**
+     * Value of maxConcurrency meaning no limit.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * Counters and timings of the tasks of this executor.
+     */
+    private final TimeoutMetrics metrics;
+
+    /**
+     * Own time keepers, empty if the shared timer service is used.
+     */
+    private final List<TimeKeeper> timeKeepers;
+
+    /**
+     * If not null the shared timer service which times out the tasks instead of own time keepers.
+     */
+    private final SharedTimerService timerService;
+
+    private final AtomicBoolean timerReleased = new AtomicBoolean(false);
+
+    /**
+     * Limits number of concurrently running tasks, null if unlimited.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Tasks waiting for a permit in the order of submission, they are given their threads by startWaiting.
+     */
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Threads of the running tasks, so they can be interrupted by shutdownNow.
+     */
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of the accepted tasks which have not finished yet.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final ReentrantLock terminationLock = new ReentrantLock();
+
+    private final Condition termination = terminationLock.newCondition();
+
+    private volatile boolean shutdown;
+
+    /**
+     * Set by shutdownNow, the waiting tasks are not started anymore.
+     */
+    private volatile boolean stopped;
+
+    private volatile boolean terminated;
+
+    /**
+     * Timeout settings of this executor and the factory of its tasks.
+     */
+    private final TimeoutTaskFactory tasks;
+
+    /**
+     * Creates new executor without default timeout and concurrency limit.
+     */
+    public TimeoutVirtualThreadExecutor() {
+        this(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates new executor without concurrency limit.
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     */
+    public TimeoutVirtualThreadExecutor(long defaultTimeOut, TimeUnit defaultTimeOutUnit) {
+        this(defaultTimeOut, defaultTimeOutUnit, UNLIMITED);
+    }
+
+    /**
+     * Creates new executor.
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param maxConcurrency maximal number of concurrently running tasks, UNLIMITED for no limit
+     */
+    public TimeoutVirtualThreadExecutor(long defaultTimeOut, TimeUnit defaultTimeOutUnit, int maxConcurrency) {
+        this(defaultTimeOut, defaultTimeOutUnit, maxConcurrency, null);
+    }
+
+    /**
+     * Creates new executor.
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param maxConcurrency maximal number of concurrently running tasks, UNLIMITED for no limit
+     * @param completionQueue if not null the completed tasks will be inserted into this queue (regardless if they finished successfully or not)
+     */
+    public TimeoutVirtualThreadExecutor(long defaultTimeOut, TimeUnit defaultTimeOutUnit, int maxConcurrency,
+            Queue<TimeoutFuture<?>> completionQueue) {
+        this(defaultTimeOut, defaultTimeOutUnit, maxConcurrency, completionQueue, new DeadlineHeap());
+    }
+
+    /**
+     * Creates new executor.
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param maxConcurrency maximal number of concurrently running tasks, UNLIMITED for no limit
+     * @param completionQueue if not null the completed tasks will be inserted into this queue (regardless if they finished successfully or not)
+     * @param timedOut empty queue into which the running tasks are inserted and which releases them once they have to be timed out
+     */
+    public TimeoutVirtualThreadExecutor(long defaultTimeOut, TimeUnit defaultTimeOutUnit, int maxConcurrency,
+            Queue<TimeoutFuture<?>> completionQueue, BlockingQueue<TimeoutFuture<?>> timedOut) {
+        this(defaultTimeOut, defaultTimeOutUnit, maxConcurrency, completionQueue, timedOut, null);
+    }
+
+    /**
+     * Creates new executor which uses the shared timer service instead of own time keeper.
+     * @param defaultTimeOut value of timeout for all the tasks without explicit timeout set in submit method
+     * @param defaultTimeOutUnit unit for the timeout
+     * @param maxConcurrency maximal number of concurrently running tasks, UNLIMITED for no limit
+     * @param completionQueue if not null the completed tasks will be inserted into this queue (regardless if they finished successfully or not)
+     * @param timerService timer service shared with other executors which will time out the tasks
+     */
+    public TimeoutVirtualThreadExecutor(long defaultTimeOut, TimeUnit defaultTimeOutUnit, int maxConcurrency,
+            Queue<TimeoutFuture<?>> completionQueue, SharedTimerService timerService) {
+        this(defaultTimeOut, defaultTimeOutUnit, maxConcurrency, completionQueue,
+                timerService == null ? null : timerService.timedOut(), timerService);
+    }
+
+    private TimeoutVirtualThreadExecutor(long defaultTimeOut, TimeUnit defaultTimeOutUnit, int maxConcurrency,
+            Queue<TimeoutFuture<?>> completionQueue, BlockingQueue<TimeoutFuture<?>> timedOut, SharedTimerService timerService) {
+        if (maxConcurrency <= 0) throw new IllegalArgumentException("Max concurrency must be positive not: "+maxConcurrency);
+        if (timedOut == null) throw new IllegalArgumentException("TimedOut queue cannot be null");
+
+        this.metrics = new TimeoutMetrics(timedOut);
+        this.tasks = new TimeoutTaskFactory(timedOut, completionQueue, metrics, null, defaultTimeOut, defaultTimeOutUnit);
+        this.timerService = timerService;
+        this.permits = maxConcurrency == UNLIMITED ? null : new Semaphore(maxConcurrency);
+        this.threadFactory = VirtualThreads.factory();
+
+        if (timerService != null) {
+            timerService.register();
+            this.timeKeepers = Collections.emptyList();
+        } else {
+            this.timeKeepers = TimeKeeper.startFor(timedOut, false);
+        }
+    }
+
+    /**
+     * Checks if the tasks run on virtual threads, which depends on the Java runtime.
+     * @return true if virtual threads are used
+     */
+    public static boolean usesVirtualThreads() {
+        return VirtualThreads.isSupported();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) throw new NullPointerException();
+        if (shutdown) throw new RejectedExecutionException("Executor has been shut down");
+        //the doomed tasks do not get a thread at all
+        if (tasks.shedIfDoomed(command)) return;
+
+        active.incrementAndGet();
+        if (shutdown) {
+            finished();
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        if (permits == null) {
+            try {
+                start(command);
+            } catch (RuntimeException | Error e) {
+                finished();
+                throw e;
+            }
+        } else {
+            waiting.offer(command);
+            startWaiting();
+        }
+        metrics.submitted();
+    }
+
+    private void start(Runnable command) {
+        Thread thread = threadFactory.newThread(() -> run(command));
+        if (thread == null) throw new RejectedExecutionException("Thread factory did not provide a thread");
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Starts the waiting tasks in their order while there are free permits. It is called after each submission and after each
+     * release of a permit, so a task offered while the permit is being released is not left behind.
+     */
+    private void startWaiting() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                permits.release();
+                continue;
+            }
+            if (stopped) {
+                permits.release();
+                dropWaiting(next);
+                continue;
+            }
+            try {
+                start(next);
+            } catch (RuntimeException | Error e) {
+                permits.release();
+                dropWaiting(next);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Cancels the waiting task which will not be started.
+     */
+    private void dropWaiting(Runnable command) {
+        if (command instanceof Future) ((Future<?>)command).cancel(false);
+        finished();
+    }
+
+    @Override
+    public void execute(Runnable task, long timeout, TimeUnit timeOutUnit, Consumer<? super Runnable> timeoutHandler) {
+        execute(tasks.newRunnable(task, timeout, timeOutUnit, timeoutHandler));
+    }
+
+    private void run(Runnable command) {
+        try {
+            command.run();
+        } finally {
+            threads.remove(Thread.currentThread());
+            if (permits != null) {
+                //the permit passes to the next waiting task
+                permits.release();
+                startWaiting();
+            }
+            finished();
+        }
+    }
+
+    private void finished() {
+        if (active.decrementAndGet() == 0 && shutdown) tryTerminate();
+    }
+
+    private void tryTerminate() {
+        terminationLock.lock();
+        try {
+            if (terminated || !shutdown || active.get() != 0) return;
+            terminated = true;
+            releaseTimer();
+            termination.signalAll();
+        } finally {
+            terminationLock.unlock();
+        }
+    }
+
+    /**
+     * Stops own time keepers or unregisters from the shared timer service, only the first call has effect.
+     */
+    private void releaseTimer() {
+        if (!timerReleased.compareAndSet(false, true)) return;
+
+        timeKeepers.forEach(TimeKeeper::stop);
+        if (timerService != null) timerService.unregister();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        tryTerminate();
+    }
+
+    /**
+     * Shuts down the executor, interrupts all the running tasks and cancels the ones waiting for the concurrency permit.
+     * @return the cancelled tasks which waited for a permit
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        stopped = true;
+        shutdown();
+        List<Runnable> drained = new ArrayList<>();
+        Runnable command;
+        while ((command = waiting.poll()) != null) {
+            drained.add(command);
+            dropWaiting(command);
+        }
+        threads.forEach(Thread::interrupt);
+        return drained;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        terminationLock.lock();
+        try {
+            while (!terminated) {
+                if (nanos <= 0) return false;
+                nanos = termination.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            terminationLock.unlock();
+        }
+    }
+
+    /**
+     * Gives number of accepted tasks which have not finished yet (including the ones waiting for the concurrency permit).
+     * @return number of active tasks
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    protected <T> TimeoutFuture<T> newTaskFor(Runnable runnable, T value) {
+        return newTaskFor(Executors.callable(runnable, value));
+    }
+
+    @Override
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable) {
+        return tasks.newTask(callable);
+    }
+
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable, long timeout, TimeUnit timeUnit) {
+        return tasks.newTask(callable, timeout, timeUnit);
+    }
+
+    /**
+     * Creates the future of the task which is limited by the timeout, its own deadline and the global deadline of this executor.
+     * @param <T> type of the result
+     * @param callable the task
+     * @param timeout timeout of the task
+     * @param timeUnit unit of the timeout
+     * @param deadline the task deadline
+     * @return new future
+     */
+    protected <T> TimeoutFuture<T> newTaskFor(Callable<T> callable, long timeout, TimeUnit timeUnit, Instant deadline) {
+        return tasks.newTask(callable, timeout, timeUnit, deadline);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submit(this, task, timeout, timeOutUnit);
+    }
+
+    @Override
+    public TimeoutFuture<?> submit(Runnable task, long timeout, TimeUnit timeOutUnit) {
+        if (task == null) throw new NullPointerException();
+        return tasks.submit(this, Executors.callable(task), timeout, timeOutUnit);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit, Instant deadline) {
+        return tasks.submit(this, task, timeout, timeOutUnit, deadline);
+    }
+
+    @Override
+    public <T> CompletionStage<T> submitAsync(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submitAsync(this, task, timeout, timeOutUnit);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submitHedged(Callable<T> task, long hedgeDelay, long timeout, TimeUnit timeOutUnit) {
+        return tasks.submitHedged(this, task, hedgeDelay, timeout, timeOutUnit);
+    }
+
+    @Override
+    public <T> TimeoutFuture<T> submitWithRetry(Callable<T> task, long attemptTimeout, long budget, TimeUnit timeOutUnit, RetryPolicy policy) {
+        return tasks.submitWithRetry(this, task, attemptTimeout, budget, timeOutUnit, policy);
+    }
+
+    @Override
+    public void setDefaultTimeOut(long timeout, TimeUnit timeoutUnit) {
+        tasks.setDefaultTimeOut(timeout, timeoutUnit);
+    }
+
+    @Override
+    public long getDefaultTimeOut(TimeUnit unit) {
+        return tasks.getDefaultTimeOut(unit);
+    }
+
+    @Override
+    public void setGlobalDeadline(Date deadline) {
+        tasks.setGlobalDeadline(deadline);
+    }
+
+    @Override
+    public void resetGlobalDeadline() {
+        tasks.resetGlobalDeadline();
+    }
+
+    @Override
+    public boolean hasGlobalDeadline() {
+        return tasks.hasGlobalDeadline();
+    }
+
+    @Override
+    public Date getGlobalDeadline() {
+        return tasks.getGlobalDeadline();
+    }
+
+    @Override
+    public void setTimeoutMode(TimeoutMode mode) {
+        tasks.setTimeoutMode(mode);
+    }
+
+    @Override
+    public TimeoutMode getTimeoutMode() {
+        return tasks.getTimeoutMode();
+    }
+
+    @Override
+    public void setExpectedRunTime(long runTime, TimeUnit unit) {
+        tasks.setExpectedRunTime(runTime, unit);
+    }
+
+    @Override
+    public long getExpectedRunTime(TimeUnit unit) {
+        return tasks.getExpectedRunTime(unit);
+    }
+
+    @Override
+    public TimeoutMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the monotonic source of time used to measure the tasks timeouts, by default Ticker.SYSTEM (System.nanoTime).
+     * <p>Similarly to the global deadline it should be set before submitting tasks. The global deadline, if already set, 
+     * is converted to the new ticker time.
+     * @param ticker source of time for the timeouts
+     */
+    public void setTicker(Ticker ticker) {
+        tasks.setTicker(ticker);
+    }
+
+    /**
+     * Gives the source of time used to measure the tasks timeouts.
+     * @return the ticker
+     */
+    public Ticker getTicker() {
+        return tasks.getTicker();
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timing wheel which can be used instead of the DelayQueue as the timedOut queue of TimeoutFixPoolExecutor.
+ * <p>Arming a future (put) pushes it onto a lock-free stack of pending entries, so starting a task costs O(1) and never
+ * waits for a lock. The consumer (TimeKeeper) advances the wheel tick by tick, moves the pending entries into the wheel buckets
+ * (hashed by their deadline tick) and returns the futures which deadlines have passed.
+ * <p>Disarming (remove) is also O(1): the TimeoutFutureTask and TimeoutRunnable keep the link to their wheel entry, remove
+ * marks the entry as disarmed (so it returns true only once, for an armed entry) and the entry is dropped once its bucket
+ * is visited. So the wheel may hold references to completed futures for at most one revolution of the wheel, but they are
+ * not counted by size, and the consumer parks without ticking while no armed futures are left. Other futures cannot be
+ * found in O(1), remove returns false for them and they are dropped (and uncounted) once their bucket finds them done.
+ * <p>The futures are timed out at the first tick after their deadline, so the timeout precision is limited by the tick duration.
+ * The futures which delay is practically infinite (like the tasks without timeout) are not armed at all.
+ * <p>The wheel is meant for a single consumer thread, all the consumer methods (take, poll, drainTo) are guarded by a lock
+ * which is never taken by the producers, and which the waiting consumer does not hold while parked. The iteration
+ * (so also contains and toString) goes over a snapshot of the armed not done futures, taken under that lock, so it is meant
+ * for diagnostics rather than for frequent use.
+ * @author tzielins
+ */
+public class TimingWheel extends AbstractQueue<TimeoutFuture<?>> implements BlockingQueue<TimeoutFuture<?>> {
+
+    /**
+     * Default duration of a single tick in milliseconds.
+     */
+    public static final long DEFAULT_TICK_MILLIS = 1;
+
+    /**
+     * Default number of buckets in the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Delays above this limit (more than 140 years) are treated as infinite and their futures are not armed.
+     */
+    static final long INFINITE_DELAY = Long.MAX_VALUE / 2;
+
+    /**
+     * Armed future with its deadline expressed in ticks since the wheel creation.
+     */
+    static final class Entry {
+
+        private static final VarHandle GONE;
+        static {
+            try {
+                GONE = MethodHandles.lookup().findVarHandle(Entry.class, "gone", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final TimeoutFuture<?> task;
+        final long deadlineTick;
+        Entry next;
+        /**
+         * Set once the entry is disarmed, expired or dropped as done, it no longer counts as armed.
+         */
+        private volatile boolean gone;
+
+        Entry(TimeoutFuture<?> task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Ends the entry.
+         * @return true only for the call which ended it
+         */
+        boolean end() {
+            return !gone && GONE.compareAndSet(this, false, true);
+        }
+
+        boolean isGone() {
+            return gone;
+        }
+    }
+
+    /**
+     * Duration of one tick in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * System nano time of the wheel creation, the ticks are counted from it.
+     */
+    private final long startNanos;
+
+    /**
+     * Heads of the bucket lists, owned by the consumer.
+     */
+    private final Entry[] wheel;
+
+    private final int mask;
+
+    /**
+     * Lock-free stack of the entries armed since the last advance of the wheel.
+     */
+    private final AtomicReference<Entry> pending = new AtomicReference<>();
+
+    /**
+     * Entries of the expired futures waiting to be taken by the consumer (they can still be disarmed).
+     */
+    private final ArrayDeque<Entry> expired = new ArrayDeque<>();
+
+    /**
+     * Number of the armed entries, which have not been disarmed, taken or dropped as done.
+     */
+    private final AtomicInteger live = new AtomicInteger();
+
+    /**
+     * Guards the consumer state: wheel buckets, expired and tick. It is not held while the consumer is parked.
+     */
+    private final ReentrantLock consumerLock = new ReentrantLock();
+
+    /**
+     * Consumer thread parked while the wheel is empty, producers wake it up.
+     */
+    private volatile Thread waiter;
+
+    /**
+     * Last tick which bucket has been processed.
+     */
+    private long tick;
+
+    /**
+     * Creates new wheel with the default tick of 1 millisecond and 512 buckets.
+     */
+    public TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates new wheel.
+     * @param tickDuration duration of a single tick, it defines the precision of timeouts
+     * @param unit unit of the tickDuration
+     * @param wheelSize number of buckets in the wheel, it will be rounded up to the power of 2.
+     * The wheel revolution (tickDuration*wheelSize) should be longer than typical timeouts.
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be positive not: "+tickDuration);
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) throw new IllegalArgumentException("Wrong wheel size: "+wheelSize);
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        int buckets = 1;
+        while (buckets < wheelSize) buckets <<= 1;
+        this.wheel = new Entry[buckets];
+        this.mask = buckets - 1;
+        this.startNanos = System.nanoTime();
+        this.tick = 0;
+    }
+
+    /**
+     * Arms the future so it will be returned by take once its delay passes.
+     * @param task future to be timed out
+     * @return always true
+     */
+    @Override
+    public boolean offer(TimeoutFuture<?> task) {
+        if (task == null) throw new NullPointerException();
+
+        long delay = task.getDelay(TimeUnit.NANOSECONDS);
+        if (delay >= INFINITE_DELAY) return true;
+
+        long deadlineTick = (System.nanoTime() - startNanos + Math.max(0, delay) + tickNanos - 1) / tickNanos;
+        Entry entry = new Entry(task, deadlineTick);
+        link(task, entry);
+
+        live.incrementAndGet();
+        Entry head;
+        do {
+            head = pending.get();
+            entry.next = head;
+        } while (!pending.compareAndSet(head, entry));
+
+        Thread w = waiter;
+        if (w != null) LockSupport.unpark(w);
+        return true;
+    }
+
+    @Override
+    public void put(TimeoutFuture<?> task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(TimeoutFuture<?> task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    /**
+     * Disarms the future in O(1), the entry is dropped from the wheel once its bucket is visited. Only TimeoutFutureTask
+     * and TimeoutRunnable can be disarmed, the other futures are dropped lazily once they are done.
+     * @param o future to be disarmed
+     * @return true if the future was armed (and not taken yet) and has been disarmed by this call
+     */
+    @Override
+    public boolean remove(Object o) {
+        Entry entry = entryOf(o);
+        if (entry == null || entry.task != o || !entry.end()) return false;
+        live.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives the wheel entry of the future, null if it has none or cannot keep it.
+     */
+    private static Entry entryOf(Object o) {
+        if (o instanceof TimeoutFutureTask) return ((TimeoutFutureTask<?>) o).wheelEntry;
+        if (o instanceof TimeoutRunnable) return ((TimeoutRunnable) o).wheelEntry;
+        return null;
+    }
+
+    private static void link(TimeoutFuture<?> task, Entry entry) {
+        if (task instanceof TimeoutFutureTask) ((TimeoutFutureTask<?>) task).wheelEntry = entry;
+        else if (task instanceof TimeoutRunnable) ((TimeoutRunnable) task).wheelEntry = entry;
+    }
+
+    @Override
+    public TimeoutFuture<?> take() throws InterruptedException {
+        for (;;) {
+            consumerLock.lockInterruptibly();
+            try {
+                TimeoutFuture<?> task = nextExpired(System.nanoTime());
+                if (task != null) return task;
+            } finally {
+                consumerLock.unlock();
+            }
+
+            if (live.get() == 0) {
+                //only the disarmed or done entries are left, there is nothing to tick for
+                waiter = Thread.currentThread();
+                if (live.get() == 0) LockSupport.park(this);
+                waiter = null;
+            } else {
+                LockSupport.parkNanos(this, nanosToNextTick(System.nanoTime()));
+            }
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public TimeoutFuture<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long end = System.nanoTime() + nanos;
+        for (;;) {
+            long now;
+            consumerLock.lockInterruptibly();
+            try {
+                now = System.nanoTime();
+                TimeoutFuture<?> task = nextExpired(now);
+                if (task != null) return task;
+            } finally {
+                consumerLock.unlock();
+            }
+
+            long left = end - now;
+            if (left <= 0) return null;
+            LockSupport.parkNanos(this, Math.min(left, nanosToNextTick(now)));
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public TimeoutFuture<?> poll() {
+        consumerLock.lock();
+        try {
+            return nextExpired(System.nanoTime());
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    @Override
+    public TimeoutFuture<?> peek() {
+        consumerLock.lock();
+        try {
+            advance(System.nanoTime());
+            Entry entry;
+            while ((entry = expired.peek()) != null && entry.isGone()) expired.poll();
+            return entry == null ? null : entry.task;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the expired futures to the collection. Similarly to DelayQueue, the futures which deadline has not passed are left in the wheel.
+     */
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+
+        consumerLock.lock();
+        try {
+            int n = 0;
+            long now = System.nanoTime();
+            while (n < maxElements) {
+                TimeoutFuture<?> task = nextExpired(now);
+                if (task == null) break;
+                c.add(task);
+                n++;
+            }
+            return n;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Gives number of armed futures, the disarmed ones are not counted even if their entries have not been dropped yet
+     * (the other done futures than TimeoutFutureTask and TimeoutRunnable are counted till they are dropped).
+     * @return number of armed entries
+     */
+    @Override
+    public int size() {
+        return live.get();
+    }
+
+    /**
+     * Gives iterator over a snapshot of the armed futures which are not done yet (the expired ones which have not been
+     * taken, the ones in the wheel and the pending ones). The snapshot is taken under the consumer lock, the iterator
+     * does not support remove as the disarming is lazy.
+     * @return iterator over the copy of the content
+     */
+    @Override
+    public Iterator<TimeoutFuture<?>> iterator() {
+        List<TimeoutFuture<?>> copy = new ArrayList<>();
+        consumerLock.lock();
+        try {
+            for (Entry entry : expired) {
+                if (!entry.isGone() && !entry.task.isDone()) copy.add(entry.task);
+            }
+            for (Entry bucket : wheel) {
+                addNotDone(bucket, copy);
+            }
+            //pushing does not change the entries already on the stack, only the consumer relinks them
+            addNotDone(pending.get(), copy);
+        } finally {
+            consumerLock.unlock();
+        }
+        return Collections.unmodifiableList(copy).iterator();
+    }
+
+    private static void addNotDone(Entry entry, List<TimeoutFuture<?>> copy) {
+        for (; entry != null; entry = entry.next) {
+            if (!entry.isGone() && !entry.task.isDone()) copy.add(entry.task);
+        }
+    }
+
+    /**
+     * Gives the next expired future, must be called under the consumer lock.
+     */
+    private TimeoutFuture<?> nextExpired(long now) {
+        if (expired.isEmpty()) advance(now);
+
+        Entry entry;
+        while ((entry = expired.poll()) != null) {
+            //skips the ones disarmed since they expired
+            if (entry.end()) {
+                live.decrementAndGet();
+                return entry.task;
+            }
+        }
+        return null;
+    }
+
+    private long nanosToNextTick(long now) {
+        long elapsed = now - startNanos;
+        return tickNanos - (elapsed % tickNanos);
+    }
+
+    /**
+     * Advances the wheel to the current tick, processing all the buckets on the way. Must be called under the consumer lock.
+     */
+    void advance(long now) {
+        long target = (now - startNanos) / tickNanos;
+
+        transferPending();
+
+        if (target - tick >= wheel.length) {
+            //we are behind by more than a revolution, a single sweep is enough
+            for (int i = 0; i < wheel.length; i++) expireBucket(i, target);
+            tick = target;
+            return;
+        }
+
+        while (tick < target) {
+            tick++;
+            expireBucket((int)(tick & mask), tick);
+        }
+    }
+
+    private void transferPending() {
+        Entry entry = pending.getAndSet(null);
+        while (entry != null) {
+            Entry next = entry.next;
+            if (dropped(entry)) {
+                entry.next = null;
+            } else if (entry.deadlineTick <= tick) {
+                entry.next = null;
+                expired.add(entry);
+            } else {
+                int bucket = (int)(entry.deadlineTick & mask);
+                entry.next = wheel[bucket];
+                wheel[bucket] = entry;
+            }
+            entry = next;
+        }
+    }
+
+    private void expireBucket(int bucket, long currentTick) {
+        Entry entry = wheel[bucket];
+        Entry kept = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (dropped(entry)) {
+                entry.next = null;
+            } else if (entry.deadlineTick <= currentTick) {
+                entry.next = null;
+                expired.add(entry);
+            } else {
+                entry.next = kept;
+                kept = entry;
+            }
+            entry = next;
+        }
+        wheel[bucket] = kept;
+    }
+
+    /**
+     * Checks if the entry should leave the wheel as it was disarmed or its future is done (the latter is uncounted here).
+     * The dropped entries are unlinked, so the futures which keep them do not hold the rest of their bucket.
+     */
+    private boolean dropped(Entry entry) {
+        if (entry.isGone()) return true;
+        if (!entry.task.isDone()) return false;
+        if (entry.end()) live.decrementAndGet();
+        return true;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Source of the threads for TimeoutVirtualThreadExecutor.
+ * <p>This is the fallback version for Java runtimes before 21, which gives new platform thread for each task.
+ * The multi-release jar contains Java 21 version of this class (src/main/java21) which creates virtual threads.
+ * @author tzielins
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Checks if the threads given by the factory are virtual.
+     * @return false as virtual threads need Java 21
+     */
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Gives factory of threads to run the tasks on.
+     * @return factory of platform threads
+     */
+    static ThreadFactory factory() {
+        return Executors.defaultThreadFactory();
+    }
+}
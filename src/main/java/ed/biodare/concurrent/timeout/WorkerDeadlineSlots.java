@@ -0,0 +1,365 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Timed out queue for fixed pools in which each worker thread publishes the deadline of its current task into its own, preallocated slot.
+ * <p>As the fix pool executor can run at most nThreads tasks at the moment, there is no need for a shared structure of the running tasks.
+ * Each worker claims one slot the first time it arms a task (put), and afterwards arming and disarming (remove) are plain writes into
+ * that slot, without any lock or allocation. The consumer (TimeKeeper) scans all the slots, returns the ones after their deadline,
+ * and parks till the earliest of the remaining deadlines. The worker wakes it up only if it publishes an earlier deadline than the one
+ * the consumer waits for.
+ * <p>The number of slots should match the number of worker threads. Threads which cannot claim a slot (because all are taken
+ * by other live threads) use an overflow DeadlineHeap, so the timeouts are still respected.
+ * <p>The structure is meant for a single consumer thread, the consumer methods are guarded by a lock which the workers never take.
+ * @author tzielins
+ */
+public class WorkerDeadlineSlots extends AbstractQueue<TimeoutFuture<?>> implements BlockingQueue<TimeoutFuture<?>> {
+
+    /**
+     * Distance between used array cells, so the slots of different workers do not share cache lines.
+     */
+    static final int STRIDE = 16;
+
+    private final int slots;
+
+    private final AtomicReferenceArray<TimeoutFuture<?>> tasks;
+
+    /**
+     * Deadlines of the published tasks in nanoseconds relative to origin.
+     */
+    private final AtomicLongArray deadlines;
+
+    /**
+     * Threads which claimed the slots.
+     */
+    private final AtomicReferenceArray<Thread> owners;
+
+    /**
+     * Slot index claimed by the current thread, -1 if it did not get one.
+     */
+    private final ThreadLocal<int[]> slotOfThread = new ThreadLocal<>();
+
+    /**
+     * Used by the threads without their own slot.
+     */
+    private final DeadlineHeap overflow = new DeadlineHeap();
+
+    private final long origin = System.nanoTime();
+
+    private final ReentrantLock consumerLock = new ReentrantLock();
+
+    /**
+     * Consumer thread which waits for the earliest deadline.
+     */
+    private volatile Thread consumer;
+
+    /**
+     * Deadline till which the consumer is going to park, workers with earlier deadlines wake it up.
+     * Long.MIN_VALUE while the consumer is scanning (it rescans after publishing the wake up time).
+     */
+    private volatile long nextWakeup = Long.MIN_VALUE;
+
+    /**
+     * Creates slots for the given number of worker threads.
+     * @param slots number of slots, it should be the number of threads of the executor
+     */
+    public WorkerDeadlineSlots(int slots) {
+        if (slots <= 0) throw new IllegalArgumentException("Number of slots must be positive not: "+slots);
+
+        this.slots = slots;
+        this.tasks = new AtomicReferenceArray<>(slots * STRIDE);
+        this.deadlines = new AtomicLongArray(slots * STRIDE);
+        this.owners = new AtomicReferenceArray<>(slots);
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    /**
+     * Gives the slot of the current thread, claiming a free one on the first call.
+     * @return slot number or -1 if all the slots are taken
+     */
+    private int slot() {
+        int[] holder = slotOfThread.get();
+        if (holder == null) {
+            holder = new int[] { claimSlot(Thread.currentThread()) };
+            slotOfThread.set(holder);
+        }
+        return holder[0];
+    }
+
+    private int claimSlot(Thread me) {
+        for (int i = 0; i < slots; i++) {
+            Thread owner = owners.get(i);
+            //slots of terminated workers can be reused by their replacements
+            if ((owner == null || !owner.isAlive()) && owners.compareAndSet(i, owner, me)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Publishes the future deadline in the slot of the current thread.
+     * @param task future run by the current thread
+     * @return always true
+     */
+    @Override
+    public boolean offer(TimeoutFuture<?> task) {
+        if (task == null) throw new NullPointerException();
+
+        long delay = task.getDelay(TimeUnit.NANOSECONDS);
+        if (delay >= TimingWheel.INFINITE_DELAY) return true;
+
+        int slot = slot();
+        TimeoutFuture<?> current = slot < 0 ? null : tasks.get(slot * STRIDE);
+        if (slot < 0 || (current != null && !current.isDone())) {
+            //no slot or the thread runs a task from inside another task
+            overflow.offer(task);
+            if (now() + delay < nextWakeup) wakeUpConsumer();
+            return true;
+        }
+
+        if (task instanceof TimeoutFutureTask) ((TimeoutFutureTask<?>)task).queueIndex = slotIndex(slot);
+        else if (task instanceof TimeoutRunnable) ((TimeoutRunnable)task).queueIndex = slotIndex(slot);
+
+        long deadline = now() + delay;
+        int cell = slot * STRIDE;
+        deadlines.lazySet(cell, deadline);
+        tasks.set(cell, task);
+
+        if (deadline < nextWakeup) wakeUpConsumer();
+        return true;
+    }
+
+    /**
+     * Encodes the slot as the queue index of the future. The slots are stored as negative numbers below -1, so they cannot be
+     * mistaken for the positions in the overflow heap (which are not negative) or for -1 (not armed).
+     * @param slot slot number
+     * @return queue index of a future published in the slot
+     */
+    static int slotIndex(int slot) {
+        return -2 - slot;
+    }
+
+    /**
+     * Decodes the slot from the queue index set by offer.
+     * @param queueIndex queue index below -1
+     * @return slot number
+     */
+    static int slotOf(int queueIndex) {
+        return -2 - queueIndex;
+    }
+
+    private void wakeUpConsumer() {
+        Thread c = consumer;
+        if (c != null) LockSupport.unpark(c);
+    }
+
+    @Override
+    public void put(TimeoutFuture<?> task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(TimeoutFuture<?> task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    /**
+     * Clears the slot of the future.
+     * @param o future to be disarmed
+     * @return true if the future was armed
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o instanceof TimeoutFutureTask || o instanceof TimeoutRunnable) {
+            int index = (o instanceof TimeoutFutureTask) ? ((TimeoutFutureTask<?>)o).queueIndex : ((TimeoutRunnable)o).queueIndex;
+            //the queue index tells which structure holds the future, so there is no need to look into the others
+            if (index >= 0) return overflow.remove(o);
+            if (index == -1) return false;
+            int slot = slotOf(index);
+            return slot < slots && tasks.compareAndSet(slot * STRIDE, (TimeoutFuture<?>)o, null);
+        }
+        if (o == null) return false;
+
+        for (int i = 0; i < slots; i++) {
+            if (tasks.get(i * STRIDE) == o && tasks.compareAndSet(i * STRIDE, (TimeoutFuture<?>)o, null)) return true;
+        }
+        return overflow.remove(o);
+    }
+
+    /**
+     * Scans the slots, it claims and returns the first expired future.
+     * @param now current time
+     * @param earliest one element array which receives the earliest deadline of the not expired futures
+     * @return expired future or null
+     */
+    private TimeoutFuture<?> scan(long now, long[] earliest) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < slots; i++) {
+            int cell = i * STRIDE;
+            TimeoutFuture<?> task = tasks.get(cell);
+            if (task == null) continue;
+
+            long deadline = deadlines.get(cell);
+            //the worker could have replaced the task since we read it
+            if (tasks.get(cell) != task) continue;
+
+            if (deadline <= now) {
+                if (tasks.compareAndSet(cell, task, null)) return task;
+            } else if (deadline < min) {
+                min = deadline;
+            }
+        }
+
+        TimeoutFuture<?> task = overflow.poll();
+        if (task != null) return task;
+
+        task = overflow.peek();
+        if (task != null) min = Math.min(min, now + Math.max(0, task.getDelay(TimeUnit.NANOSECONDS)));
+
+        earliest[0] = min;
+        return null;
+    }
+
+    @Override
+    public TimeoutFuture<?> take() throws InterruptedException {
+        TimeoutFuture<?> task = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (task == null) throw new IllegalStateException("Infinite poll should not return");
+        return task;
+    }
+
+    @Override
+    public TimeoutFuture<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        consumerLock.lockInterruptibly();
+        consumer = Thread.currentThread();
+        try {
+            long[] earliest = new long[1];
+            long now = now();
+            long end = (nanos >= TimingWheel.INFINITE_DELAY) ? Long.MAX_VALUE : now + nanos;
+            for (;;) {
+                TimeoutFuture<?> task = scan(now, earliest);
+                if (task != null) return task;
+
+                long wakeup = Math.min(earliest[0], end);
+                nextWakeup = wakeup;
+                //rescan as the workers could have published earlier deadline before they saw the new wake up time
+                task = scan(now, earliest);
+                if (task != null) return task;
+
+                if (earliest[0] >= wakeup) {
+                    if (end <= now) return null;
+                    if (wakeup == Long.MAX_VALUE) LockSupport.park(this);
+                    else LockSupport.parkNanos(this, wakeup - now);
+                }
+                nextWakeup = Long.MIN_VALUE;
+                if (Thread.interrupted()) throw new InterruptedException();
+                now = now();
+            }
+        } finally {
+            nextWakeup = Long.MIN_VALUE;
+            consumer = null;
+            consumerLock.unlock();
+        }
+    }
+
+    @Override
+    public TimeoutFuture<?> poll() {
+        consumerLock.lock();
+        try {
+            return scan(now(), new long[1]);
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * Gives a published future, not necessary the one with the earliest deadline.
+     */
+    @Override
+    public TimeoutFuture<?> peek() {
+        for (int i = 0; i < slots; i++) {
+            TimeoutFuture<?> task = tasks.get(i * STRIDE);
+            if (task != null) return task;
+        }
+        return overflow.peek();
+    }
+
+    /**
+     * Moves the expired futures to the collection, the futures which deadline has not passed are left in their slots.
+     */
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super TimeoutFuture<?>> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+
+        consumerLock.lock();
+        try {
+            int n = 0;
+            long[] earliest = new long[1];
+            long now = now();
+            while (n < maxElements) {
+                TimeoutFuture<?> task = scan(now, earliest);
+                if (task == null) break;
+                c.add(task);
+                n++;
+            }
+            return n;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Counts the published futures, it is O(number of slots).
+     */
+    @Override
+    public int size() {
+        int n = 0;
+        for (int i = 0; i < slots; i++) {
+            if (tasks.get(i * STRIDE) != null) n++;
+        }
+        return n + overflow.size();
+    }
+
+    /**
+     * Gives iterator over the snapshot of the published futures.
+     */
+    @Override
+    public Iterator<TimeoutFuture<?>> iterator() {
+        List<TimeoutFuture<?>> snapshot = new ArrayList<>();
+        for (int i = 0; i < slots; i++) {
+            TimeoutFuture<?> task = tasks.get(i * STRIDE);
+            if (task != null) snapshot.add(task);
+        }
+        overflow.forEach(snapshot::add);
+        return snapshot.iterator();
+    }
+}
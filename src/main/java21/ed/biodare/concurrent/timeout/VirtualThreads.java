@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Source of the threads for TimeoutVirtualThreadExecutor.
+ * <p>Java 21 version of this class, packed in the multi-release part of the jar, which creates virtual threads.
+ * @author tzielins
+ */
+final class VirtualThreads {
+
+    private static final ThreadFactory FACTORY = Thread.ofVirtual().name("timeout-virtual-", 0).factory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Checks if the threads given by the factory are virtual.
+     * @return true
+     */
+    static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Gives factory of threads to run the tasks on.
+     * @return factory of virtual threads
+     */
+    static ThreadFactory factory() {
+        return FACTORY;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class DeadlineHeapTest {
+
+    public DeadlineHeapTest() {
+    }
+
+    DeadlineHeap instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new DeadlineHeap();
+    }
+
+    TimeoutFutureTask<Integer> task(long delayMillis) {
+        return new TimeoutFutureTask<Integer>(mock(Callable.class), instance) {
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(delayMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    TimeoutFuture<?> mockTask(long delayMillis) {
+        TimeoutFuture<?> task = mock(TimeoutFuture.class);
+        when(task.getDelay(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        return task;
+    }
+
+    @Test
+    public void releasesTasksAfterTheirDelay() throws Exception {
+
+        TimeoutFuture<?> task = mockTask(20);
+        instance.put(task);
+        assertEquals(1, instance.size());
+        assertNull(instance.poll());
+
+        long sT = System.currentTimeMillis();
+        assertSame(task, instance.take());
+        long dur = System.currentTimeMillis()-sT;
+
+        assertTrue(dur >= 15);
+        assertTrue(dur < 100);
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void keepsDeadlineOrderAfterIndexedRemovals() throws Exception {
+
+        Random rnd = new Random(13);
+        List<Integer> delays = new ArrayList<>();
+        //already expired and spread by seconds, so the order does not depend on the insertion time
+        for (int i = 0; i < 200; i++) delays.add(-1000*i);
+        Collections.shuffle(delays, rnd);
+        
+        List<TimeoutFutureTask<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            tasks.add(task(delays.get(i)));
+        }
+        tasks.forEach(instance::put);
+        assertEquals(200, instance.size());
+
+        Collections.shuffle(tasks, rnd);
+        for (TimeoutFutureTask<Integer> task : tasks.subList(0, 100)) {
+            assertTrue(instance.remove(task));
+            assertEquals(-1, task.queueIndex);
+            assertFalse(instance.remove(task));
+        }
+        assertEquals(100, instance.size());
+
+        List<TimeoutFutureTask<Integer>> left = new ArrayList<>(tasks.subList(100, 200));
+        left.sort((t1, t2) -> Long.compare(t1.getDelay(TimeUnit.MILLISECONDS), t2.getDelay(TimeUnit.MILLISECONDS)));
+
+        for (TimeoutFutureTask<Integer> task : left) {
+            assertSame(task, instance.poll());
+        }
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void removesOtherFuturesByScan() {
+
+        TimeoutFuture<?> task1 = mockTask(1000);
+        TimeoutFuture<?> task2 = mockTask(500);
+        instance.put(task1);
+        instance.put(task2);
+
+        assertTrue(instance.remove(task1));
+        assertEquals(1, instance.size());
+        assertSame(task2, instance.peek());
+    }
+
+    @Test
+    public void doesNotInsertInfiniteDelays() {
+
+        TimeoutFuture<?> task = mock(TimeoutFuture.class);
+        when(task.getDelay(TimeUnit.NANOSECONDS)).thenReturn(Long.MAX_VALUE);
+
+        instance.put(task);
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void drainsOnlyExpired() throws Exception {
+
+        instance.put(mockTask(0));
+        instance.put(mockTask(10000));
+
+        List<TimeoutFuture<?>> drained = new ArrayList<>();
+        assertEquals(1, instance.drainTo(drained));
+        assertEquals(1, instance.size());
+    }
+
+}
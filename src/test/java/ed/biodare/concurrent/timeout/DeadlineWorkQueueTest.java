@@ -0,0 +1,193 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class DeadlineWorkQueueTest {
+
+    public DeadlineWorkQueueTest() {
+    }
+
+    DeadlineWorkQueue instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new DeadlineWorkQueue(1, 10, TimeUnit.SECONDS);
+    }
+
+    TimeoutFutureTask<Integer> task(long deadlineMillis) {
+        long deadline = deadlineMillis == Long.MAX_VALUE ? TimeoutFutureTask.NO_DEADLINE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        return new TimeoutFutureTask<>(mock(Callable.class), new DeadlineHeap(), null, 1, TimeUnit.SECONDS, Ticker.SYSTEM, deadline);
+    }
+
+    @Test
+    public void givesTasksInDeadlineOrder() {
+
+        TimeoutFutureTask<Integer> late = task(5000);
+        TimeoutFutureTask<Integer> none = task(Long.MAX_VALUE);
+        TimeoutFutureTask<Integer> soon = task(5);
+        TimeoutFutureTask<Integer> middle = task(500);
+        Runnable plain = mock(Runnable.class);
+
+        instance.offer(late);
+        instance.offer(none);
+        instance.offer(plain);
+        instance.offer(soon);
+        instance.offer(middle);
+        assertEquals(5, instance.size());
+        assertSame(soon, instance.peek());
+
+        assertSame(soon, instance.poll());
+        assertSame(middle, instance.poll());
+        assertSame(late, instance.poll());
+        //without deadline in the order of insertion
+        assertSame(none, instance.poll());
+        assertSame(plain, instance.poll());
+        assertNull(instance.poll());
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void agesTasksWithoutDeadline() throws Exception {
+
+        instance = new DeadlineWorkQueue(1, 20, TimeUnit.MILLISECONDS);
+
+        TimeoutFutureTask<Integer> none = task(Long.MAX_VALUE);
+        instance.offer(none);
+        Thread.sleep(5);
+
+        //its deadline is capped by the horizon so it comes after the one which waits longer
+        TimeoutFutureTask<Integer> late = task(5000);
+        instance.offer(late);
+        TimeoutFutureTask<Integer> soon = task(1);
+        instance.offer(soon);
+
+        assertSame(soon, instance.poll());
+        assertSame(none, instance.poll());
+        assertSame(late, instance.poll());
+    }
+
+    @Test
+    public void ordersByEndToEndBudget() {
+
+        TimeoutFutureTask<Integer> relaxed = new TimeoutFutureTask<>(mock(Callable.class), new DeadlineHeap(), null, 1, TimeUnit.SECONDS,
+                Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE).budgetFromSubmit(0);
+        TimeoutFutureTask<Integer> urgent = new TimeoutFutureTask<>(mock(Callable.class), new DeadlineHeap(), null, 1, TimeUnit.SECONDS,
+                Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE).budgetFromSubmit(TimeUnit.MILLISECONDS.toNanos(900));
+
+        instance.offer(relaxed);
+        instance.offer(urgent);
+
+        assertSame(urgent, instance.poll());
+        assertSame(relaxed, instance.poll());
+    }
+
+    @Test
+    public void removesAndDrains() {
+
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(task(100 * (10 - i)));
+            instance.offer(tasks.get(i));
+        }
+
+        assertTrue(instance.remove(tasks.get(9)));
+        assertFalse(instance.remove(tasks.get(9)));
+        assertEquals(9, instance.size());
+
+        int seen = 0;
+        for (Runnable task : instance) {
+            assertTrue(tasks.contains(task));
+            seen++;
+        }
+        assertEquals(9, seen);
+
+        List<Runnable> drained = new ArrayList<>();
+        assertEquals(9, instance.drainTo(drained));
+        assertSame(tasks.get(8), drained.get(0));
+        assertSame(tasks.get(0), drained.get(8));
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void takeWaitsForTask() throws Exception {
+
+        assertNull(instance.poll(10, TimeUnit.MILLISECONDS));
+
+        Runnable task = mock(Runnable.class);
+        new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+            }
+            instance.offer(task);
+        }).start();
+
+        assertSame(task, instance.take());
+    }
+
+    @Test
+    public void stripedQueueDoesNotLoseTasks() throws Exception {
+
+        instance = new DeadlineWorkQueue(4, 1, TimeUnit.SECONDS);
+        int producers = 4;
+        int perProducer = 1000;
+        CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) instance.offer(mock(Runnable.class));
+                done.countDown();
+            }).start();
+        }
+
+        int taken = 0;
+        while (taken < producers * perProducer) {
+            assertNotNull(instance.poll(1, TimeUnit.SECONDS));
+            taken++;
+        }
+        done.await();
+        assertNull(instance.poll());
+    }
+
+    @Test
+    public void executorRunsUrgentTasksFirst() throws Exception {
+
+        TimeoutFixPoolExecutor executor = new TimeoutFixPoolExecutor(1, 1, TimeUnit.SECONDS, new DeadlineWorkQueue(1, 10, TimeUnit.SECONDS), null);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch blocker = new CountDownLatch(1);
+
+        executor.submit(() -> {
+            blocker.await();
+            return 0;
+        });
+        executor.submit(() -> order.add(1), Instant.now().plusSeconds(60));
+        executor.submit(() -> order.add(2), Instant.now().plusSeconds(5));
+        executor.submit(() -> order.add(3));
+        executor.submit(() -> order.add(4), Instant.now().plusMillis(500));
+        blocker.countDown();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        //the one without deadline and the one with 60s are both aged to 10s so they keep their order
+        assertEquals(List.of(4, 2, 1, 3), order);
+    }
+}
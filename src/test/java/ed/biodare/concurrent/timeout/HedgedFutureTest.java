@@ -0,0 +1,259 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class HedgedFutureTest {
+
+    public HedgedFutureTest() {
+    }
+
+    TimeoutFixPoolExecutor<Object> executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new TimeoutFixPoolExecutor<>(4, 1, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Task which first call hangs (recording the interrupt) and the later ones return their number at once.
+     */
+    static Callable<Integer> slowFirst(AtomicInteger calls, AtomicBoolean interrupted) {
+        return () -> {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw e;
+                }
+            }
+            return call;
+        };
+    }
+
+    @Test
+    public void fastTaskIsNotHedged() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        TimeoutFuture<Integer> future = executor.submitHedged(calls::incrementAndGet, 50, 1000, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, (int) future.get(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, calls.get());
+        assertEquals(1, executor.getMetrics().getSubmitted());
+        assertFalse(future.isTimedOut());
+    }
+
+    @Test
+    public void onlyHedgedFutureIsReportedToCompletionQueue() throws Exception {
+
+        BlockingQueue<TimeoutFuture<?>> completed = new LinkedBlockingQueue<>();
+        executor.shutdownNow();
+        executor = new TimeoutFixPoolExecutor<>(4, 1, TimeUnit.SECONDS, completed);
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        TimeoutFuture<Integer> future = executor.submitHedged(slowFirst(calls, interrupted), 30, 2000, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, (int) future.get(1, TimeUnit.SECONDS));
+        assertSame(future, completed.poll(1, TimeUnit.SECONDS));
+        //the timed out loser is not reported
+        Thread.sleep(50);
+        assertTrue(interrupted.get());
+        assertTrue(completed.isEmpty());
+    }
+
+    @Test
+    public void slowTaskIsHedgedAndLoserTimedOut() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        TimeoutFuture<Integer> future = executor.submitHedged(slowFirst(calls, interrupted), 30, 2000, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, (int) future.get(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertTrue(interrupted.get());
+        assertEquals(2, calls.get());
+        assertEquals(1, executor.getMetrics().getTimedOut());
+        assertFalse(future.isTimedOut());
+    }
+
+    @Test
+    public void backupGetsRemainingBudget() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        TimeoutFuture<Long> future = executor.submitHedged(() -> {
+            if (calls.incrementAndGet() == 1) Thread.sleep(5000);
+            return TimeoutContext.current().getRemaining(TimeUnit.MILLISECONDS);
+        }, 100, 500, TimeUnit.MILLISECONDS);
+
+        long remaining = future.get(1, TimeUnit.SECONDS);
+        assertTrue(remaining <= 400, "Backup remaining: "+remaining);
+        assertTrue(remaining > 0);
+    }
+
+    @Test
+    public void failedAttemptWaitsForTheOther() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        TimeoutFuture<Integer> future = executor.submitHedged(() -> {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                Thread.sleep(100);
+                throw new IllegalStateException("First failed");
+            }
+            Thread.sleep(150);
+            return call;
+        }, 30, 1000, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, (int) future.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failsOnceBothAttemptsFailed() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        TimeoutFuture<Integer> future = executor.submitHedged(() -> {
+            Thread.sleep(50);
+            throw new IllegalStateException("Failed "+calls.incrementAndGet());
+        }, 20, 1000, TimeUnit.MILLISECONDS);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertEquals(2, calls.get());
+        assertFalse(future.isTimedOut());
+    }
+
+    @Test
+    public void failureBeforeHedgeEndsTheCall() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        TimeoutFuture<Integer> future = executor.submitHedged(() -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("Failed");
+        }, 50, 1000, TimeUnit.MILLISECONDS);
+
+        assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void timesOutWhenBothAttemptsAreSlow() throws Exception {
+
+        TimeoutFuture<Integer> future = executor.submitHedged(() -> {
+            Thread.sleep(5000);
+            return 1;
+        }, 20, 100, TimeUnit.MILLISECONDS);
+
+        assertThrows(TimeoutCancellationException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isTimedOut());
+    }
+
+    @Test
+    public void cancelStopsAllAttempts() throws Exception {
+
+        AtomicInteger interrupts = new AtomicInteger();
+        AtomicInteger calls = new AtomicInteger();
+        TimeoutFuture<Integer> future = executor.submitHedged(() -> {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupts.incrementAndGet();
+                throw e;
+            }
+            return 1;
+        }, 20, 2000, TimeUnit.MILLISECONDS);
+
+        while (calls.get() < 2) Thread.sleep(5);
+        assertTrue(future.cancel(true));
+        assertThrows(CancellationException.class, () -> future.get());
+        Thread.sleep(50);
+        assertEquals(2, interrupts.get());
+        assertFalse(future.isTimedOut());
+    }
+
+    @Test
+    public void shutdownBeforeHedgeLeavesFirstAttemptRunning() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        TimeoutFuture<Integer> future = executor.submitHedged(() -> {
+            calls.incrementAndGet();
+            Thread.sleep(300);
+            return 42;
+        }, 50, 2000, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(10);
+        executor.shutdown();
+
+        assertEquals(42, (int) future.get(1, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertNull(((HedgedFuture<Integer>) future).backup());
+    }
+
+    @Test
+    public void percentileHedgeNeedsValidPercentile() {
+
+        assertThrows(IllegalArgumentException.class, () -> executor.submitHedgedAtPercentile(() -> 1, 101, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void percentileHedgeUsesRunTimeOfCompletedTasks() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            executor.submit(() -> 1, 1, TimeUnit.SECONDS).get();
+        }
+        assertTrue(executor.getMetrics().getRunTimePercentile(95, TimeUnit.MILLISECONDS) < 10);
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        //the hedge delay comes from the fast tasks so it is much shorter than half of the timeout
+        TimeoutFuture<Integer> future = executor.submitHedgedAtPercentile(slowFirst(calls, interrupted), 95, 4, TimeUnit.SECONDS);
+
+        assertEquals(2, (int) future.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void isSupportedByOtherExecutors() throws Exception {
+
+        TimeoutForkJoinExecutor forkJoin = new TimeoutForkJoinExecutor(2, 1, TimeUnit.SECONDS);
+        TimeoutVirtualThreadExecutor virtual = new TimeoutVirtualThreadExecutor(1, TimeUnit.SECONDS);
+        try {
+            for (TimeoutExecutor instance : new TimeoutExecutor[]{forkJoin, virtual}) {
+                AtomicInteger calls = new AtomicInteger();
+                TimeoutFuture<Integer> future = instance.submitHedged(slowFirst(calls, new AtomicBoolean()), 30, 2000, TimeUnit.MILLISECONDS);
+                assertEquals(2, (int) future.get(1, TimeUnit.SECONDS));
+            }
+        } finally {
+            forkJoin.shutdownNow();
+            virtual.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class LatencyHistogramTest {
+
+    public LatencyHistogramTest() {
+    }
+
+    LatencyHistogram instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new LatencyHistogram();
+    }
+
+    @Test
+    public void emptyGivesZeros() {
+        LatencyHistogram.Snapshot snapshot = instance.snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax(TimeUnit.NANOSECONDS));
+        assertEquals(0, snapshot.getPercentile(99, TimeUnit.NANOSECONDS));
+        assertEquals(0, snapshot.getMean(TimeUnit.NANOSECONDS), 1E-9);
+    }
+
+    @Test
+    public void percentilesAreWithinFactorOfTwo() {
+        for (int i = 1; i <= 100; i++) {
+            instance.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = instance.snapshot();
+
+        assertEquals(100, snapshot.getCount());
+        assertEquals(100, snapshot.getMax(TimeUnit.MICROSECONDS));
+        assertEquals(50.5, snapshot.getMean(TimeUnit.MICROSECONDS), 1E-9);
+
+        long p50 = snapshot.getPercentile(50, TimeUnit.NANOSECONDS);
+        assertTrue(p50 >= 50_000);
+        assertTrue(p50 < 100_000);
+
+        assertEquals(100_000, snapshot.getPercentile(100, TimeUnit.NANOSECONDS));
+        assertEquals(1023, snapshot.getPercentile(0, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void recordsExtremeValues() {
+        instance.record(-5);
+        instance.record(0);
+        instance.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = instance.snapshot();
+
+        assertEquals(3, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50, TimeUnit.NANOSECONDS));
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentile(100, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void rejectsInvalidPercentile() {
+        assertThrows(IllegalArgumentException.class, () -> instance.snapshot().getPercentile(101, TimeUnit.NANOSECONDS));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class MpscRingBufferTest {
+
+    public MpscRingBufferTest() {
+    }
+
+    @Test
+    public void roundsCapacityToPowerOfTwo() {
+
+        assertEquals(8, new MpscRingBuffer<Integer>(5).capacity());
+        assertEquals(8, new MpscRingBuffer<Integer>(8).capacity());
+        assertEquals(1, new MpscRingBuffer<Integer>(1).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new MpscRingBuffer<Integer>(0));
+    }
+
+    @Test
+    public void keepsFifoOrderAndRejectsWhenFull() {
+
+        MpscRingBuffer<Integer> instance = new MpscRingBuffer<>(4);
+        for (int i = 0; i < 4; i++) assertTrue(instance.offer(i));
+        assertFalse(instance.offer(4));
+        assertEquals(4, instance.size());
+
+        assertEquals(0, (int) instance.poll());
+        assertTrue(instance.offer(4));
+        for (int i = 1; i < 5; i++) assertEquals(i, (int) instance.poll());
+        assertNull(instance.poll());
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void drainsInBatches() {
+
+        MpscRingBuffer<Integer> instance = new MpscRingBuffer<>(8);
+        for (int i = 0; i < 6; i++) instance.offer(i);
+
+        List<Integer> batch = new ArrayList<>();
+        assertEquals(4, instance.drainTo(batch, 4));
+        assertEquals(List.of(0, 1, 2, 3), batch);
+        assertEquals(2, instance.drainTo(batch, 10));
+        assertEquals(0, instance.drainTo(batch, 10));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5), batch);
+    }
+
+    @Test
+    public void deliversAllElementsOfConcurrentProducers() throws Exception {
+
+        int producers = 4;
+        int perProducer = 10_000;
+        MpscRingBuffer<Integer> instance = new MpscRingBuffer<>(64);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    while (!instance.offer(base + i)) Thread.yield();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        start.countDown();
+        boolean[] seen = new boolean[producers * perProducer];
+        int[] lastOf = new int[producers];
+        Arrays.fill(lastOf, -1);
+        int received = 0;
+        long end = System.currentTimeMillis() + 10_000;
+        while (received < seen.length && System.currentTimeMillis() < end) {
+            Integer e = instance.poll();
+            if (e == null) {
+                Thread.yield();
+                continue;
+            }
+            assertFalse(seen[e]);
+            seen[e] = true;
+            //each producer elements come in its order
+            int p = e / perProducer;
+            assertTrue(e > lastOf[p]);
+            lastOf[p] = e;
+            received++;
+        }
+        for (Thread t : threads) t.join(1000);
+        assertEquals(seen.length, received);
+    }
+}
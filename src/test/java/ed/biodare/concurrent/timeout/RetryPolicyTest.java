@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class RetryPolicyTest {
+
+    public RetryPolicyTest() {
+    }
+
+    @Test
+    public void validatesParameters() {
+
+        assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(0, 1, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(1, -1, TimeUnit.SECONDS));
+
+        RetryPolicy instance = new RetryPolicy(3, 1, TimeUnit.SECONDS);
+        assertThrows(IllegalArgumentException.class, () -> instance.setBackoffMultiplier(0.5));
+        assertThrows(IllegalArgumentException.class, () -> instance.setMaxBackoff(-1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void backoffGrowsTillMax() {
+
+        RetryPolicy instance = new RetryPolicy(5, 10, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), instance.backoffNanos(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), instance.backoffNanos(2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(40), instance.backoffNanos(3));
+
+        instance.setMaxBackoff(30, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(30), instance.backoffNanos(3));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(30), instance.backoffNanos(100));
+
+        instance.setBackoffMultiplier(1);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), instance.backoffNanos(4));
+    }
+
+    @Test
+    public void retriesTimeoutsAndExceptionsByDefault() {
+
+        RetryPolicy instance = new RetryPolicy(2, 0, TimeUnit.MILLISECONDS);
+        assertTrue(instance.isRetryable(new TimeoutCancellationException("Timeout")));
+        assertTrue(instance.isRetryable(new IOException()));
+        assertTrue(instance.isRetryable(new IllegalStateException()));
+        assertFalse(instance.isRetryable(new CancellationException()));
+        assertFalse(instance.isRetryable(new OutOfMemoryError()));
+    }
+
+    @Test
+    public void retriesOnlyGivenTypes() {
+
+        RetryPolicy instance = new RetryPolicy(2, 0, TimeUnit.MILLISECONDS);
+        instance.setRetryOn(IOException.class);
+        instance.setRetryTimeouts(false);
+
+        assertTrue(instance.isRetryable(new java.net.SocketTimeoutException()));
+        assertFalse(instance.isRetryable(new IllegalStateException()));
+        assertFalse(instance.isRetryable(new TimeoutCancellationException("Timeout")));
+
+        instance.setRetryOn();
+        assertFalse(instance.isRetryable(new IOException()));
+    }
+}
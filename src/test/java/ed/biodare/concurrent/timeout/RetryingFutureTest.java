@@ -0,0 +1,239 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class RetryingFutureTest {
+
+    public RetryingFutureTest() {
+    }
+
+    TimeoutFixPoolExecutor<Object> executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new TimeoutFixPoolExecutor<>(2, 1, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void successfulTaskIsNotRetried() throws Exception {
+
+        RetryPolicy policy = new RetryPolicy(3, 10, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> 1, 1000, 2000, TimeUnit.MILLISECONDS, policy);
+
+        assertEquals(1, (int) future.get(1, TimeUnit.SECONDS));
+        assertEquals(1, ((RetryingFuture<Integer>) future).getAttempts());
+        assertEquals(1, executor.getMetrics().getSubmitted());
+    }
+
+    @Test
+    public void retriesFailedTaskTillSuccess() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(3, 10, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            int call = calls.incrementAndGet();
+            if (call < 3) throw new IOException("Transient "+call);
+            return call;
+        }, 1000, 2000, TimeUnit.MILLISECONDS, policy);
+
+        assertEquals(3, (int) future.get(1, TimeUnit.SECONDS));
+        assertEquals(3, ((RetryingFuture<Integer>) future).getAttempts());
+    }
+
+    @Test
+    public void failsWithLastErrorAfterMaxAttempts() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(3, 1, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            throw new IOException("Failed "+calls.incrementAndGet());
+        }, 1000, 2000, TimeUnit.MILLISECONDS, policy);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertEquals("Failed 3", e.getCause().getMessage());
+        assertEquals(3, calls.get());
+        assertFalse(future.isTimedOut());
+    }
+
+    @Test
+    public void doesNotRetryOtherExceptions() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(3, 1, TimeUnit.MILLISECONDS);
+        policy.setRetryOn(IOException.class);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("Bug");
+        }, 1000, 2000, TimeUnit.MILLISECONDS, policy);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        Thread.sleep(20);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void onlyRetriedFutureIsReportedToCompletionQueue() throws Exception {
+
+        BlockingQueue<TimeoutFuture<?>> completed = new LinkedBlockingQueue<>();
+        executor.shutdownNow();
+        executor = new TimeoutFixPoolExecutor<>(2, 1, TimeUnit.SECONDS, completed);
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(3, 10, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            int call = calls.incrementAndGet();
+            if (call < 3) throw new IOException("Transient "+call);
+            return call;
+        }, 1000, 2000, TimeUnit.MILLISECONDS, policy);
+
+        assertEquals(3, (int) future.get(1, TimeUnit.SECONDS));
+        assertSame(future, completed.poll(1, TimeUnit.SECONDS));
+        assertNull(completed.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void retriesTimedOutAttempt() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(2, 10, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            int call = calls.incrementAndGet();
+            if (call == 1) Thread.sleep(5000);
+            return call;
+        }, 50, 2000, TimeUnit.MILLISECONDS, policy);
+
+        assertEquals(2, (int) future.get(1, TimeUnit.SECONDS));
+        assertEquals(1, executor.getMetrics().getTimedOut());
+    }
+
+    @Test
+    public void attemptIsClippedToRemainingBudget() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(2, 10, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Long> future = executor.submitWithRetry(() -> {
+            if (calls.incrementAndGet() == 1) {
+                Thread.sleep(100);
+                throw new IOException("Transient");
+            }
+            return TimeoutContext.current().getRemaining(TimeUnit.MILLISECONDS);
+        }, 10000, 300, TimeUnit.MILLISECONDS, policy);
+
+        long remaining = future.get(1, TimeUnit.SECONDS);
+        assertTrue(remaining <= 200, "Second attempt remaining: "+remaining);
+        assertTrue(remaining > 0);
+    }
+
+    @Test
+    public void timesOutSequenceOnceBudgetPasses() throws Exception {
+
+        RetryPolicy policy = new RetryPolicy(5, 1, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            Thread.sleep(5000);
+            return 1;
+        }, 10000, 100, TimeUnit.MILLISECONDS, policy);
+
+        assertThrows(TimeoutCancellationException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isTimedOut());
+        assertEquals(1, ((RetryingFuture<Integer>) future).getAttempts());
+    }
+
+    @Test
+    public void doesNotRetryIfBackoffExceedsBudget() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(3, 500, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            calls.incrementAndGet();
+            throw new IOException("Transient");
+        }, 1000, 200, TimeUnit.MILLISECONDS, policy);
+
+        assertThrows(ExecutionException.class, () -> future.get(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void backoffDoesNotHoldWorker() throws Exception {
+
+        TimeoutFixPoolExecutor<Object> single = new TimeoutFixPoolExecutor<>(1, 1, TimeUnit.SECONDS);
+        try {
+            AtomicInteger calls = new AtomicInteger();
+            RetryPolicy policy = new RetryPolicy(2, 200, TimeUnit.MILLISECONDS);
+            TimeoutFuture<Integer> retried = single.submitWithRetry(() -> {
+                if (calls.incrementAndGet() == 1) throw new IOException("Transient");
+                return 2;
+            }, 1000, 2000, TimeUnit.MILLISECONDS, policy);
+
+            Thread.sleep(20);
+            //the only worker is free during the backoff
+            assertEquals(Integer.valueOf(3), single.submit(() -> 3, 1, TimeUnit.SECONDS).get(100, TimeUnit.MILLISECONDS));
+            assertFalse(retried.isDone());
+            assertEquals(2, (int) retried.get(1, TimeUnit.SECONDS));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancelStopsRetries() throws Exception {
+
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy(3, 100, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> future = executor.submitWithRetry(() -> {
+            calls.incrementAndGet();
+            throw new IOException("Transient");
+        }, 1000, 2000, TimeUnit.MILLISECONDS, policy);
+
+        Thread.sleep(30);
+        assertTrue(future.cancel(true));
+        assertThrows(CancellationException.class, () -> future.get());
+        Thread.sleep(150);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void isSupportedByOtherExecutors() throws Exception {
+
+        TimeoutForkJoinExecutor forkJoin = new TimeoutForkJoinExecutor(2, 1, TimeUnit.SECONDS);
+        TimeoutVirtualThreadExecutor virtual = new TimeoutVirtualThreadExecutor(1, TimeUnit.SECONDS);
+        try {
+            for (TimeoutExecutor instance : new TimeoutExecutor[]{forkJoin, virtual}) {
+                AtomicInteger calls = new AtomicInteger();
+                TimeoutFuture<Integer> future = instance.submitWithRetry(() -> {
+                    int call = calls.incrementAndGet();
+                    if (call == 1) throw new IOException("Transient");
+                    return call;
+                }, 1000, 2000, TimeUnit.MILLISECONDS, new RetryPolicy(2, 10, TimeUnit.MILLISECONDS));
+                assertEquals(2, (int) future.get(1, TimeUnit.SECONDS));
+            }
+        } finally {
+            forkJoin.shutdownNow();
+            virtual.shutdownNow();
+        }
+    }
+}
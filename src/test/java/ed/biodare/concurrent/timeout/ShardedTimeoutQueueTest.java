@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class ShardedTimeoutQueueTest {
+
+    public ShardedTimeoutQueueTest() {
+    }
+
+    ShardedTimeoutQueue instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new ShardedTimeoutQueue(4);
+    }
+
+    TimeoutFuture<?> task(long delayMillis) {
+        TimeoutFuture<?> task = mock(TimeoutFuture.class);
+        when(task.getDelay(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        return task;
+    }
+
+    @Test
+    public void spreadsTasksOverShardsAndRemovesFromTheSameShard() {
+
+        List<TimeoutFuture<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            TimeoutFuture<?> task = task(1000);
+            instance.offer(task);
+            tasks.add(task);
+        }
+        assertEquals(100, instance.size());
+
+        for (BlockingQueue<TimeoutFuture<?>> shard : instance.shards()) {
+            assertFalse(shard.isEmpty());
+        }
+
+        for (TimeoutFuture<?> task : tasks) {
+            assertTrue(instance.remove(task));
+        }
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void drainsExpiredFromAllShards() {
+
+        for (int i = 0; i < 20; i++) instance.offer(task(0));
+        instance.offer(task(10000));
+
+        List<TimeoutFuture<?>> drained = new ArrayList<>();
+        assertEquals(20, instance.drainTo(drained));
+        assertEquals(1, instance.size());
+    }
+
+    @Test
+    public void timeKeeperIsStartedForEachShard() throws Exception {
+
+        List<TimeKeeper> keepers = TimeKeeper.startFor(instance, false);
+        try {
+            assertEquals(4, keepers.size());
+            keepers.forEach(keeper -> assertTrue(keeper.isRunning()));
+
+            List<TimeoutFuture<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                TimeoutFuture<?> task = task(5);
+                instance.offer(task);
+                tasks.add(task);
+            }
+            Thread.sleep(100);
+
+            assertTrue(instance.isEmpty());
+            tasks.forEach(task -> verify(task).timeOut());
+        } finally {
+            keepers.forEach(TimeKeeper::stop);
+        }
+    }
+
+    @Test
+    public void timesOutExecutorTasks() throws Exception {
+
+        TimeoutFixPoolExecutor executor = new TimeoutFixPoolExecutor(4, 20, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), null, new ShardedTimeoutQueue(2, TimingWheel::new));
+
+        List<TimeoutFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add((TimeoutFuture<Integer>)executor.submit(new Sleeper(i % 2 == 0 ? 200 : 5, i)));
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i % 2 == 0, futures.get(i).isTimedOut());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class SharedTimerServiceTest {
+
+    public SharedTimerServiceTest() {
+    }
+
+    SharedTimerService instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new SharedTimerService(new DeadlineHeap());
+    }
+
+    TimeoutFixPoolExecutor executor(long timeout) {
+        return new TimeoutFixPoolExecutor(1, timeout, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), null, instance);
+    }
+
+    @Test
+    public void startsWithFirstAndStopsWithLastExecutor() throws Exception {
+
+        assertFalse(instance.isRunning());
+
+        TimeoutFixPoolExecutor first = executor(20);
+        TimeoutFixPoolExecutor second = executor(20);
+        assertEquals(2, instance.getRegistered());
+        assertTrue(instance.isRunning());
+
+        first.shutdown();
+        assertTrue(first.awaitTermination(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, instance.getRegistered());
+        assertTrue(instance.isRunning());
+
+        second.shutdown();
+        assertTrue(second.awaitTermination(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, instance.getRegistered());
+        Thread.sleep(10);
+        assertFalse(instance.isRunning());
+
+        TimeoutFixPoolExecutor third = executor(20);
+        assertTrue(instance.isRunning());
+        third.shutdownNow();
+    }
+
+    @Test
+    public void timesOutTasksOfAllExecutors() throws Exception {
+
+        TimeoutFixPoolExecutor first = executor(20);
+        TimeoutFixPoolExecutor second = executor(20);
+
+        TimeoutFuture<Integer> f1 = (TimeoutFuture<Integer>)first.submit(new Sleeper(200, 1));
+        TimeoutFuture<Integer> f2 = (TimeoutFuture<Integer>)second.submit(new Sleeper(200, 2));
+        TimeoutFuture<Integer> f3 = (TimeoutFuture<Integer>)second.submit(new Sleeper(5, 3));
+
+        first.shutdown();
+        second.shutdown();
+        first.awaitTermination(500, TimeUnit.MILLISECONDS);
+        second.awaitTermination(500, TimeUnit.MILLISECONDS);
+
+        assertTrue(f1.isTimedOut());
+        assertTrue(f2.isTimedOut());
+        assertFalse(f3.isTimedOut());
+        assertEquals(3, (int)f3.get());
+    }
+
+    @Test
+    public void unregisterWithoutUsersFails() {
+        assertThrows(IllegalStateException.class, () -> instance.unregister());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class StuckWorkersTest {
+
+    public StuckWorkersTest() {
+    }
+
+    TimeoutFixPoolExecutor<Integer> executor;
+    AtomicBoolean release;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new TimeoutFixPoolExecutor<>(1);
+        release = new AtomicBoolean(false);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.set(true);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Task which ignores the interrupt till released.
+     */
+    Runnable stubborn() {
+        return () -> {
+            while (!release.get()) Thread.onSpinWait();
+        };
+    }
+
+    void awaitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 2000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < end) Thread.sleep(5);
+    }
+
+    @Test
+    public void addsReplacementForStuckWorkerAndRetiresIt() throws Exception {
+
+        executor.setStuckWorkerCompensation(20, TimeUnit.MILLISECONDS, 2);
+        assertTrue(executor.isStuckWorkerCompensation());
+
+        TimeoutFuture<?> stuck = executor.submit(stubborn(), 20, TimeUnit.MILLISECONDS);
+        CountDownLatch done = new CountDownLatch(1);
+        executor.submit(done::countDown);
+
+        //the only worker is stuck so the second task runs on the replacement
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(stuck.isTimedOut());
+        assertEquals(2, executor.getCorePoolSize());
+        assertEquals(1, executor.getZombies().size());
+        assertSame(stuck, executor.getZombies().values().iterator().next());
+        assertEquals(1, executor.getMetrics().getStuck());
+        assertEquals(1, executor.getMetrics().getZombies());
+
+        release.set(true);
+        awaitFor(() -> executor.getZombies().isEmpty());
+
+        assertTrue(executor.getZombies().isEmpty());
+        assertEquals(1, executor.getCorePoolSize());
+        assertEquals(1, executor.getMaximumPoolSize());
+        assertEquals(0, executor.getMetrics().getZombies());
+        assertEquals(1, executor.getMetrics().snapshot().getStuck());
+
+        awaitFor(() -> executor.getPoolSize() == 1);
+        assertEquals(1, executor.getPoolSize());
+    }
+
+    @Test
+    public void doesNotReportWorkersWhichLeftInGracePeriod() throws Exception {
+
+        executor.setStuckWorkerCompensation(50, TimeUnit.MILLISECONDS, 2);
+
+        //busy sleeper checks the interrupt so it leaves at once
+        TimeoutFuture<?> future = executor.submit(new BusySleeper(1000), 20, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(150);
+        assertTrue(future.isTimedOut());
+        assertTrue(executor.getZombies().isEmpty());
+        assertEquals(0, executor.getMetrics().getStuck());
+        assertEquals(1, executor.getCorePoolSize());
+    }
+
+    @Test
+    public void limitsNumberOfReplacements() throws Exception {
+
+        executor.setStuckWorkerCompensation(10, TimeUnit.MILLISECONDS, 1);
+
+        executor.submit(stubborn(), 10, TimeUnit.MILLISECONDS);
+        awaitFor(() -> executor.getZombies().size() == 1);
+        //the replacement gets stuck as well
+        executor.submit(stubborn(), 10, TimeUnit.MILLISECONDS);
+        awaitFor(() -> executor.getZombies().size() == 2);
+
+        assertEquals(2, executor.getZombies().size());
+        assertEquals(2, executor.getCorePoolSize());
+
+        release.set(true);
+        awaitFor(() -> executor.getZombies().isEmpty());
+        assertEquals(1, executor.getCorePoolSize());
+    }
+
+    @Test
+    public void isDisabledByDefault() throws Exception {
+
+        assertFalse(executor.isStuckWorkerCompensation());
+
+        TimeoutFuture<?> stuck = executor.submit(stubborn(), 10, TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+
+        assertTrue(stuck.isTimedOut());
+        assertTrue(executor.getZombies().isEmpty());
+        assertEquals(1, executor.getCorePoolSize());
+    }
+
+    @Test
+    public void validatesParameters() {
+
+        assertThrows(IllegalArgumentException.class, () -> executor.setStuckWorkerCompensation(-1, TimeUnit.SECONDS, 1));
+        assertThrows(IllegalArgumentException.class, () -> executor.setStuckWorkerCompensation(1, TimeUnit.SECONDS, 0));
+    }
+}
@@ -5,6 +5,7 @@
  */
 package ed.biodare.concurrent.timeout;
 
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import org.junit.jupiter.api.BeforeEach;
@@ -59,4 +60,15 @@ public class TimeKeeperTest {
         instance.stop();
     }
     
+    @Test
+    public void rejectsShardedQueue() {
+        
+        ShardedTimeoutQueue sharded = new ShardedTimeoutQueue(2);
+        assertThrows(IllegalArgumentException.class, () -> new TimeKeeper(sharded));
+        
+        List<TimeKeeper> keepers = TimeKeeper.startFor(sharded, false);
+        keepers.forEach(TimeKeeper::stop);
+        assertEquals(2, keepers.size());
+    }
+    
 }
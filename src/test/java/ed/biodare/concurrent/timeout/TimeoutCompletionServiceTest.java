@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import ed.biodare.concurrent.timeout.TimeoutCompletionService.WaitStrategy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutCompletionServiceTest {
+
+    public TimeoutCompletionServiceTest() {
+    }
+
+    TimeoutFixPoolExecutor<Integer> executor;
+
+    @AfterEach
+    public void tearDown() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    @SuppressWarnings("unchecked")
+    static TimeoutFuture<Integer> future(boolean timedOut) {
+        TimeoutFuture<Integer> future = mock(TimeoutFuture.class);
+        when(future.isTimedOut()).thenReturn(timedOut);
+        return future;
+    }
+
+    @Test
+    public void routesFuturesIntoChannels() {
+
+        TimeoutCompletionService<Integer> instance = new TimeoutCompletionService<>(4);
+        TimeoutFuture<Integer> ok = future(false);
+        TimeoutFuture<Integer> late = future(true);
+
+        assertTrue(instance.getCompletionQueue().offer(ok));
+        assertTrue(instance.getCompletionQueue().offer(late));
+
+        assertEquals(1, instance.getCompletedCount());
+        assertEquals(1, instance.getTimedOutCount());
+        assertSame(ok, instance.poll());
+        assertSame(late, instance.pollTimedOut());
+        assertNull(instance.poll());
+        assertNull(instance.pollTimedOut());
+    }
+
+    @Test
+    public void overflowsWithoutLosingFutures() {
+
+        TimeoutCompletionService<Integer> instance = new TimeoutCompletionService<>(2);
+        List<TimeoutFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(future(false));
+            instance.getCompletionQueue().offer(futures.get(i));
+        }
+
+        assertEquals(3, instance.getOverflowed());
+        List<TimeoutFuture<Integer>> drained = new ArrayList<>();
+        assertEquals(5, instance.drainTo(drained, 10));
+        assertEquals(futures, drained);
+    }
+
+    @Test
+    public void waitsWithEachStrategy() throws Exception {
+
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            TimeoutCompletionService<Integer> instance = new TimeoutCompletionService<>(8, strategy);
+            assertSame(strategy, instance.getWaitStrategy());
+
+            long start = System.nanoTime();
+            assertNull(instance.poll(20, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+            TimeoutFuture<Integer> ok = future(false);
+            Thread producer = new Thread(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                }
+                instance.getCompletionQueue().offer(ok);
+            });
+            producer.start();
+            assertSame(ok, instance.poll(2, TimeUnit.SECONDS), strategy.name());
+            producer.join();
+        }
+    }
+
+    @Test
+    public void takeIsInterruptible() throws Exception {
+
+        TimeoutCompletionService<Integer> instance = new TimeoutCompletionService<>(8);
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> instance.take());
+    }
+
+    @Test
+    public void collectsTasksOfExecutor() throws Exception {
+
+        TimeoutCompletionService<Integer> instance = new TimeoutCompletionService<>(16);
+        executor = new TimeoutFixPoolExecutor<>(4, 1, TimeUnit.SECONDS, instance.getCompletionQueue());
+
+        for (int i = 0; i < 6; i++) executor.submit(new Sleeper(1, i), 1, TimeUnit.SECONDS);
+        executor.submit(new Sleeper(1000, 10), 20, TimeUnit.MILLISECONDS);
+        executor.submit(new Sleeper(1000, 11), 20, TimeUnit.MILLISECONDS);
+
+        Set<Integer> values = new HashSet<>();
+        for (int i = 0; i < 6; i++) {
+            TimeoutFuture<Integer> future = instance.poll(1, TimeUnit.SECONDS);
+            assertNotNull(future);
+            values.add(future.get());
+        }
+        assertEquals(Set.of(0, 1, 2, 3, 4, 5), values);
+
+        assertTrue(instance.takeTimedOut().isTimedOut());
+        assertTrue(instance.pollTimedOut(1, TimeUnit.SECONDS).isTimedOut());
+        assertNull(instance.poll());
+        assertEquals(0, instance.getOverflowed());
+    }
+}
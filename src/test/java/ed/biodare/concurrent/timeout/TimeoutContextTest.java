@@ -0,0 +1,262 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutContextTest {
+
+    public TimeoutContextTest() {
+    }
+
+    TimeoutFixPoolExecutor<Object> instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new TimeoutFixPoolExecutor<>(4, 10, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        instance.shutdownNow();
+    }
+
+    @Test
+    public void emptyOutsideOfTasks() {
+
+        TimeoutContext context = TimeoutContext.current();
+        assertFalse(context.isPresent());
+        assertNull(context.getFuture());
+        assertEquals(Long.MAX_VALUE, context.getRemaining(TimeUnit.MILLISECONDS));
+        assertFalse(context.isExpired());
+    }
+
+    @Test
+    public void givesBudgetOfRunningTask() throws Exception {
+
+        TimeoutFuture<Long> future = instance.submit(() -> {
+            TimeoutContext context = TimeoutContext.current();
+            assertTrue(context.isPresent());
+            assertFalse(context.isExpired());
+            return context.getRemaining(TimeUnit.MILLISECONDS);
+        }, 500, TimeUnit.MILLISECONDS);
+
+        long remaining = future.get(1, TimeUnit.SECONDS);
+        assertTrue(remaining <= 500);
+        assertTrue(remaining > 0);
+    }
+
+    @Test
+    public void checkStopsCpuBoundLoopOnTimeout() throws Exception {
+
+        AtomicLong iterations = new AtomicLong();
+        TimeoutFuture<Long> future = instance.submit(() -> {
+            TimeoutContext context = TimeoutContext.current();
+            //ignores the interrupt like a library loop would
+            while (true) {
+                context.check();
+                iterations.incrementAndGet();
+            }
+        }, 30, TimeUnit.MILLISECONDS);
+
+        assertThrows(TimeoutCancellationException.class, () -> future.get(1, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        long seen = iterations.get();
+        assertTrue(seen > 0);
+        Thread.sleep(50);
+        assertEquals(seen, iterations.get());
+    }
+
+    @Test
+    public void checkSeesCancellation() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Throwable> thrown = new CompletableFuture<>();
+        TimeoutFuture<Integer> future = instance.submit(() -> {
+            TimeoutContext context = TimeoutContext.current();
+            started.countDown();
+            try {
+                while (true) context.check();
+            } catch (RuntimeException e) {
+                thrown.complete(e);
+                throw e;
+            }
+        }, 10, TimeUnit.SECONDS);
+
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(future.cancel(false));
+
+        Throwable e = thrown.get(1, TimeUnit.SECONDS);
+        assertTrue(e instanceof CancellationException);
+        assertFalse(e instanceof TimeoutCancellationException);
+    }
+
+    @Test
+    public void checkStopsFireAndForgetTaskOnTimeout() throws Exception {
+
+        CompletableFuture<Boolean> present = new CompletableFuture<>();
+        CompletableFuture<Throwable> thrown = new CompletableFuture<>();
+        instance.execute(() -> {
+            TimeoutContext context = TimeoutContext.current();
+            present.complete(context.isPresent());
+            try {
+                //ignores the interrupt like a library loop would
+                while (true) context.check();
+            } catch (RuntimeException e) {
+                thrown.complete(e);
+            }
+        }, 30, TimeUnit.MILLISECONDS, null);
+
+        assertTrue(present.get(1, TimeUnit.SECONDS));
+        assertTrue(thrown.get(1, TimeUnit.SECONDS) instanceof TimeoutCancellationException);
+    }
+
+    @Test
+    public void timingOutFireAndForgetTaskTimesOutItsChildren() throws Exception {
+
+        CompletableFuture<TimeoutFuture<?>> childRef = new CompletableFuture<>();
+        CompletableFuture<Long> remaining = new CompletableFuture<>();
+        instance.execute(() -> {
+            childRef.complete(instance.submit(() -> {
+                remaining.complete(TimeoutContext.current().getRemaining(TimeUnit.MILLISECONDS));
+                Thread.sleep(5000);
+                return 1;
+            }, 10, TimeUnit.SECONDS));
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+            }
+        }, 50, TimeUnit.MILLISECONDS, null);
+
+        TimeoutFuture<?> child = childRef.get(1, TimeUnit.SECONDS);
+        assertThrows(TimeoutCancellationException.class, () -> child.get(1, TimeUnit.SECONDS));
+        assertTrue(child.isTimedOut());
+        assertTrue(remaining.get(1, TimeUnit.SECONDS) <= 50);
+    }
+
+    @Test
+    public void remainingNanosIsZeroOnceExpired() throws Exception {
+
+        CompletableFuture<Long> before = new CompletableFuture<>();
+        CompletableFuture<Long> after = new CompletableFuture<>();
+        TimeoutFuture<Integer> future = instance.submit(() -> {
+            TimeoutContext context = TimeoutContext.current();
+            before.complete(context.remainingNanos());
+            while (!context.isExpired()) Thread.onSpinWait();
+            after.complete(context.remainingNanos());
+            return 1;
+        }, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(before.get(1, TimeUnit.SECONDS) > 0);
+        assertTrue(before.get() <= TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals(0, (long) after.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isTimedOut());
+        assertEquals(Long.MAX_VALUE, TimeoutContext.current().remainingNanos());
+        TimeoutContext.current().check();
+    }
+
+    @Test
+    public void childGetsRemainingBudgetOfParent() throws Exception {
+
+        TimeoutFuture<Long> parent = instance.submit(() -> {
+            Thread.sleep(50);
+            TimeoutFuture<Long> child = instance.submit(() -> TimeoutContext.current().getRemaining(TimeUnit.MILLISECONDS), 10, TimeUnit.SECONDS);
+            return child.get();
+        }, 300, TimeUnit.MILLISECONDS);
+
+        long remaining = parent.get(1, TimeUnit.SECONDS);
+        assertTrue(remaining <= 250, "Child remaining: "+remaining);
+        assertTrue(remaining > 0);
+    }
+
+    @Test
+    public void childKeepsShorterOwnTimeout() throws Exception {
+
+        TimeoutFuture<Long> parent = instance.submit(() -> {
+            TimeoutFuture<Long> child = instance.submit(() -> TimeoutContext.current().getRemaining(TimeUnit.MILLISECONDS), 100, TimeUnit.MILLISECONDS);
+            return child.get();
+        }, 5, TimeUnit.SECONDS);
+
+        long remaining = parent.get(1, TimeUnit.SECONDS);
+        assertTrue(remaining <= 100);
+    }
+
+    @Test
+    public void timingOutParentTimesOutChildren() throws Exception {
+
+        CompletableFuture<TimeoutFuture<?>> childRef = new CompletableFuture<>();
+        TimeoutFuture<?> parent = instance.submit(() -> {
+            childRef.complete(instance.submit(new Sleeper(5000, 1), 10, TimeUnit.SECONDS));
+            Thread.sleep(5000);
+            return 1;
+        }, 50, TimeUnit.MILLISECONDS);
+
+        TimeoutFuture<?> child = childRef.get(1, TimeUnit.SECONDS);
+        assertThrows(TimeoutCancellationException.class, () -> parent.get(1, TimeUnit.SECONDS));
+        assertThrows(TimeoutCancellationException.class, () -> child.get(1, TimeUnit.SECONDS));
+        assertTrue(child.isTimedOut());
+    }
+
+    @Test
+    public void cancellingParentCancelsQueuedChildren() throws Exception {
+
+        TimeoutFixPoolExecutor<Object> single = new TimeoutFixPoolExecutor<>(1, 10, TimeUnit.SECONDS);
+        try {
+            CompletableFuture<TimeoutFuture<?>> childRef = new CompletableFuture<>();
+            TimeoutFuture<?> parent = single.submit(() -> {
+                //the child waits in the queue behind its parent
+                childRef.complete(single.submit(() -> 2, 10, TimeUnit.SECONDS));
+                Thread.sleep(5000);
+                return 1;
+            }, 10, TimeUnit.SECONDS);
+
+            TimeoutFuture<?> child = childRef.get(1, TimeUnit.SECONDS);
+            assertTrue(parent.cancel(true));
+            assertThrows(CancellationException.class, () -> child.get(1, TimeUnit.SECONDS));
+            assertTrue(child.isCancelled());
+            assertFalse(child.isTimedOut());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void completedParentLeavesChildrenRunning() throws Exception {
+
+        TimeoutFuture<TimeoutFuture<?>> parent = instance.submit(() -> instance.submit(new Sleeper(100, 3), 10, TimeUnit.SECONDS), 1, TimeUnit.SECONDS);
+
+        TimeoutFuture<?> child = parent.get(1, TimeUnit.SECONDS);
+        assertEquals(3, child.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void detachedTasksAreIndependent() throws Exception {
+
+        CompletableFuture<TimeoutFuture<?>> childRef = new CompletableFuture<>();
+        TimeoutFuture<?> parent = instance.submit(() -> {
+            childRef.complete(TimeoutContext.detached(() -> instance.submit(new Sleeper(100, 3), 10, TimeUnit.SECONDS)));
+            assertTrue(TimeoutContext.current().isPresent());
+            Thread.sleep(5000);
+            return 1;
+        }, 20, TimeUnit.MILLISECONDS);
+
+        TimeoutFuture<?> child = childRef.get(1, TimeUnit.SECONDS);
+        assertThrows(TimeoutCancellationException.class, () -> parent.get(1, TimeUnit.SECONDS));
+        assertEquals(3, child.get(1, TimeUnit.SECONDS));
+    }
+}
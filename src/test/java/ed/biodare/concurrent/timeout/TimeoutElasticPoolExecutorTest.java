@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutElasticPoolExecutorTest {
+
+    public TimeoutElasticPoolExecutorTest() {
+    }
+
+    TimeoutElasticPoolExecutor<Integer> instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new TimeoutElasticPoolExecutor<>(1, 8, 1, TimeUnit.SECONDS);
+        instance.setSizingPeriod(20, TimeUnit.MILLISECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        instance.shutdownNow();
+    }
+
+    static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void growsIfTasksWaitTooLong() {
+
+        assertEquals(3, TimeoutElasticPoolExecutor.targetSize(2, 1, 8, 200 * MS, 10, 100 * MS, 0, 5, 2));
+        assertEquals(6, TimeoutElasticPoolExecutor.targetSize(4, 1, 8, 200 * MS, 10, 100 * MS, 0, 5, 4));
+        assertEquals(8, TimeoutElasticPoolExecutor.targetSize(6, 1, 8, 200 * MS, 10, 100 * MS, 0, 5, 6));
+        assertEquals(2, TimeoutElasticPoolExecutor.targetSize(1, 1, 8, 200 * MS, 10, 100 * MS, 0, 5, 1));
+    }
+
+    @Test
+    public void growsIfTasksTimeOutWhileOthersWait() {
+
+        assertEquals(3, TimeoutElasticPoolExecutor.targetSize(2, 1, 8, 10 * MS, 10, 100 * MS, 0.2, 5, 2));
+        //nothing started at all
+        assertEquals(3, TimeoutElasticPoolExecutor.targetSize(2, 1, 8, 0, 0, 100 * MS, 0, 5, 2));
+        //timeouts without waiting tasks are not cured by more threads
+        assertEquals(2, TimeoutElasticPoolExecutor.targetSize(2, 1, 8, 10 * MS, 10, 100 * MS, 0.2, 0, 2));
+    }
+
+    @Test
+    public void shrinksSlowlyWhenIdle() {
+
+        assertEquals(3, TimeoutElasticPoolExecutor.targetSize(4, 1, 8, 1 * MS, 10, 100 * MS, 0, 0, 2));
+        assertEquals(1, TimeoutElasticPoolExecutor.targetSize(1, 1, 8, 0, 0, 100 * MS, 0, 0, 0));
+        //all busy so keeps the size
+        assertEquals(4, TimeoutElasticPoolExecutor.targetSize(4, 1, 8, 1 * MS, 10, 100 * MS, 0, 0, 4));
+        //moderate waiting
+        assertEquals(4, TimeoutElasticPoolExecutor.targetSize(4, 1, 8, 50 * MS, 10, 100 * MS, 0, 0, 2));
+    }
+
+    @Test
+    public void targetWaitIsFractionOfTimeout() {
+
+        assertEquals(100 * MS, instance.targetWait());
+        instance.setTargetWaitFraction(0.5);
+        assertEquals(500 * MS, instance.targetWait());
+
+        instance.setDefaultTimeOut(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        assertEquals(20 * MS, instance.targetWait());
+
+        assertThrows(IllegalArgumentException.class, () -> instance.setTargetWaitFraction(0));
+        assertThrows(IllegalArgumentException.class, () -> instance.setSizingPeriod(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectsWrongBounds() {
+
+        assertThrows(IllegalArgumentException.class, () -> new TimeoutElasticPoolExecutor<>(4, 2, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void growsUnderBurstAndShrinksBack() throws Exception {
+
+        assertEquals(1, instance.getCorePoolSize());
+
+        List<TimeoutFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            futures.add((TimeoutFuture<Integer>)instance.submit(new Sleeper(20, i)));
+        }
+
+        for (TimeoutFuture<Integer> future : futures) future.get();
+        assertTrue(instance.getLargestPoolSize() > 1);
+        assertTrue(instance.getLargestPoolSize() <= 8);
+        futures.forEach(future -> assertFalse(future.isTimedOut()));
+
+        long end = System.currentTimeMillis() + 2000;
+        while (instance.getTargetThreads() > 1 && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertEquals(1, instance.getTargetThreads());
+        assertEquals(1, instance.getCorePoolSize());
+        assertEquals(1, instance.getMaximumPoolSize());
+    }
+
+    @Test
+    public void stopsSizingOnceTerminated() throws Exception {
+
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(1, TimeUnit.SECONDS));
+        assertTrue(instance.actionTimer().isStopped());
+    }
+
+    @Test
+    public void sizingDoesNotKeepExecutorAlive() throws Exception {
+
+        TimeoutElasticPoolExecutor<Integer> unused = new TimeoutElasticPoolExecutor<>(1, 2, 1, TimeUnit.SECONDS);
+        unused.setSizingPeriod(10, TimeUnit.MILLISECONDS);
+        Thread.sleep(30);
+        WeakReference<?> reference = new WeakReference<>(unused);
+        unused = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(reference.get());
+    }
+}
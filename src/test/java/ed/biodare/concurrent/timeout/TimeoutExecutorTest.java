@@ -0,0 +1,151 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutExecutorTest {
+
+    public TimeoutExecutorTest() {
+    }
+
+    TimeoutFixPoolExecutor<?> pool;
+    TimeoutExecutor instance;
+
+    @BeforeEach
+    public void setUp() {
+        pool = new TimeoutFixPoolExecutor<>(2);
+        instance = new LegacyExecutor(pool);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void defaultDeadlineSubmissionShortensTheTimeout() throws Exception {
+
+        TimeoutFuture<Integer> future = instance.submit(new Sleeper(1000, 1), 5, TimeUnit.SECONDS, Instant.now().plusMillis(50));
+        assertThrows(TimeoutCancellationException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isTimedOut());
+
+        TimeoutFuture<?> far = instance.submit(() -> {}, 1, TimeUnit.SECONDS, Instant.MAX);
+        assertNull(far.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void defaultsOfTheUnsupportedFeaturesThrow() {
+
+        Callable<Integer> task = () -> 1;
+        assertThrows(UnsupportedOperationException.class, () -> instance.submitAsync(task, 1, TimeUnit.SECONDS));
+        assertThrows(UnsupportedOperationException.class, () -> instance.submitAsync(() -> {}, 1, TimeUnit.SECONDS));
+        assertThrows(UnsupportedOperationException.class, () -> instance.submitHedged(task, 1, 2, TimeUnit.SECONDS));
+        assertThrows(UnsupportedOperationException.class, () -> instance.submitWithRetry(task, 1, 2, TimeUnit.SECONDS, new RetryPolicy(2, 0, TimeUnit.MILLISECONDS)));
+        assertThrows(UnsupportedOperationException.class, () -> instance.setExpectedRunTime(1, TimeUnit.SECONDS));
+        assertThrows(UnsupportedOperationException.class, () -> instance.getMetrics());
+        assertThrows(UnsupportedOperationException.class, () -> instance.setTimeoutMode(TimeoutMode.FROM_SUBMIT));
+
+        instance.setTimeoutMode(TimeoutMode.FROM_START);
+        assertEquals(TimeoutMode.FROM_START, instance.getTimeoutMode());
+        assertEquals(0, instance.getExpectedRunTime(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Implementation written against the first version of the interface, it only delegates its original methods.
+     */
+    static class LegacyExecutor extends AbstractExecutorService implements TimeoutExecutor {
+
+        final TimeoutFixPoolExecutor<?> pool;
+
+        LegacyExecutor(TimeoutFixPoolExecutor<?> pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public <T> TimeoutFuture<T> submit(Callable<T> task, long timeout, TimeUnit timeOutUnit) {
+            return pool.submit(task, timeout, timeOutUnit);
+        }
+
+        @Override
+        public TimeoutFuture<?> submit(Runnable task, long timeout, TimeUnit timeOutUnit) {
+            return pool.submit(task, timeout, timeOutUnit);
+        }
+
+        @Override
+        public void setGlobalDeadline(Date deadline) {
+            pool.setGlobalDeadline(deadline);
+        }
+
+        @Override
+        public void resetGlobalDeadline() {
+            pool.resetGlobalDeadline();
+        }
+
+        @Override
+        public boolean hasGlobalDeadline() {
+            return pool.hasGlobalDeadline();
+        }
+
+        @Override
+        public Date getGlobalDeadline() {
+            return pool.getGlobalDeadline();
+        }
+
+        @Override
+        public void setDefaultTimeOut(long timeout, TimeUnit timeoutUnit) {
+            pool.setDefaultTimeOut(timeout, timeoutUnit);
+        }
+
+        @Override
+        public long getDefaultTimeOut(TimeUnit unit) {
+            return pool.getDefaultTimeOut(unit);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            pool.execute(command);
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return pool.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return pool.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+    }
+}
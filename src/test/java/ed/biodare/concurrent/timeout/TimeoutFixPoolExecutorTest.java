@@ -5,10 +5,15 @@
  */
 package ed.biodare.concurrent.timeout;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -204,7 +209,92 @@ public class TimeoutFixPoolExecutorTest {
         
     }    
     
-
+    @Test
+    public void submitAsyncCompletesStageWithResult() throws Exception {
+        
+        CompletionStage<Integer> stage = instance.submitAsync(new Sleeper(10, 2), 50, TimeUnit.MILLISECONDS);
+        CompletableFuture<Integer> doubled = stage.thenApply(v -> 2*v).toCompletableFuture();
+        
+        assertEquals(4, (int)doubled.get(500, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void submitAsyncCompletesStageWithTimeout() throws Exception {
+        
+        CompletionStage<Integer> stage = instance.submitAsync(new Sleeper(200, 2), 20, TimeUnit.MILLISECONDS);
+        CompletableFuture<Throwable> error = stage.handle((v, e) -> e).toCompletableFuture();
+        
+        assertTrue(error.get(500, TimeUnit.MILLISECONDS) instanceof TimeoutCancellationException);
+        
+        CompletionStage<Void> runnable = instance.submitAsync(() -> {}, 20, TimeUnit.MILLISECONDS);
+        assertNull(runnable.toCompletableFuture().get(500, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void timeOutsWithSubMillisecondTimeout() throws Exception {
+        
+        TimeoutFuture<?> future = instance.submit(new Sleeper(100, 1), 200, TimeUnit.MICROSECONDS);
+        
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(500, TimeUnit.MILLISECONDS));
+        assertTrue(future.isTimedOut());
+    }
     
+    @Test
+    public void budgetFromSubmitShedsTasksWaitingTooLong() throws Exception {
+        
+        instance.setTimeoutMode(TimeoutMode.FROM_SUBMIT);
+        instance.setExpectedRunTime(20, TimeUnit.MILLISECONDS);
+        
+        AtomicBoolean secondStarted = new AtomicBoolean();
+        TimeoutFuture<Integer> first = instance.submit(new Sleeper(50, 1), 100, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> waiting = instance.submit(() -> {
+            secondStarted.set(true);
+            return 2;
+        }, 60, TimeUnit.MILLISECONDS);
+        TimeoutFuture<Integer> doomed = instance.submit(new Sleeper(5, 3), 10, TimeUnit.MILLISECONDS);
+        assertTrue(doomed.isTimedOut());
+        
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(500, TimeUnit.MILLISECONDS));
+        
+        assertEquals(1, (int)first.get());
+        assertTrue(waiting.isTimedOut());
+        assertFalse(secondStarted.get());
+        assertEquals(2, instance.getMetrics().getShed());
+        assertEquals(3, instance.getMetrics().getSubmitted());
+    }
+    
+    @Test
+    public void rejectsDoomedTasksAfterShutdown() throws Exception {
+
+        instance.setTimeoutMode(TimeoutMode.FROM_SUBMIT);
+        instance.setExpectedRunTime(1, TimeUnit.SECONDS);
+        instance.shutdown();
+
+        assertThrows(RejectedExecutionException.class, () -> instance.submit(new Sleeper(5, 1), 10, TimeUnit.MILLISECONDS));
+        assertThrows(RejectedExecutionException.class, () -> instance.execute(() -> {}, 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, instance.getMetrics().getShed());
+    }
+
+    @Test
+    public void ownDeadlineTimesOutTask() throws Exception {
+        
+        instance = new TimeoutFixPoolExecutor(2, 1, TimeUnit.SECONDS);
+        
+        TimeoutFuture<Integer> limited = instance.submit(new Sleeper(200, 1), Instant.now().plusMillis(30));
+        TimeoutFuture<Integer> free = instance.submit(new Sleeper(50, 2), 1, TimeUnit.SECONDS, Instant.now().plusSeconds(1));
+        AtomicBoolean lateStarted = new AtomicBoolean();
+        TimeoutFuture<?> late = instance.submit(() -> lateStarted.set(true), 1, TimeUnit.SECONDS, Instant.now().minusMillis(1));
+        
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(500, TimeUnit.MILLISECONDS));
+        
+        assertTrue(limited.isTimedOut());
+        assertFalse(free.isTimedOut());
+        assertEquals(2, (int)free.get());
+        assertTrue(late.isTimedOut());
+        assertFalse(lateStarted.get());
+    }
     
 }
@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutForkJoinExecutorTest {
+
+    public TimeoutForkJoinExecutorTest() {
+    }
+
+    TimeoutForkJoinExecutor instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new TimeoutForkJoinExecutor(4, 1, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        instance.shutdownNow();
+    }
+
+    static class Sum extends TimeoutForkJoinTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        final long from;
+        final long to;
+        final long leafSleep;
+        final AtomicInteger computed;
+        final AtomicLong remaining;
+
+        Sum(long from, long to, long leafSleep, AtomicInteger computed, AtomicLong remaining) {
+            this.from = from;
+            this.to = to;
+            this.leafSleep = leafSleep;
+            this.computed = computed;
+            this.remaining = remaining;
+        }
+
+        @Override
+        protected Long compute() {
+            computed.incrementAndGet();
+            if (to - from <= 10) {
+                remaining.accumulateAndGet(getRemaining(TimeUnit.MILLISECONDS), Math::min);
+                if (leafSleep > 0) {
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leafSleep);
+                    while (System.nanoTime() < end && !isExpired()) {
+                        Thread.onSpinWait();
+                    }
+                }
+                long sum = 0;
+                for (long i = from; i < to; i++) sum += i;
+                return sum;
+            }
+            long mid = (from + to) / 2;
+            Sum left = new Sum(from, mid, leafSleep, computed, remaining);
+            Sum right = new Sum(mid, to, leafSleep, computed, remaining);
+            left.fork();
+            return right.compute() + left.join();
+        }
+    }
+
+    @Test
+    public void computesRecursiveTasks() throws Exception {
+
+        AtomicInteger computed = new AtomicInteger();
+        AtomicLong remaining = new AtomicLong(Long.MAX_VALUE);
+        TimeoutFuture<Long> future = instance.submit(new Sum(0, 10_000, 0, computed, remaining), 1, TimeUnit.SECONDS);
+
+        assertEquals(49_995_000L, (long) future.get(1, TimeUnit.SECONDS));
+        assertFalse(future.isTimedOut());
+        assertTrue(computed.get() > 1000);
+        assertEquals(1, instance.getMetrics().getCompleted());
+    }
+
+    @Test
+    public void subtasksShareBudgetOfRoot() throws Exception {
+
+        AtomicInteger computed = new AtomicInteger();
+        AtomicLong remaining = new AtomicLong(Long.MAX_VALUE);
+        TimeoutFuture<Long> future = instance.submit(new Sum(0, 1000, 0, computed, remaining), 500, TimeUnit.MILLISECONDS);
+
+        future.get(1, TimeUnit.SECONDS);
+        assertTrue(remaining.get() <= 500);
+        assertTrue(remaining.get() > 0);
+    }
+
+    @Test
+    public void tasksOutsideExecutorHaveNoBudget() {
+
+        AtomicInteger computed = new AtomicInteger();
+        AtomicLong remaining = new AtomicLong(Long.MAX_VALUE);
+        Sum sum = new Sum(0, 100, 0, computed, remaining);
+
+        assertEquals(4950L, (long) sum.invoke());
+        assertNull(sum.getRoot());
+        assertEquals(Long.MAX_VALUE, remaining.get());
+        assertFalse(sum.isExpired());
+    }
+
+    @Test
+    public void timedOutRootCancelsPendingSubtasks() throws Exception {
+
+        AtomicInteger computed = new AtomicInteger();
+        AtomicLong remaining = new AtomicLong(Long.MAX_VALUE);
+        //about 1000 leaves of 5ms each on 4 threads would need over 1s
+        TimeoutFuture<Long> future = instance.submit(new Sum(0, 10_000, 5, computed, remaining), 50, TimeUnit.MILLISECONDS);
+
+        assertThrows(TimeoutCancellationException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isTimedOut());
+
+        //the tree unwinds quickly and the remaining subtasks are not computed
+        Thread.sleep(100);
+        int seen = computed.get();
+        assertTrue(seen < 2000);
+        Thread.sleep(50);
+        assertEquals(seen, computed.get());
+        assertEquals(0, instance.getActiveCount());
+    }
+
+    @Test
+    public void runsPlainTasksWithTimeouts() throws Exception {
+
+        TimeoutFuture<Integer> ok = instance.submit(() -> 3, 1, TimeUnit.SECONDS);
+        TimeoutFuture<?> slow = instance.submit(new Sleeper(500, 1), 20, TimeUnit.MILLISECONDS);
+
+        assertEquals(3, (int) ok.get(1, TimeUnit.SECONDS));
+        assertThrows(TimeoutCancellationException.class, () -> slow.get(1, TimeUnit.SECONDS));
+        assertTrue(slow.isTimedOut());
+    }
+
+    @Test
+    public void shutdownReleasesTheTimer() throws Exception {
+
+        TimeoutFuture<Integer> future = instance.submit(() -> 3, 1, TimeUnit.SECONDS);
+        future.get(1, TimeUnit.SECONDS);
+
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(1, TimeUnit.SECONDS));
+        assertTrue(instance.isTerminated());
+        assertThrows(RejectedExecutionException.class, () -> instance.submit(() -> 3, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void validatesParallelism() {
+        assertThrows(IllegalArgumentException.class, () -> new TimeoutForkJoinExecutor(0, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectsDoomedTasksAfterShutdown() throws Exception {
+
+        instance.setTimeoutMode(TimeoutMode.FROM_SUBMIT);
+        instance.setExpectedRunTime(1, TimeUnit.SECONDS);
+        instance.shutdown();
+
+        assertThrows(RejectedExecutionException.class, () -> instance.submit(new Sleeper(5, 1), 10, TimeUnit.MILLISECONDS));
+        assertThrows(RejectedExecutionException.class, () -> instance.execute(() -> {}, 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, instance.getMetrics().getShed());
+    }
+}
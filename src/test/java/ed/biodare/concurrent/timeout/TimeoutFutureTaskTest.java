@@ -5,11 +5,14 @@
  */
 package ed.biodare.concurrent.timeout;
 
+import java.time.Instant;
 import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -54,7 +57,7 @@ public class TimeoutFutureTaskTest {
     @Test
     public void delayGivesRemainingTime() {
         
-        assertEquals(Long.MAX_VALUE-System.currentTimeMillis(), instance.getDelay(TimeUnit.MILLISECONDS));
+        assertEquals(Long.MAX_VALUE, instance.getDelay(TimeUnit.MILLISECONDS));
         instance.run();
         long d = instance.getDelay(TimeUnit.MILLISECONDS);
         assertTrue(d <= timeout);
@@ -62,6 +65,108 @@ public class TimeoutFutureTaskTest {
         
     }
     
+    @Test
+    public void delayIsMeasuredWithTickerInNanos() {
+        
+        AtomicLong time = new AtomicLong(-1000);
+        instance = new TimeoutFutureTask<>(callable,timedOutQueue, completionQueue, 200, TimeUnit.MICROSECONDS, time::get, TimeoutFutureTask.NO_DEADLINE);
+        
+        instance.run();
+        assertEquals(200_000, instance.getDelay(TimeUnit.NANOSECONDS));
+        
+        time.addAndGet(150_000);
+        assertEquals(50_000, instance.getDelay(TimeUnit.NANOSECONDS));
+        
+        time.addAndGet(100_000);
+        assertEquals(-50_000, instance.getDelay(TimeUnit.NANOSECONDS));
+    }
+    
+    @Test
+    public void deadlineLimitsDelayInTickerTime() {
+        
+        //ticker values can wrap around like System.nanoTime
+        AtomicLong time = new AtomicLong(Long.MAX_VALUE - 100);
+        instance = new TimeoutFutureTask<>(callable,timedOutQueue, completionQueue, 1, TimeUnit.SECONDS, time::get, time.get() + 500);
+        
+        instance.run();
+        assertEquals(500, instance.getDelay(TimeUnit.NANOSECONDS));
+        
+        instance = new TimeoutFutureTask<>(callable,timedOutQueue, completionQueue, 1, TimeUnit.SECONDS, time::get, time.get() - 1);
+        instance.run();
+        assertTrue(instance.isTimedOut());
+    }
+    
+    @Test
+    public void budgetFromSubmitChargesQueueWait() throws Exception {
+        
+        AtomicLong time = new AtomicLong(0);
+        instance = new TimeoutFutureTask<>(callable,timedOutQueue, completionQueue, 1, TimeUnit.MILLISECONDS, time::get, TimeoutFutureTask.NO_DEADLINE)
+                .budgetFromSubmit(TimeUnit.MICROSECONDS.toNanos(500));
+        
+        assertFalse(instance.shedIfDoomed());
+        time.set(TimeUnit.MICROSECONDS.toNanos(300));
+        instance.run();
+        
+        verify(callable).call();
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(700), instance.getDelay(TimeUnit.NANOSECONDS));
+    }
+    
+    @Test
+    public void budgetFromSubmitShedsDoomedTasks() throws Exception {
+        
+        AtomicLong time = new AtomicLong(0);
+        instance = new TimeoutFutureTask<>(callable,timedOutQueue, completionQueue, 1, TimeUnit.MILLISECONDS, time::get, TimeoutFutureTask.NO_DEADLINE)
+                .budgetFromSubmit(TimeUnit.MICROSECONDS.toNanos(500));
+        
+        time.set(TimeUnit.MICROSECONDS.toNanos(600));
+        instance.run();
+        
+        verify(callable, never()).call();
+        verify(timedOutQueue, never()).put(instance);
+        assertTrue(instance.isTimedOut());
+        
+        instance = new TimeoutFutureTask<>(callable,timedOutQueue, completionQueue, 1, TimeUnit.MILLISECONDS, time::get, TimeoutFutureTask.NO_DEADLINE)
+                .budgetFromSubmit(TimeUnit.MILLISECONDS.toNanos(2));
+        assertTrue(instance.shedIfDoomed());
+        assertTrue(instance.isTimedOut());
+    }
+    
+    @Test
+    public void tickerDeadlineConvertsSystemTime() {
+        
+        Ticker ticker = () -> 1000;
+        assertEquals(TimeoutFutureTask.NO_DEADLINE, TimeoutFutureTask.tickerDeadline(Long.MAX_VALUE, ticker));
+        
+        long d = TimeoutFutureTask.tickerDeadline(System.currentTimeMillis() + 100, ticker);
+        assertTrue(d <= 1000 + TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(d > 1000 + TimeUnit.MILLISECONDS.toNanos(50));
+    }
+    
+    @Test
+    public void tickerDeadlineConvertsInstant() {
+        
+        Ticker ticker = () -> -1000;
+        assertEquals(TimeoutFutureTask.NO_DEADLINE, TimeoutFutureTask.tickerDeadline(Instant.MAX, ticker));
+        assertTrue(TimeoutFutureTask.tickerDeadline(Instant.MIN, ticker) < -1000);
+        
+        long d = TimeoutFutureTask.tickerDeadline(Instant.now().plusMillis(100), ticker);
+        assertTrue(d <= -1000 + TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(d > -1000 + TimeUnit.MILLISECONDS.toNanos(50));
+    }
+    
+    @Test
+    public void earlierDeadlineHandlesNoDeadlineAndWrapping() {
+        
+        long none = TimeoutFutureTask.NO_DEADLINE;
+        assertEquals(5, TimeoutFutureTask.earlierDeadline(none, 5));
+        assertEquals(5, TimeoutFutureTask.earlierDeadline(5, none));
+        assertEquals(none, TimeoutFutureTask.earlierDeadline(none, none));
+        assertEquals(-5, TimeoutFutureTask.earlierDeadline(5, -5));
+        
+        //after wrapping around MIN_VALUE is later than MAX_VALUE - 10
+        assertEquals(Long.MAX_VALUE - 10, TimeoutFutureTask.earlierDeadline(Long.MIN_VALUE, Long.MAX_VALUE - 10));
+    }
+    
     @Test
     public void comparesWithDelayedCorrectly() {
         Delayed other = null;
@@ -152,6 +257,35 @@ public class TimeoutFutureTaskTest {
         verify(completionQueue).offer(instance);
     } 
     
+    @Test
+    public void doneCompletesStage() throws Exception {
+        when(callable.call()).thenReturn(2);
+        
+        CompletableFuture<Integer> stage = instance.asStage().toCompletableFuture();
+        assertFalse(stage.isDone());
+        
+        instance.run();
+        assertEquals(2, (int)stage.getNow(null));
+        
+        instance = new TimeoutFutureTask<>(callable,timedOutQueue, completionQueue, timeout, timeoutUnit, deadline);
+        CompletableFuture<Integer> timedOutStage = instance.asStage().toCompletableFuture();
+        
+        instance.timeOut();
+        assertTrue(timedOutStage.isCompletedExceptionally());
+        assertThrows(TimeoutCancellationException.class, () -> timedOutStage.getNow(null));
+    }
+    
+    @Test
+    public void cancellingStageCancelsTask() {
+        
+        CompletableFuture<Integer> stage = instance.asStage().toCompletableFuture();
+        assertTrue(stage.cancel(true));
+        
+        assertTrue(instance.isCancelled());
+        assertFalse(instance.isTimedOut());
+        assertTrue(stage.isCancelled());
+    }
+    
     @Test
     public void runDoesNotRunAfterDeadline() throws Exception {
         deadline = System.currentTimeMillis()-1;
@@ -0,0 +1,275 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutLaneTest {
+
+    public TimeoutLaneTest() {
+    }
+
+    TimeoutFixPoolExecutor<Object> executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new TimeoutFixPoolExecutor<>(4, 1, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    static Runnable waitFor(CountDownLatch latch) {
+        return () -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    /**
+     * Task which ignores the interrupts, it keeps its worker for the whole time.
+     */
+    static Runnable ignoringInterrupts(long millis, AtomicInteger running, AtomicInteger maxRunning) {
+        return () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            boolean interrupted = false;
+            try {
+                while (System.nanoTime() < end) {
+                    try {
+                        Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime())));
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                running.decrementAndGet();
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    @Test
+    public void addLaneValidatesParameters() {
+
+        TimeoutLane lane = executor.addLane("tenant", 2, 10, 100, TimeUnit.MILLISECONDS);
+        assertSame(lane, executor.getLane("tenant"));
+        assertEquals(1, executor.getLanes().size());
+        assertEquals(100, lane.getDefaultTimeOut(TimeUnit.MILLISECONDS));
+
+        assertThrows(IllegalArgumentException.class, () -> executor.addLane("tenant", 2, 10, 1, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> executor.addLane(null, 2, 10, 1, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> executor.addLane("other", 0, 10, 1, TimeUnit.SECONDS));
+        assertThrows(IllegalArgumentException.class, () -> executor.addLane("other", 1, -1, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void saturatedLaneDoesNotBlockOthers() throws Exception {
+
+        TimeoutLane slow = executor.addLane("slow", 2, 10, 10, TimeUnit.SECONDS);
+        TimeoutLane fast = executor.addLane("fast", 2, 10, 1, TimeUnit.SECONDS);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 6; i++) {
+            slow.submit(waitFor(release));
+        }
+
+        Thread.sleep(50);
+        assertEquals(2, slow.getActive());
+        assertEquals(4, slow.getQueued());
+
+        assertEquals(Integer.valueOf(1), fast.submit(() -> 1).get(100, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(2), executor.submit(() -> 2, 1, TimeUnit.SECONDS).get(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        Thread.sleep(50);
+        assertEquals(0, slow.getActive());
+        assertEquals(0, slow.getQueued());
+        assertEquals(6, slow.getMetrics().getCompleted());
+    }
+
+    @Test
+    public void rejectsTasksOverQueueCapacity() throws Exception {
+
+        TimeoutLane lane = executor.addLane("tenant", 1, 1, 1, TimeUnit.SECONDS);
+        CountDownLatch release = new CountDownLatch(1);
+        lane.submit(waitFor(release));
+        TimeoutFuture<?> waiting = lane.submit(waitFor(release));
+
+        assertThrows(RejectedExecutionException.class, () -> lane.submit(waitFor(release)));
+        assertEquals(1, lane.getRejected());
+
+        release.countDown();
+        waiting.get(1, TimeUnit.SECONDS);
+        assertEquals(2, lane.getMetrics().getSubmitted());
+    }
+
+    @Test
+    public void timedOutTasksFreeTheirPlaces() throws Exception {
+
+        TimeoutLane lane = executor.addLane("tenant", 1, 5, 50, TimeUnit.MILLISECONDS);
+        TimeoutFuture<?> first = lane.submit(new Sleeper(5000, 1));
+        TimeoutFuture<?> second = lane.submit(new Sleeper(5000, 2));
+
+        assertThrows(TimeoutCancellationException.class, () -> first.get(1, TimeUnit.SECONDS));
+        assertThrows(TimeoutCancellationException.class, () -> second.get(1, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(3), lane.submit(() -> 3).get(1, TimeUnit.SECONDS));
+        Thread.sleep(20);
+
+        assertEquals(2, lane.getMetrics().getTimedOut());
+        assertEquals(2, executor.getMetrics().getTimedOut());
+        assertEquals(0, lane.getActive());
+    }
+
+    @Test
+    public void timedOutTasksIgnoringInterruptKeepTheirPlacesUntilTheyReturn() throws Exception {
+
+        TimeoutLane lane = executor.addLane("tenant", 1, 5, 20, TimeUnit.MILLISECONDS);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        TimeoutFuture<?> first = lane.submit(ignoringInterrupts(150, running, maxRunning));
+        lane.submit(ignoringInterrupts(150, running, maxRunning));
+        lane.submit(ignoringInterrupts(150, running, maxRunning));
+
+        assertThrows(TimeoutCancellationException.class, () -> first.get(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        //the first is timed out but still holds its worker
+        assertEquals(1, lane.getActive());
+        assertEquals(2, lane.getQueued());
+
+        Thread.sleep(500);
+        assertEquals(1, maxRunning.get());
+        assertEquals(0, lane.getActive());
+        assertEquals(0, lane.getQueued());
+        assertEquals(3, lane.getMetrics().getTimedOut());
+    }
+
+    @Test
+    public void tasksCancelledInThePoolQueueFreeTheirPlaces() throws Exception {
+
+        TimeoutFixPoolExecutor<Object> single = new TimeoutFixPoolExecutor<>(1, 1, TimeUnit.SECONDS);
+        try {
+            TimeoutLane lane = single.addLane("tenant", 2, 5, 1, TimeUnit.SECONDS);
+            CountDownLatch release = new CountDownLatch(1);
+            single.submit(waitFor(release), 1, TimeUnit.SECONDS);
+            TimeoutFuture<?> queued = lane.submit(() -> 1);
+            Thread.sleep(20);
+            assertEquals(1, lane.getActive());
+
+            //cancelled before any worker took it
+            queued.cancel(false);
+            assertEquals(0, lane.getActive());
+            release.countDown();
+            assertEquals(Integer.valueOf(2), lane.submit(() -> 2).get(1, TimeUnit.SECONDS));
+            Thread.sleep(20);
+            assertEquals(0, lane.getActive());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void countsTimeoutsPerLane() throws Exception {
+
+        TimeoutLane slow = executor.addLane("slow", 2, 5, 30, TimeUnit.MILLISECONDS);
+        TimeoutLane fast = executor.addLane("fast", 2, 5, 1, TimeUnit.SECONDS);
+
+        TimeoutFuture<?> timedOut = slow.submit(new Sleeper(5000, 1));
+        TimeoutFuture<?> completed = fast.submit(() -> 2);
+
+        assertThrows(TimeoutCancellationException.class, () -> timedOut.get(1, TimeUnit.SECONDS));
+        completed.get(1, TimeUnit.SECONDS);
+        Thread.sleep(20);
+
+        assertEquals(1, slow.getMetrics().getTimedOut());
+        assertEquals(0, slow.getMetrics().getCompleted());
+        assertEquals(0, fast.getMetrics().getTimedOut());
+        assertEquals(1, fast.getMetrics().getCompleted());
+        assertEquals(2, executor.getMetrics().getSubmitted());
+    }
+
+    @Test
+    public void cancelledWaitingTaskLeavesTheLane() throws Exception {
+
+        TimeoutLane lane = executor.addLane("tenant", 1, 5, 1, TimeUnit.SECONDS);
+        CountDownLatch release = new CountDownLatch(1);
+        lane.submit(waitFor(release));
+        TimeoutFuture<?> waiting = lane.submit(() -> 2);
+        assertEquals(1, lane.getQueued());
+
+        assertTrue(waiting.cancel(false));
+        assertEquals(0, lane.getQueued());
+        assertEquals(1, lane.getActive());
+
+        release.countDown();
+        assertEquals(Integer.valueOf(3), lane.submit(() -> 3).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void marksTasksPassedToThePool() throws Exception {
+
+        TimeoutLane lane = executor.addLane("tenant", 1, 5, 1, TimeUnit.SECONDS);
+        CountDownLatch release = new CountDownLatch(1);
+        TimeoutFutureTask<?> running = (TimeoutFutureTask<?>) lane.submit(waitFor(release));
+        TimeoutFutureTask<?> waiting = (TimeoutFutureTask<?>) lane.submit(() -> 2);
+
+        assertTrue(running.isDispatched());
+        assertFalse(waiting.isDispatched());
+
+        release.countDown();
+        waiting.get(1, TimeUnit.SECONDS);
+        assertTrue(waiting.isDispatched());
+        Thread.sleep(20);
+        assertEquals(0, lane.getActive());
+        assertEquals(0, lane.getQueued());
+    }
+
+    @Test
+    public void completionQueueGetsLaneTasks() throws Exception {
+
+        LinkedBlockingQueue<TimeoutFuture<?>> completed = new LinkedBlockingQueue<>();
+        TimeoutFixPoolExecutor<Object> instance = new TimeoutFixPoolExecutor<>(2, 1, TimeUnit.SECONDS, completed);
+        try {
+            TimeoutLane lane = instance.addLane("tenant", 1, 5, 1, TimeUnit.SECONDS);
+            TimeoutFuture<Integer> future = lane.submit(() -> 1);
+            assertSame(future, completed.poll(1, TimeUnit.SECONDS));
+        } finally {
+            instance.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shutdownCancelsWaitingTasks() throws Exception {
+
+        TimeoutLane lane = executor.addLane("tenant", 1, 5, 1, TimeUnit.SECONDS);
+        CountDownLatch release = new CountDownLatch(1);
+        lane.submit(waitFor(release));
+        TimeoutFuture<?> waiting = lane.submit(() -> 2);
+
+        List<Runnable> pending = executor.shutdownNow();
+        assertTrue(pending.contains(waiting));
+        assertThrows(CancellationException.class, () -> waiting.get());
+        assertThrows(RejectedExecutionException.class, () -> lane.submit(() -> 3));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutMetricsTest {
+
+    public TimeoutMetricsTest() {
+    }
+
+    TimeoutFixPoolExecutor executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new TimeoutFixPoolExecutor(1, 20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void countsTasksOfExecutor() throws Exception {
+
+        TimeoutFuture<?> fast = (TimeoutFuture<?>)executor.submit(new Sleeper(5, 1));
+        TimeoutFuture<?> slow = (TimeoutFuture<?>)executor.submit(new Sleeper(200, 2));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(500, TimeUnit.MILLISECONDS));
+        assertFalse(fast.isTimedOut());
+        assertTrue(slow.isTimedOut());
+
+        TimeoutMetrics.Snapshot snapshot = executor.getMetrics().snapshot();
+        assertEquals(2, snapshot.getSubmitted());
+        assertEquals(1, snapshot.getCompleted());
+        assertEquals(1, snapshot.getTimedOut());
+        assertEquals(0, snapshot.getDeadlineRejected());
+        assertEquals(0, snapshot.getTimedOutQueueDepth());
+
+        assertEquals(2, snapshot.getQueueWait().getCount());
+        assertEquals(2, snapshot.getRunTime().getCount());
+        assertTrue(snapshot.getRunTime().getMax(TimeUnit.MILLISECONDS) >= 19);
+        assertEquals(1, snapshot.getExpiryLag().getCount());
+    }
+
+    @Test
+    public void runTimePercentileCountsOnlySuccessfulTasks() throws Exception {
+
+        executor.submit(new Sleeper(200, 1));
+        executor.submit(() -> { throw new IllegalStateException("Failed"); });
+        executor.submit(new Sleeper(1, 2));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(500, TimeUnit.MILLISECONDS));
+
+        TimeoutMetrics metrics = executor.getMetrics();
+        assertEquals(3, metrics.snapshot().getRunTime().getCount());
+        //the timed out task ran for its whole timeout, it would be the 100th percentile
+        assertTrue(metrics.getRunTimePercentile(100, TimeUnit.MILLISECONDS) < 19);
+        assertTrue(metrics.getRunTimePercentile(100, TimeUnit.MICROSECONDS) >= 500);
+    }
+
+    @Test
+    public void countsTasksRejectedAfterDeadline() throws Exception {
+
+        executor.setGlobalDeadline(new Date(System.currentTimeMillis() - 1));
+        TimeoutFuture<?> late = (TimeoutFuture<?>)executor.submit(new Sleeper(5, 1));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(500, TimeUnit.MILLISECONDS));
+        assertTrue(late.isTimedOut());
+
+        TimeoutMetrics.Snapshot snapshot = executor.getMetrics().snapshot();
+        assertEquals(1, snapshot.getSubmitted());
+        assertEquals(0, snapshot.getCompleted());
+        assertEquals(0, snapshot.getTimedOut());
+        assertEquals(1, snapshot.getDeadlineRejected());
+        assertEquals(0, snapshot.getRunTime().getCount());
+    }
+
+    @Test
+    public void isExposedAsMBean() throws Exception {
+
+        executor.submit(new Sleeper(5, 1));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(500, TimeUnit.MILLISECONDS));
+
+        ObjectName name = executor.getMetrics().register("ed.biodare.concurrent.timeout:type=TimeoutExecutor,name=metricsTest");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Submitted"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Completed"));
+            assertThrows(IllegalArgumentException.class, () -> executor.getMetrics().register(name.toString()));
+        } finally {
+            TimeoutMetrics.unregister(name);
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutRunnableTest {
+
+    public TimeoutRunnableTest() {
+    }
+
+    TimeoutFixPoolExecutor<Object> executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = new TimeoutFixPoolExecutor<>(2, 1, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    static Runnable sleeper(long millis, AtomicBoolean interrupted) {
+        return () -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        };
+    }
+
+    @Test
+    public void runsTaskWithoutFuture() throws Exception {
+
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown, 1, TimeUnit.SECONDS);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertEquals(1, executor.getMetrics().getSubmitted());
+        assertEquals(1, executor.getMetrics().getCompleted());
+        assertEquals(0, executor.getMetrics().getTimedOut());
+    }
+
+    @Test
+    public void timesOutTaskAndCallsHandler() throws Exception {
+
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Runnable task = sleeper(5000, interrupted);
+        CompletableFuture<Runnable> handled = new CompletableFuture<>();
+
+        executor.execute(task, 30, TimeUnit.MILLISECONDS, handled::complete);
+
+        assertSame(task, handled.get(1, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertTrue(interrupted.get());
+        assertEquals(1, executor.getMetrics().getTimedOut());
+        assertEquals(0, executor.timedOut().size());
+    }
+
+    @Test
+    public void completedTaskIsNotReported() throws Exception {
+
+        AtomicBoolean handled = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown, 50, TimeUnit.MILLISECONDS, t -> handled.set(true));
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(handled.get());
+        assertEquals(0, executor.timedOut().size());
+    }
+
+    @Test
+    public void doesNotStartAfterDeadline() {
+
+        AtomicBoolean ran = new AtomicBoolean();
+        AtomicBoolean handled = new AtomicBoolean();
+        Ticker ticker = () -> 1000;
+        TimeoutRunnable instance = new TimeoutRunnable(() -> ran.set(true), t -> handled.set(true), new DeadlineHeap(),
+                1, TimeUnit.SECONDS, ticker, 999, -1, null);
+
+        instance.run();
+        assertFalse(ran.get());
+        assertTrue(handled.get());
+        assertTrue(instance.isTimedOut());
+        assertTrue(instance.isDone());
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() {
+
+        AtomicBoolean ran = new AtomicBoolean();
+        TimeoutRunnable instance = new TimeoutRunnable(() -> ran.set(true), null, new DeadlineHeap(),
+                1, TimeUnit.SECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE, -1, null);
+
+        assertTrue(instance.cancel(false));
+        instance.run();
+        assertFalse(ran.get());
+        assertTrue(instance.isCancelled());
+        assertFalse(instance.isTimedOut());
+        assertFalse(instance.timeOut());
+    }
+
+    @Test
+    public void cancellingParentInterruptsRunningChild() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        TimeoutFuture<?> parent = executor.submit(() -> {
+            executor.execute(() -> {
+                started.countDown();
+                sleeper(5000, interrupted).run();
+                finished.countDown();
+            }, 10, TimeUnit.SECONDS, null);
+            Thread.sleep(5000);
+            return 1;
+        }, 10, TimeUnit.SECONDS);
+
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(parent.cancel(true));
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void cancellingParentCancelsQueuedChild() throws Exception {
+
+        TimeoutFixPoolExecutor<Object> single = new TimeoutFixPoolExecutor<>(1, 10, TimeUnit.SECONDS);
+        try {
+            AtomicBoolean ran = new AtomicBoolean();
+            CountDownLatch submitted = new CountDownLatch(1);
+            TimeoutFuture<?> parent = single.submit(() -> {
+                //the child waits in the queue behind its parent
+                single.execute(() -> ran.set(true), 10, TimeUnit.SECONDS, null);
+                submitted.countDown();
+                Thread.sleep(5000);
+                return 1;
+            }, 10, TimeUnit.SECONDS);
+
+            assertTrue(submitted.await(1, TimeUnit.SECONDS));
+            assertTrue(parent.cancel(true));
+            single.submit(() -> 2, 1, TimeUnit.SECONDS).get(1, TimeUnit.SECONDS);
+            assertFalse(ran.get());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void exceptionsPropagateFromRun() {
+
+        DeadlineHeap timedOut = new DeadlineHeap();
+        TimeoutRunnable instance = new TimeoutRunnable(() -> { throw new IllegalStateException("Failed"); }, null, timedOut,
+                1, TimeUnit.SECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE, -1, null);
+
+        assertThrows(IllegalStateException.class, () -> instance.run());
+        assertTrue(instance.isDone());
+        assertFalse(instance.isCancelled());
+        assertEquals(0, timedOut.size());
+    }
+
+    @Test
+    public void isShedWhenBudgetFromSubmitIsTooSmall() throws Exception {
+
+        executor.setTimeoutMode(TimeoutMode.FROM_SUBMIT);
+        executor.setExpectedRunTime(100, TimeUnit.MILLISECONDS);
+        AtomicBoolean ran = new AtomicBoolean();
+        CompletableFuture<Runnable> handled = new CompletableFuture<>();
+
+        executor.execute(() -> ran.set(true), 50, TimeUnit.MILLISECONDS, handled::complete);
+
+        assertNotNull(handled.get(1, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertEquals(1, executor.getMetrics().getShed());
+    }
+
+    @Test
+    public void isSupportedByOtherExecutors() throws Exception {
+
+        TimeoutForkJoinExecutor forkJoin = new TimeoutForkJoinExecutor(2, 1, TimeUnit.SECONDS);
+        try {
+            CompletableFuture<Runnable> handled = new CompletableFuture<>();
+            Runnable task = sleeper(5000, new AtomicBoolean());
+            forkJoin.execute(task, 20, TimeUnit.MILLISECONDS, handled::complete);
+            assertSame(task, handled.get(1, TimeUnit.SECONDS));
+        } finally {
+            forkJoin.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutScheduledExecutorTest {
+
+    public TimeoutScheduledExecutorTest() {
+    }
+
+    TimeoutScheduledExecutor<Integer> instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new TimeoutScheduledExecutor<>(2, 1, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        instance.shutdownNow();
+    }
+
+    @Test
+    public void runsDelayedTask() throws Exception {
+
+        long start = System.nanoTime();
+        TimeoutScheduledFuture<Integer> future = instance.schedule(() -> 5, 30, TimeUnit.MILLISECONDS);
+        assertFalse(future.isPeriodic());
+        assertTrue(future.getDelay(TimeUnit.MILLISECONDS) > 0);
+
+        assertEquals(5, (int) future.get(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertFalse(future.isTimedOut());
+        assertEquals(1, instance.getMetrics().getCompleted());
+    }
+
+    @Test
+    public void timesOutDelayedRun() throws Exception {
+
+        TimeoutScheduledFuture<Integer> future = instance.schedule(new Sleeper(500, 1), 10, 20, TimeUnit.MILLISECONDS);
+
+        assertThrows(TimeoutCancellationException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(future.isTimedOut());
+        assertEquals(1, future.getTimedOutRuns());
+    }
+
+    @Test
+    public void timedOutRunDoesNotStopPeriodicTask() throws Exception {
+
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch fourRuns = new CountDownLatch(4);
+        TimeoutScheduledFuture<?> future = instance.scheduleAtFixedRate(() -> {
+            fourRuns.countDown();
+            //every second run hangs
+            if (runs.incrementAndGet() % 2 == 0) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                }
+            }
+        }, 0, 10, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(fourRuns.await(2, TimeUnit.SECONDS));
+        assertTrue(future.isPeriodic());
+        assertFalse(future.isDone());
+        assertTrue(future.getTimedOutRuns() >= 1);
+
+        assertTrue(future.cancel(false));
+        assertThrows(CancellationException.class, () -> future.get());
+        int seen = runs.get();
+        Thread.sleep(50);
+        assertTrue(runs.get() <= seen + 1);
+    }
+
+    @Test
+    public void fixedDelayRunsDoNotOverlap() throws Exception {
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch runs = new CountDownLatch(5);
+        TimeoutScheduledFuture<?> future = instance.scheduleWithFixedDelay(() -> {
+            if (running.incrementAndGet() > 1) overlaps.incrementAndGet();
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+            }
+            running.decrementAndGet();
+            runs.countDown();
+        }, 0, 2, TimeUnit.MILLISECONDS);
+
+        assertTrue(runs.await(2, TimeUnit.SECONDS));
+        future.cancel(false);
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void timedOutRunsIgnoringInterruptDoNotOverlap() throws Exception {
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch runs = new CountDownLatch(3);
+        TimeoutScheduledFuture<?> future = instance.scheduleAtFixedRate(() -> {
+            if (running.incrementAndGet() > 1) overlaps.incrementAndGet();
+            //ignores the interrupt of its timeout
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            while (System.nanoTime() < end) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                }
+            }
+            running.decrementAndGet();
+            runs.countDown();
+        }, 0, 10, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(runs.await(2, TimeUnit.SECONDS));
+        future.cancel(false);
+        assertEquals(0, overlaps.get());
+        assertTrue(future.getTimedOutRuns() >= 2);
+    }
+
+    @Test
+    public void failedRunStopsPeriodicTask() throws Exception {
+
+        AtomicInteger runs = new AtomicInteger();
+        TimeoutScheduledFuture<?> future = instance.scheduleAtFixedRate(() -> {
+            if (runs.incrementAndGet() == 2) throw new IllegalStateException("Failed");
+        }, 0, 5, TimeUnit.MILLISECONDS);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        Thread.sleep(30);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void sharesTimerWithTimeouts() throws Exception {
+
+        instance.schedule(() -> 1, 10, TimeUnit.SECONDS);
+        instance.schedule(() -> 2, 20, TimeUnit.SECONDS);
+
+        //the pending starts wait in the same heap as the running tasks
+        assertEquals(2, instance.timedOut().size());
+    }
+
+    @Test
+    public void shutdownCancelsPendingTasks() throws Exception {
+
+        TimeoutScheduledFuture<Integer> delayed = instance.schedule(() -> 1, 10, TimeUnit.SECONDS);
+        TimeoutScheduledFuture<?> periodic = instance.scheduleAtFixedRate(() -> {}, 10, 10, TimeUnit.SECONDS);
+
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(1, TimeUnit.SECONDS));
+        assertTrue(delayed.isCancelled());
+        assertTrue(periodic.isCancelled());
+
+        assertThrows(RejectedExecutionException.class, () -> instance.schedule(() -> 1, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelRemovesPendingStart() throws Exception {
+
+        TimeoutScheduledFuture<Integer> delayed = instance.schedule(() -> 1, 10, TimeUnit.SECONDS);
+        assertEquals(1, instance.timedOut().size());
+
+        assertTrue(delayed.cancel(false));
+        assertEquals(0, instance.timedOut().size());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimeoutVirtualThreadExecutorTest {
+
+    public TimeoutVirtualThreadExecutorTest() {
+    }
+
+    TimeoutVirtualThreadExecutor instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new TimeoutVirtualThreadExecutor(20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void timeOutsCorrectly() throws Exception {
+
+        List<TimeoutFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i ++) {
+            futures.add((TimeoutFuture<Integer>)instance.submit(new Sleeper(i % 2 == 0 ? 200 : 5, i)));
+        }
+
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(500, TimeUnit.MILLISECONDS));
+        assertTrue(instance.isTerminated());
+
+        for (int i = 0; i < 4; i++) {
+            TimeoutFuture<Integer> future = futures.get(i);
+            assertTrue(future.isDone());
+            if (i % 2 == 0) {
+                assertTrue(future.isTimedOut());
+            } else {
+                assertFalse(future.isTimedOut());
+                assertEquals(i, (int)future.get());
+            }
+        }
+    }
+
+    @Test
+    public void limitsConcurrency() throws Exception {
+
+        instance = new TimeoutVirtualThreadExecutor(1, TimeUnit.SECONDS, 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        for (int i = 0; i < 8; i++) {
+            instance.submit(() -> {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                Thread.sleep(10);
+                running.decrementAndGet();
+                return now;
+            });
+        }
+
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void globalDeadlineCancelsAndCompletionQueueIsFilled() throws Exception {
+
+        ConcurrentLinkedQueue<TimeoutFuture<?>> completed = new ConcurrentLinkedQueue<>();
+        instance = new TimeoutVirtualThreadExecutor(1, TimeUnit.SECONDS, 1, completed);
+        instance.setGlobalDeadline(new Date(System.currentTimeMillis()+150));
+
+        TimeoutFuture<Integer> first = (TimeoutFuture<Integer>)instance.submit(new Sleeper(50, 1));
+        TimeoutFuture<Integer> second = (TimeoutFuture<Integer>)instance.submit(new Sleeper(200, 2));
+
+        instance.shutdown();
+        assertTrue(instance.awaitTermination(500, TimeUnit.MILLISECONDS));
+
+        assertFalse(first.isTimedOut());
+        assertTrue(second.isTimedOut());
+        assertEquals(2, completed.size());
+    }
+
+    @Test
+    public void limitedTasksStartInSubmissionOrder() throws Exception {
+
+        instance = new TimeoutVirtualThreadExecutor(1, TimeUnit.SECONDS, 1);
+        ConcurrentLinkedQueue<Integer> started = new ConcurrentLinkedQueue<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int nr = i;
+            futures.add(instance.submit(() -> started.add(nr)));
+        }
+        for (Future<?> future : futures) future.get(1, TimeUnit.SECONDS);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) expected.add(i);
+        assertEquals(expected, new ArrayList<>(started));
+        instance.shutdown();
+    }
+
+    @Test
+    public void shutdownNowCancelsTasksWaitingForPermit() throws Exception {
+
+        instance = new TimeoutVirtualThreadExecutor(1, TimeUnit.SECONDS, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        TimeoutFuture<?> running = (TimeoutFuture<?>)instance.submit(() -> {
+            release.await();
+            return 1;
+        });
+        TimeoutFuture<?> waiting = (TimeoutFuture<?>)instance.submit(new Sleeper(10, 2));
+
+        List<Runnable> pending = instance.shutdownNow();
+        assertEquals(Collections.singletonList(waiting), pending);
+        assertTrue(waiting.isCancelled());
+        assertTrue(instance.awaitTermination(200, TimeUnit.MILLISECONDS));
+        assertTrue(running.isDone());
+    }
+
+    @Test
+    public void submitAsyncCompletesStage() throws Exception {
+
+        CompletableFuture<Integer> done = instance.submitAsync(new Sleeper(5, 3), 50, TimeUnit.MILLISECONDS).toCompletableFuture();
+        CompletableFuture<Integer> timedOut = instance.submitAsync(new Sleeper(200, 4), 20, TimeUnit.MILLISECONDS).toCompletableFuture();
+
+        assertEquals(3, (int)done.get(500, TimeUnit.MILLISECONDS));
+        assertThrows(TimeoutCancellationException.class, () -> timedOut.get(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rejectsDoomedTasksAfterShutdown() throws Exception {
+
+        instance.setTimeoutMode(TimeoutMode.FROM_SUBMIT);
+        instance.setExpectedRunTime(1, TimeUnit.SECONDS);
+        instance.shutdown();
+
+        assertThrows(RejectedExecutionException.class, () -> instance.submit(new Sleeper(5, 1), 10, TimeUnit.MILLISECONDS));
+        assertThrows(RejectedExecutionException.class, () -> instance.execute(() -> {}, 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, instance.getMetrics().getShed());
+    }
+
+    @Test
+    public void shutdownNowInterruptsAndRejectsNewTasks() throws Exception {
+
+        instance = new TimeoutVirtualThreadExecutor();
+        TimeoutFuture<Integer> future = (TimeoutFuture<Integer>)instance.submit(new Sleeper(1000, 1));
+        Thread.sleep(10);
+
+        instance.shutdownNow();
+        assertTrue(instance.awaitTermination(200, TimeUnit.MILLISECONDS));
+        assertTrue(future.isDone());
+        assertFalse(future.isTimedOut());
+
+        assertThrows(RejectedExecutionException.class, () -> instance.submit(new Sleeper(10, 2)));
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class TimingWheelTest {
+
+    public TimingWheelTest() {
+    }
+
+    TimingWheel instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new TimingWheel(1, TimeUnit.MILLISECONDS, 16);
+    }
+
+    TimeoutFuture<?> task(long delayMillis) {
+        TimeoutFuture<?> task = mock(TimeoutFuture.class);
+        when(task.getDelay(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        return task;
+    }
+
+    @Test
+    public void releasesTasksAfterTheirDelay() throws Exception {
+
+        TimeoutFuture<?> task = task(20);
+        instance.put(task);
+        assertEquals(1, instance.size());
+
+        assertNull(instance.poll());
+
+        long sT = System.currentTimeMillis();
+        assertSame(task, instance.take());
+        long dur = System.currentTimeMillis()-sT;
+
+        assertTrue(dur >= 15);
+        assertTrue(dur < 100);
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void releasesInDeadlineOrderAlsoAfterRevolutions() throws Exception {
+
+        TimeoutFuture<?> late = task(40);
+        TimeoutFuture<?> early = task(5);
+        instance.put(late);
+        instance.put(early);
+
+        assertSame(early, instance.take());
+        assertSame(late, instance.take());
+    }
+
+    @Test
+    public void dropsDoneTasks() throws Exception {
+
+        TimeoutFuture<?> task = task(10);
+        instance.put(task);
+        when(task.isDone()).thenReturn(true);
+        instance.remove(task);
+
+        assertNull(instance.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void doesNotArmInfiniteDelays() {
+
+        TimeoutFuture<?> task = mock(TimeoutFuture.class);
+        when(task.getDelay(TimeUnit.NANOSECONDS)).thenReturn(Long.MAX_VALUE);
+
+        instance.put(task);
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void drainsOnlyExpired() throws Exception {
+
+        instance.put(task(0));
+        instance.put(task(10000));
+        Thread.sleep(5);
+
+        List<TimeoutFuture<?>> drained = new ArrayList<>();
+        assertEquals(1, instance.drainTo(drained));
+        assertEquals(1, instance.size());
+    }
+
+    @Test
+    public void timesOutExecutorTasks() throws Exception {
+
+        TimeoutFixPoolExecutor executor = new TimeoutFixPoolExecutor(2, 20, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), null, instance);
+
+        TimeoutFuture<Integer> slow = (TimeoutFuture<Integer>)executor.submit(new Sleeper(200, 1));
+        TimeoutFuture<Integer> fast = (TimeoutFuture<Integer>)executor.submit(new Sleeper(5, 2));
+
+        executor.shutdown();
+        executor.awaitTermination(500, TimeUnit.MILLISECONDS);
+
+        assertTrue(slow.isTimedOut());
+        assertFalse(fast.isTimedOut());
+        assertEquals(2, (int)fast.get());
+    }
+
+    @Test
+    public void iteratesOverSnapshotOfArmedTasks() throws Exception {
+
+        TimeoutFuture<?> armed = task(1000);
+        TimeoutFuture<?> done = task(1000);
+        TimeoutFuture<?> other = task(1000);
+        instance.put(armed);
+        instance.put(done);
+        instance.poll();
+        when(done.isDone()).thenReturn(true);
+
+        assertTrue(instance.contains(armed));
+        assertFalse(instance.contains(done));
+        assertFalse(instance.contains(other));
+        List<TimeoutFuture<?>> seen = new ArrayList<>();
+        instance.forEach(seen::add);
+        assertEquals(1, seen.size());
+        assertNotNull(instance.toString());
+    }
+
+    @Test
+    public void waitingConsumerDoesNotBlockIteration() throws Exception {
+
+        Thread consumer = new Thread(() -> {
+            try {
+                instance.take();
+            } catch (InterruptedException e) {
+            }
+        });
+        consumer.start();
+        try {
+            Thread.sleep(20);
+            TimeoutFuture<?> task = task(1000);
+            instance.put(task);
+            Thread.sleep(20);
+            assertTrue(instance.contains(task));
+        } finally {
+            consumer.interrupt();
+            consumer.join(1000);
+        }
+    }
+
+    @Test
+    public void removeDisarmsTaskOnceAndConsumerStopsTicking() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TimeoutFutureTask<Integer> future = new TimeoutFutureTask<>(() -> {
+            started.countDown();
+            release.await();
+            return 1;
+        }, instance, 10, TimeUnit.SECONDS);
+        Thread runner = new Thread(future);
+        Thread consumer = new Thread(() -> {
+            try {
+                instance.take();
+            } catch (InterruptedException e) {
+            }
+        });
+        runner.start();
+        consumer.start();
+        try {
+            assertTrue(started.await(1, TimeUnit.SECONDS));
+            assertEquals(1, instance.size());
+
+            assertTrue(instance.remove(future));
+            assertFalse(instance.remove(future));
+            assertEquals(0, instance.size());
+            assertFalse(instance.contains(future));
+
+            //the disarmed entry is still in its bucket, but the consumer parks until a new task is armed
+            Thread.sleep(30);
+            assertEquals(Thread.State.WAITING, consumer.getState());
+
+            release.countDown();
+            assertEquals(1, (int) future.get(1, TimeUnit.SECONDS));
+            assertEquals(0, instance.size());
+        } finally {
+            release.countDown();
+            consumer.interrupt();
+            consumer.join(1000);
+            runner.join(1000);
+        }
+    }
+
+    @Test
+    public void completedExecutorTasksAreNotCounted() throws Exception {
+
+        TimeoutFixPoolExecutor executor = new TimeoutFixPoolExecutor(2, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), null, instance);
+        try {
+            List<TimeoutFuture<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add((TimeoutFuture<?>) executor.submit(new Sleeper(5, i)));
+            }
+            for (TimeoutFuture<?> future : futures) {
+                future.get(1, TimeUnit.SECONDS);
+            }
+            //get returns before done disarms the future
+            Thread.sleep(20);
+
+            assertEquals(0, instance.size());
+            assertEquals(0, executor.getMetrics().getTimedOutQueueDepth());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ed.biodare.concurrent.timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author tzielins
+ */
+public class WorkerDeadlineSlotsTest {
+
+    public WorkerDeadlineSlotsTest() {
+    }
+
+    WorkerDeadlineSlots instance;
+
+    @BeforeEach
+    public void setUp() {
+        instance = new WorkerDeadlineSlots(2);
+    }
+
+    TimeoutFuture<?> task(long delayMillis) {
+        TimeoutFuture<?> task = mock(TimeoutFuture.class);
+        when(task.getDelay(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        return task;
+    }
+
+    @Test
+    public void publishesAndReleasesAfterDeadline() throws Exception {
+
+        TimeoutFuture<?> task = task(20);
+        instance.put(task);
+        assertEquals(1, instance.size());
+        assertNull(instance.poll());
+
+        long sT = System.currentTimeMillis();
+        assertSame(task, instance.take());
+        long dur = System.currentTimeMillis()-sT;
+
+        assertTrue(dur >= 15);
+        assertTrue(dur < 100);
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void removeClearsTheSlot() throws Exception {
+
+        TimeoutFuture<?> task = task(10);
+        instance.put(task);
+        assertTrue(instance.remove(task));
+        assertFalse(instance.remove(task));
+
+        assertNull(instance.poll(30, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void usesOverflowForNestedTasks() throws Exception {
+
+        TimeoutFuture<?> outer = task(1000);
+        TimeoutFuture<?> inner = task(10);
+        instance.put(outer);
+        instance.put(inner);
+        assertEquals(2, instance.size());
+
+        assertSame(inner, instance.take());
+        assertTrue(instance.remove(outer));
+    }
+
+    @Test
+    public void removesOverflowTasksFromTheOverflowHeap() throws Exception {
+
+        int[] innerIndex = new int[1];
+        TimeoutFutureTask<Integer> inner = new TimeoutFutureTask<>(() -> 2, instance, null, 1, TimeUnit.SECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE);
+        TimeoutFutureTask<Integer> outer = new TimeoutFutureTask<>(() -> {
+            inner.run();
+            innerIndex[0] = inner.queueIndex;
+            return 1;
+        }, instance, null, 1, TimeUnit.SECONDS, Ticker.SYSTEM, TimeoutFutureTask.NO_DEADLINE);
+
+        Thread worker = new Thread(() -> {
+            outer.run();
+            innerIndex[0] = outer.queueIndex == WorkerDeadlineSlots.slotIndex(0) ? innerIndex[0] : -100;
+        });
+        worker.start();
+        worker.join(1000);
+
+        assertEquals(2, (int)inner.get());
+        assertEquals(1, (int)outer.get());
+        //the inner task went through the overflow heap which released its index on removal
+        assertEquals(-1, innerIndex[0]);
+        assertEquals(0, instance.size());
+        assertFalse(instance.remove(inner));
+        assertFalse(instance.remove(outer));
+    }
+
+    @Test
+    public void wakesUpConsumerForEarlierDeadline() throws Exception {
+
+        TimeoutFuture<?> late = task(5000);
+        instance.put(late);
+
+        List<TimeoutFuture<?>> taken = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                taken.add(instance.take());
+            } catch (InterruptedException e) {}
+        });
+        consumer.start();
+        Thread.sleep(20);
+
+        TimeoutFuture<?> early = task(10);
+        Thread worker = new Thread(() -> instance.put(early));
+        worker.start();
+
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertSame(early, taken.get(0));
+    }
+
+    @Test
+    public void timesOutExecutorTasks() throws Exception {
+
+        int threads = 2;
+        TimeoutFixPoolExecutor executor = new TimeoutFixPoolExecutor(threads, 20, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), null, new WorkerDeadlineSlots(threads));
+
+        List<TimeoutFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add((TimeoutFuture<Integer>)executor.submit(new Sleeper(i % 2 == 0 ? 200 : 5, i)));
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 6; i++) {
+            TimeoutFuture<Integer> future = futures.get(i);
+            assertTrue(future.isDone());
+            if (i % 2 == 0) {
+                assertTrue(future.isTimedOut());
+            } else {
+                assertFalse(future.isTimedOut());
+                assertEquals(i, (int)future.get());
+            }
+        }
+    }
+
+}